@@ -0,0 +1,146 @@
+package client;
+
+import server.utility.Config;
+import server.utility.NodeReply;
+import server.utility.TransferGrant;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Client side of the direct data path: moves file bytes between this client and the file nodes
+// using the tickets in a TransferGrant, so the coordinator only handles metadata.
+public class DirectTransfer {
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int SOCKET_TIMEOUT = 30000;
+
+    private record NodeStream(TransferGrant.Target target, Socket socket, ObjectOutputStream out, ObjectInputStream in) {}
+
+    // Streams `source` to every target in the grant and returns the nodes' signed receipts
+    // (empty if no node stored the file).
+    public static List<String> upload(TransferGrant grant, Path source) throws IOException {
+        List<NodeStream> streams = new ArrayList<>();
+        List<String> receipts = new ArrayList<>();
+        try {
+            for (TransferGrant.Target target : grant.targets) {
+                try {
+                    NodeStream stream = connect(target, "ticketUpload");
+                    if (stream != null) streams.add(stream);
+                } catch (IOException e) {
+                    System.out.println("Node " + target.host() + ":" + target.port() + " unreachable: " + e.getMessage());
+                }
+            }
+            if (streams.isEmpty()) return receipts;
+
+            byte[] buffer = new byte[Config.TRANSFER_CHUNK_SIZE];
+            try (InputStream in = Files.newInputStream(source)) {
+                int n;
+                while ((n = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                    for (NodeStream stream : new ArrayList<>(streams)) {
+                        try {
+                            stream.out().writeInt(n);
+                            stream.out().write(buffer, 0, n);
+                            stream.out().flush();
+                        } catch (IOException e) {
+                            System.out.println("Upload to node " + stream.target().nodeId() + " failed: " + e.getMessage());
+                            streams.remove(stream);
+                            close(stream.socket());
+                        }
+                    }
+                    if (streams.isEmpty()) return receipts;
+                }
+            }
+            for (NodeStream stream : streams) {
+                try {
+                    stream.out().writeInt(0);
+                    stream.out().flush();
+                    if (stream.in().readBoolean()) {
+                        receipts.add(stream.in().readUTF());
+                    }
+                } catch (IOException e) {
+                    System.out.println("Upload to node " + stream.target().nodeId() + " failed: " + e.getMessage());
+                }
+            }
+            return receipts;
+        } finally {
+            for (NodeStream stream : streams) close(stream.socket());
+        }
+    }
+
+    // Writes the file to `target`, failing over between replicas at the current offset.
+    // Returns the bytes written, or -1 if no replica could serve the whole file.
+    public static long download(TransferGrant grant, Path target) throws IOException {
+        long offset = 0;
+        long size = -1;
+        long version = -1;
+        try (OutputStream out = Files.newOutputStream(target)) {
+            for (TransferGrant.Target node : grant.targets) {
+                NodeStream stream = null;
+                try {
+                    stream = connect(node, "ticketDownload");
+                    if (stream == null) continue;
+                    stream.out().writeLong(offset);
+                    stream.out().writeInt(Config.TRANSFER_CHUNK_SIZE);
+                    stream.out().flush();
+                    long fileSize = stream.in().readLong();
+                    if (fileSize < 0) continue;
+                    long replicaVersion = stream.in().readLong();
+                    if (size < 0) {
+                        size = fileSize;
+                        version = replicaVersion;
+                    } else if (fileSize != size || replicaVersion != version) {
+                        return -1; // this replica holds another version; resuming would splice the two
+                    }
+                    byte[] buffer = new byte[Config.TRANSFER_CHUNK_SIZE];
+                    int length;
+                    while ((length = stream.in().readInt()) > 0) {
+                        stream.in().readFully(buffer, 0, length);
+                        out.write(buffer, 0, length);
+                        offset += length;
+                    }
+                    return offset;
+                } catch (IOException e) {
+                    System.out.println("Download from node " + node.nodeId() + " failed at byte " + offset + ": " + e.getMessage());
+                } finally {
+                    if (stream != null) close(stream.socket());
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Opens the action with the target's ticket; null if the node refused the ticket
+    private static NodeStream connect(TransferGrant.Target target, String action) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(target.host(), target.port()), CONNECT_TIMEOUT);
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF(action);
+            out.writeUTF(target.ticket());
+            out.flush();
+            if (!in.readBoolean()) {
+                System.out.println("Node " + target.nodeId() + " rejected the transfer ticket");
+                close(socket);
+                return null;
+            }
+            return new NodeStream(target, socket, out, in);
+        } catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -2,6 +2,13 @@ package client;
 
 import server.services.auth.AuthServices;
 import server.services.file_operations.FileOperationsService;
+import server.utility.BlockSignatures;
+import server.utility.Config;
+import server.utility.FileDelta;
+import server.utility.FilePage;
+import server.utility.NodeBusyException;
+import server.utility.NodeReply;
+import server.utility.TransferGrant;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -9,18 +16,116 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestClient {
     private static final List<String> ALLOWED_DEPARTMENTS = List.of("QA", "Graphic", "Development", "general");
+    private static final int LIST_PAGE_SIZE = 20;
     private static String currentUsername = "";
     private static String currentRole = "";
     // Track active load connections
     private static final List<LoadConnection> activeConnections = new ArrayList<>();
     private static final AtomicBoolean stopRequested = new AtomicBoolean(false);
+    private static final AtomicInteger busyReplies = new AtomicInteger();
     private record LoadConnection(Thread thread, Socket socket) {
     }
+    // Large files are edited by sending only the blocks that changed against the stored version;
+    // small files, files the nodes can't patch, or edits that rewrite most of the file go in full.
+    private static boolean editFile(FileOperationsService service, String token, String filename, String department, byte[] content) throws Exception {
+        if (content.length >= Config.DELTA_MIN_FILE) {
+            BlockSignatures signatures = service.editSignatures(token, filename, department);
+            if (signatures != null) {
+                FileDelta delta = FileDelta.diff(signatures, content);
+                if (delta.literalBytes() < content.length / 2 && service.applyDelta(token, filename, department, delta)) {
+                    System.out.println("Sent " + delta.literalBytes() + " changed bytes of " + content.length);
+                    return true;
+                }
+            }
+        }
+        return service.sendFileCommand(token, "edit", filename, department, content);
+    }
+    // Sends the file straight to the nodes the coordinator picks; if they can't be reached from here,
+    // relays it through the coordinator instead. Returns the bytes stored or -1.
+    private static long uploadFromFile(FileOperationsService service, String token, String filename, String department, Path source) throws Exception {
+        TransferGrant grant = service.grantUpload(token, filename, department);
+        if (grant == null) return -1;
+        List<String> receipts = DirectTransfer.upload(grant, source);
+        if (!receipts.isEmpty()) {
+            return service.confirmUpload(token, filename, department, receipts) ? Files.size(source) : -1;
+        }
+        System.out.println("Direct upload failed, sending through the coordinator...");
+        return relayUpload(service, token, filename, department, source);
+    }
+    private static long downloadToFile(FileOperationsService service, String token, String filename, String department, Path target) throws Exception {
+        TransferGrant grant = service.grantDownload(token, filename, department);
+        if (grant != null) {
+            long received = DirectTransfer.download(grant, target);
+            if (received >= 0) return received;
+            System.out.println("Direct download failed, fetching through the coordinator...");
+        }
+        return relayDownload(service, token, filename, department, target);
+    }
+    // Streams a local file to the coordinator in TRANSFER_CHUNK_SIZE pieces; returns the bytes sent or -1
+    private static long relayUpload(FileOperationsService service, String token, String filename, String department, Path source) throws Exception {
+        String uploadId = service.openUpload(token, filename, department);
+        if (uploadId == null) return -1;
+        long sent = 0;
+        try (InputStream in = Files.newInputStream(source)) {
+            byte[] buffer = new byte[Config.TRANSFER_CHUNK_SIZE];
+            int n;
+            while ((n = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                if (!service.writeChunk(uploadId, Arrays.copyOf(buffer, n))) {
+                    service.abortUpload(uploadId);
+                    return -1;
+                }
+                sent += n;
+            }
+        } catch (IOException e) {
+            service.abortUpload(uploadId);
+            throw e;
+        }
+        return service.commitUpload(uploadId) ? sent : -1;
+    }
+    // Writes the file to `target` as chunks arrive; returns the bytes received or -1
+    private static long relayDownload(FileOperationsService service, String token, String filename, String department, Path target) throws Exception {
+        String downloadId = service.openDownload(token, filename, department);
+        if (downloadId == null) return -1;
+        long received = 0;
+        try (OutputStream out = Files.newOutputStream(target)) {
+            byte[] chunk;
+            while ((chunk = service.readChunk(downloadId)) != null && chunk.length > 0) {
+                out.write(chunk);
+                received += chunk.length;
+            }
+            if (chunk == null) return -1;
+        } finally {
+            service.closeDownload(downloadId);
+        }
+        return received;
+    }
+    private static Thread startLeaseRenewer(FileOperationsService service, String token, String filename, String department) {
+        Thread renewer = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(Config.EDIT_LEASE_TTL / 3);
+                    if (!service.renewFileEditLock(token, filename, department)) {
+                        System.out.println("\n⚠️ Edit lock on " + filename + " expired, another user may edit it now.");
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // edit finished
+            } catch (Exception e) {
+                System.out.println("\n⚠️ Failed to renew edit lock: " + e.getMessage());
+            }
+        }, "EditLeaseRenewer");
+        renewer.setDaemon(true);
+        renewer.start();
+        return renewer;
+    }
     private static void createRealLoad(Scanner scanner, FileOperationsService service) {
         try {
             System.out.print("Enter node port (5001/5002/5003): ");
@@ -42,6 +147,7 @@ public class TestClient {
 
             stopRequested.set(false);
             clearActiveConnections();
+            busyReplies.set(0);
 
             for (int i = 0; i < connections; i++) {
                 final int threadNum = i;
@@ -50,7 +156,7 @@ public class TestClient {
                     while (!stopRequested.get() && System.currentTimeMillis() < endTime) {
                         try (Socket socket = new Socket("localhost", port)) {
                             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                            ObjectInputStream in = NodeReply.open(socket);
                             synchronized (activeConnections) {
                                 activeConnections.add(new LoadConnection(Thread.currentThread(), socket));
                             }
@@ -61,6 +167,13 @@ public class TestClient {
                                 if (!"pong".equals(resp)) break;
                                 Thread.sleep(2000);
                             }
+                        } catch (NodeBusyException e) {
+                            // The node turned the connection away; that is the backpressure under test
+                            int busy = busyReplies.incrementAndGet();
+                            if (busy == 1 || busy % 50 == 0) {
+                                System.out.println("Node on port " + port + " answered BUSY (" + busy + " times so far)");
+                            }
+                            try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
                         } catch (Exception e) {
                             try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
                         } finally {
@@ -184,6 +297,7 @@ public class TestClient {
                             break;
 
                         case 0: // Logout
+                            authServices.logout(token);
                             token = showLoginScreen(scanner, authServices);
                             if (token == null) return;
                             break;
@@ -290,23 +404,23 @@ public class TestClient {
             String filename = files.get(selection-1);
             System.out.println("Downloading " + filename + "...");
 
-            // Download file
-            byte[] fileData = service.requestFile(token, filename, department);
+            // Download file chunk by chunk straight to disk
+            String outputFilename = "downloaded_" + filename;
+            long downloaded = downloadToFile(service, token, filename, department, Paths.get(outputFilename));
 
-            if (fileData == null || fileData.length == 0) {
+            if (downloaded <= 0) {
+                Files.deleteIfExists(Paths.get(outputFilename));
                 System.out.println("Failed to download file. Possible reasons:");
                 System.out.println("- File was deleted recently");
                 System.out.println("- Network issues");
                 System.out.println("- Permission denied");
             } else {
-                String outputFilename = "downloaded_" + filename;
-                Files.write(Paths.get(outputFilename), fileData);
-                System.out.println("\nFile saved as: " + outputFilename);
+                System.out.println("\nFile saved as: " + outputFilename + " (" + downloaded + " bytes)");
 
                 // Display text file content
                 if (filename.endsWith(".txt")) {
                     System.out.println("\n--- FILE CONTENT ---");
-                    System.out.println(new String(fileData));
+                    System.out.println(new String(Files.readAllBytes(Paths.get(outputFilename))));
                     System.out.println("--- END OF CONTENT ---");
                 }
             }
@@ -316,7 +430,7 @@ public class TestClient {
     }
     private static void handleFileOperations(Scanner scanner, FileOperationsService service, String token) throws Exception {
         System.out.println("\n=== File Operations ===");
-        System.out.print("Action (add/edit/delete/list): ");
+        System.out.print("Action (add/upload/edit/delete/list): ");
         String action = scanner.nextLine().toLowerCase();
 
         String department;
@@ -326,15 +440,28 @@ public class TestClient {
         } while (!ALLOWED_DEPARTMENTS.contains(department));
 
         if (action.equals("list")) {
-            List<String> files = service.listFiles(token, department);
-            if (files.isEmpty()) {
-                System.out.println("No files found in " + department + " department.");
-                return;
-            }
-            System.out.println("\nAvailable files in " + department + ":");
-            for (int i = 0; i < files.size(); i++) {
-                System.out.println((i+1) + ") " + files.get(i));
-            }
+            System.out.print("Filename prefix (empty for all): ");
+            String prefix = scanner.nextLine();
+            String pageToken = null;
+            int shown = 0;
+            do {
+                FilePage page = service.listFilesPage(token, department, prefix, LIST_PAGE_SIZE, pageToken);
+                if (shown == 0) {
+                    if (page.files.isEmpty()) {
+                        System.out.println("No files found in " + department + " department.");
+                        return;
+                    }
+                    System.out.println("\nAvailable files in " + department + ":");
+                }
+                for (String file : page.files) {
+                    System.out.println((++shown) + ") " + file);
+                }
+                pageToken = page.nextToken;
+                if (page.hasMore()) {
+                    System.out.print("-- Enter for more, 'q' to stop -- ");
+                    if (scanner.nextLine().equalsIgnoreCase("q")) break;
+                }
+            } while (pageToken != null);
             return;
         }
 
@@ -370,6 +497,8 @@ public class TestClient {
                 return;
             }
 
+            // The lock is a lease, keep it alive while the user is typing
+            Thread leaseRenewer = startLeaseRenewer(service, token, filename, department);
             try {
                 // Show current content
                 System.out.println("\n=== Current File Content ===");
@@ -400,10 +529,10 @@ public class TestClient {
                 }
 
                 // Send edit command
-                boolean result = service.sendFileCommand(token, "edit", filename, department,
-                        newContent.toString().getBytes());
+                boolean result = editFile(service, token, filename, department, newContent.toString().getBytes());
                 System.out.println(result ? "File edited successfully!" : "Edit operation failed!");
             } finally {
+                leaseRenewer.interrupt();
                 service.unlockFileForEdit(token, filename, department);
             }
             return;
@@ -413,6 +542,18 @@ public class TestClient {
         System.out.print("Filename: ");
         String filename = scanner.nextLine();
 
+        if (action.equals("upload")) {
+            System.out.print("Local file to upload: ");
+            Path source = Paths.get(scanner.nextLine());
+            if (!Files.isRegularFile(source)) {
+                System.out.println("No such file: " + source);
+                return;
+            }
+            long uploaded = uploadFromFile(service, token, filename, department, source);
+            System.out.println(uploaded >= 0 ? "Uploaded " + uploaded + " bytes successfully!" : "Upload failed (check permissions)");
+            return;
+        }
+
         byte[] content = new byte[0];
         if (action.equals("add")) {
             System.out.println("Enter file content (type 'END' on a new line to finish):");
@@ -1,22 +1,25 @@
 package server;
 
-import server.services.file_operations.FileOperationsService;
 import server.services.file_operations.FileOperationsServiceImpl;
 import server.services.auth.AuthServices;
 import server.services.auth.AuthServicesImpl;
+import server.utility.Config;
 
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 
 public class CoordinatorServer {
     public static void main(String[] args) {
+        Config.requireClusterSecret();
         try {
 
             AuthServices authServices = new AuthServicesImpl();
-            FileOperationsService service = new FileOperationsServiceImpl(authServices);
-            Registry registry = LocateRegistry.createRegistry(1099);
+            FileOperationsServiceImpl service = new FileOperationsServiceImpl(authServices);
+            Runtime.getRuntime().addShutdownHook(new Thread(service::shutdown));
+            Registry registry = LocateRegistry.createRegistry(Config.REGISTRY_PORT);
             registry.rebind("CoordinatorService", service);
             registry.rebind("AuthServices",authServices );
+            registry.rebind("MembershipService", service);
             System.out.println("Coordinator RMI Server is running...");
         } catch (Exception e) {
             e.printStackTrace();
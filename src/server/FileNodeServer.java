@@ -1,16 +1,38 @@
 package server;
 
+import server.services.membership.MembershipService;
+import server.utility.BlockSignatures;
+import server.utility.Config;
+import server.utility.FileDelta;
+import server.utility.Membership;
+import server.utility.MerkleTree;
+import server.utility.NodeLoadReport;
+import server.utility.NodeReply;
+import server.utility.Shard;
+import server.utility.TransferTicket;
+
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -18,17 +40,52 @@ class   FileNodeServer {
     private final int port;
     private final File baseDir;
     private volatile boolean isOnline = true;
+    private volatile boolean stopped = false;
+    private volatile int nodeId = -1; // assigned by the coordinator when we register
+    private volatile ServerSocket listener;
+    private volatile ServerSocket controlListener;
     private final AtomicInteger activeConnections = new AtomicInteger(0);
     private final Set<Socket> loadTestSockets = Collections.synchronizedSet(new HashSet<>());
     private final int SOCKET_TIMEOUT = 30000; // 30 seconds
     private final int THREAD_POOL_SIZE = 50;
     private final Map<Socket, Long> connectionTimestamps = new ConcurrentHashMap<>();
     private final long CONNECTION_TIMEOUT = 10000; // Reduced to 10 seconds
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    private final int PEER_CONNECT_TIMEOUT = 3000;
+    private final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    private final int REPLICATE_CHUNK_SIZE = 256 * 1024;
+    private static final String TMP_DIR = ".tmp"; // in-progress writes, renamed into place when complete
+    private static final String EC_DIR = ".ec"; // erasure-coded shards: .ec/<department>/<filename>.<index>@<version>
+    private static final String VERSIONS_DIR = ".versions"; // version of each file: .versions/<department>/<filename>
+    // Bounded, so a saturated node answers BUSY (see rejectBusy) instead of queueing connections until clients time out
+    private final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(THREAD_POOL_SIZE, THREAD_POOL_SIZE,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Config.NODE_QUEUE_CAPACITY));
+    // Writes the BUSY replies off the accept thread; if even this backs up, connections are just closed
+    private final ThreadPoolExecutor busyReplies = new ThreadPoolExecutor(1, 1,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Config.NODE_QUEUE_CAPACITY));
+    private final AtomicLong busyRejections = new AtomicLong();
+    // Control lane (heartbeat, ping, getLoad) on its own port and threads; sized for the coordinator's
+    // persistent heartbeat channel plus a few health checks
+    private final ThreadPoolExecutor controlPool = new ThreadPoolExecutor(Config.CONTROL_THREADS, Config.CONTROL_THREADS,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Config.CONTROL_THREADS));
+    // Inputs of the NodeLoadReport sent with every heartbeat
+    private final AtomicInteger ioInFlight = new AtomicInteger();
+    private final LongAdder bytesMoved = new LongAdder();
+    private long lastReportBytes;
+    private long lastReportAt = System.currentTimeMillis();
     private final Set<Socket> activeSockets = Collections.synchronizedSet(new HashSet<>());
     private final Map<Socket, Thread> socketThreads = new ConcurrentHashMap<>();
     private final Map<Socket, Boolean> validConnections = new ConcurrentHashMap<>();
     private final Map<String, ReentrantReadWriteLock> fileLocks = new ConcurrentHashMap<>();
+    private final Map<String, DepartmentIndex> departmentIndexes = new ConcurrentHashMap<>();
+    // Versions of the stored files for anti-entropy (see NodeSynchronizer); built at start, then kept
+    // up to date by our own writes and deletes
+    private final MerkleTree merkleTree = new MerkleTree();
+    // Sorted filenames of one department. Rescanned when the directory changes behind our back
+    // (e.g. the synchronizer copied files in), otherwise kept up to date by add/delete.
+    private static final class DepartmentIndex {
+        final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+        volatile long scannedMtime = Long.MIN_VALUE;
+    }
     // Define NodeInfo as a nested record
     public record NodeInfo(Thread thread, FileNodeServer server, Set<Thread> loadThreads) {}
     public FileNodeServer(int port, String baseDirPath) {
@@ -58,18 +115,22 @@ class   FileNodeServer {
             socket.setSoTimeout(SOCKET_TIMEOUT);
             socket.setKeepAlive(true);
             socket.setTcpNoDelay(true);
-            socket.setReceiveBufferSize(8192);
-            socket.setSendBufferSize(8192);
             socket.setReuseAddress(true);
             socket.setSoLinger(true, 3);
 
             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
+            NodeReply.write(out, NodeReply.OK);
             ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
 
             String action = in.readUTF();
             //  System.out.println("[NODE] Received action: " + action);
 
+            // Coordinator heartbeats are not client work, keep them out of the load they report
+            if ("heartbeat".equals(action)) {
+                handleHeartbeat(in, out);
+                return;
+            }
+
             // Only increment connection count for valid actions
             if (isValidAction(action)) {
                 validConnections.put(socket, true);
@@ -91,6 +152,32 @@ class   FileNodeServer {
                 return;
             }
 
+            if ("listPage".equals(action)) {
+                String department = in.readUTF();
+                String prefix = in.readUTF();
+                String after = in.readUTF();
+                int limit = in.readInt();
+                handleListPageAction(out, department, prefix, after, limit);
+                return;
+            }
+
+            if ("inventory".equals(action)) {
+                int pageSize = in.readInt();
+                handleInventoryAction(socket, out, pageSize);
+                return;
+            }
+
+            if ("merkle".equals(action)) {
+                handleMerkleAction(socket, in, out);
+                return;
+            }
+
+            if ("usage".equals(action)) {
+                out.writeLong(bytesStored());
+                out.flush();
+                return;
+            }
+
             if ("ping".equals(action)) {
                 try {
                     validConnections.put(socket, true);
@@ -116,6 +203,16 @@ class   FileNodeServer {
                 return;
             }
 
+            if ("ticketUpload".equals(action) || "ticketDownload".equals(action)) {
+                ioInFlight.incrementAndGet();
+                try {
+                    handleTicketAction(socket, in, out, action);
+                } finally {
+                    ioInFlight.decrementAndGet();
+                }
+                return;
+            }
+
             if ("getLoad".equals(action)) {
                 try {
                     int load = activeConnections.get();
@@ -139,20 +236,29 @@ class   FileNodeServer {
                 System.out.println("[NODE] Processing file operation. Current load: " + currentLoad);
             }
 
-            switch (action) {
-                case "add", "edit" -> handleAddEditAction(in, out, department, filename);
-                case "delete" -> handleDeleteAction(out, department, filename);
-                case "fetch" -> handleFetchAction(out, department, filename);
-
-
-
-
-
-                default -> {
-                    System.out.println("[NODE] Invalid action: " + action);
-                    out.writeBoolean(false);
-                    out.flush();
+            ioInFlight.incrementAndGet();
+            try {
+                switch (action) {
+                    case "add", "edit" -> handleAddEditAction(in, out, department, filename);
+                    case "delete" -> handleDeleteAction(out, department, filename);
+                    case "fetch" -> handleFetchAction(out, department, filename);
+                    case "stat" -> handleStatAction(out, department, filename);
+                    case "replicate" -> handleReplicateAction(socket, in, out, department, filename);
+                    case "signatures" -> handleSignaturesAction(out, department, filename);
+                    case "patch" -> handlePatchAction(in, out, department, filename);
+                    case "putShard" -> handlePutShardAction(in, out, department, filename);
+                    case "getShards" -> handleGetShardsAction(out, department, filename);
+                    case "deleteShards" -> handleDeleteShardsAction(in, out, department, filename);
+                    case "upload" -> handleUploadAction(socket, in, out, department, filename);
+                    case "download" -> handleDownloadAction(socket, in, out, department, filename);
+                    default -> {
+                        System.out.println("[NODE] Invalid action: " + action);
+                        out.writeBoolean(false);
+                        out.flush();
+                    }
                 }
+            } finally {
+                ioInFlight.decrementAndGet();
             }
         } catch (SocketTimeoutException e) {
             System.out.println("[NODE] Socket timeout - client may have disconnected");
@@ -164,52 +270,259 @@ class   FileNodeServer {
             cleanupConnection(socket);
         }
     }
+    // Control lane: never counted as client load and never queued behind file operations
+    private void handleControl(Socket socket) {
+        socketThreads.put(socket, Thread.currentThread());
+        try {
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            NodeReply.write(out, NodeReply.OK);
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            String action = in.readUTF();
+            switch (action) {
+                case "heartbeat" -> handleHeartbeat(in, out);
+                case "ping" -> {
+                    do {
+                        out.writeUTF("pong");
+                        out.flush();
+                    } while ("ping".equals(in.readUTF()));
+                }
+                case "getLoad" -> {
+                    out.writeInt(activeConnections.get());
+                    out.flush();
+                }
+                default -> System.out.println("[NODE] Not a control action: " + action);
+            }
+        } catch (EOFException | SocketTimeoutException e) {
+            // caller went away
+        } catch (IOException e) {
+            if (!stopped) System.out.println("[NODE] Control channel error: " + e.getMessage());
+        } finally {
+            socketThreads.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+    private void acceptControl(ServerSocket serverSocket) {
+        while (!stopped) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    controlPool.execute(() -> handleControl(socket));
+                } catch (RejectedExecutionException e) {
+                    rejectBusy(socket);
+                }
+            } catch (IOException e) {
+                if (stopped) break;
+                System.err.println("[NODE] Control accept failed: " + e.getMessage());
+            }
+        }
+    }
+    // Persistent channel: answer every "beat" with a load report until the coordinator goes away
+    private void handleHeartbeat(ObjectInputStream in, ObjectOutputStream out) throws IOException {
+        while ("beat".equals(in.readUTF())) {
+            loadReport().writeTo(out);
+            out.flush();
+        }
+    }
+    private synchronized NodeLoadReport loadReport() {
+        long now = System.currentTimeMillis();
+        long bytes = bytesMoved.sum();
+        long bytesPerSecond = (bytes - lastReportBytes) * 1000 / Math.max(1, now - lastReportAt);
+        lastReportBytes = bytes;
+        lastReportAt = now;
+        return new NodeLoadReport(activeConnections.get(), baseDir.getUsableSpace(), baseDir.getTotalSpace(),
+                ioInFlight.get(), bytesPerSecond, threadPool.getActiveCount(), threadPool.getMaximumPoolSize());
+    }
     private boolean isValidAction(String action) {
         return action != null && (
                 action.equals("list") ||
                         action.equals("ping") ||
+                        action.equals("inventory") ||
+                        action.equals("merkle") ||
+                        action.equals("usage") ||
+                        action.equals("listPage") ||
                         action.equals("getLoad") ||
                         action.equals("add") ||
                         action.equals("edit") ||
                         action.equals("delete") ||
-                        action.equals("fetch")
+                        action.equals("fetch") ||
+                        action.equals("stat") ||
+                        action.equals("replicate") ||
+                        action.equals("signatures") ||
+                        action.equals("patch") ||
+                        action.equals("putShard") ||
+                        action.equals("getShards") ||
+                        action.equals("deleteShards") ||
+                        action.equals("upload") ||
+                        action.equals("download") ||
+                        action.equals("ticketUpload") ||
+                        action.equals("ticketDownload")
         );
     }
     private void handleListAction(ObjectOutputStream out, String department) throws IOException {
-        File deptDir = new File(baseDir, department);
-        List<String> files = new ArrayList<>();
-
-        System.out.println("[NODE] Listing files in directory: " + deptDir.getAbsolutePath());
+        List<String> files = new ArrayList<>(departmentIndex(department).names);
 
-        if (!deptDir.exists()) {
-            boolean created = deptDir.mkdirs();
-            System.out.println("[NODE] " + (created ? "Created" : "Failed to create") + " directory: " + deptDir.getAbsolutePath());
+        System.out.println("[NODE] Sending " + files.size() + " files to client");
+        out.writeObject(files);
+        out.flush();
+        System.out.println("[NODE] Successfully sent file list to client");
+    }
+    // Up to `limit` names that start with `prefix` and sort after `after` ("" = from the beginning)
+    private void handleListPageAction(ObjectOutputStream out, String department, String prefix, String after, int limit) throws IOException {
+        NavigableSet<String> names = departmentIndex(department).names;
+        String from = after.compareTo(prefix) > 0 ? after : prefix;
+        ArrayList<String> page = new ArrayList<>(Math.min(limit, 1024));
+        for (String name : names.tailSet(from, !from.equals(after))) {
+            if (!name.startsWith(prefix) || page.size() >= limit) break;
+            page.add(name);
         }
-
-        // For listing, we'll use read locks for each file to ensure consistency
-        File[] listFiles = deptDir.listFiles();
-        if (listFiles != null) {
-            for (File f : listFiles) {
-                if (f.isFile()) {
-                    String fileKey = department + "/" + f.getName();
-                    ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
-
-                    // Acquire read lock for each file
-                    lock.readLock().lock();
-                    try {
-                        files.add(f.getName());
-                        System.out.println("[NODE] Found file: " + f.getName() + " (size: " + f.length() + " bytes)");
-                    } finally {
-                        lock.readLock().unlock();
+        out.writeObject(page);
+        out.flush();
+    }
+    private DepartmentIndex departmentIndex(String department) {
+        DepartmentIndex index = departmentIndexes.computeIfAbsent(department, k -> new DepartmentIndex());
+        File deptDir = new File(baseDir, department);
+        long mtime = deptDir.lastModified();
+        if (mtime != index.scannedMtime) {
+            synchronized (index) {
+                if (mtime != index.scannedMtime) {
+                    if (!deptDir.exists()) {
+                        boolean created = deptDir.mkdirs();
+                        System.out.println("[NODE] " + (created ? "Created" : "Failed to create") + " directory: " + deptDir.getAbsolutePath());
+                        mtime = deptDir.lastModified();
                     }
+                    Set<String> current = new HashSet<>();
+                    File[] files = deptDir.listFiles(File::isFile);
+                    if (files != null) {
+                        for (File f : files) current.add(f.getName());
+                    }
+                    current.addAll(shardedFiles(department));
+                    index.names.retainAll(current);
+                    index.names.addAll(current);
+                    index.scannedMtime = mtime;
+                    System.out.println("[NODE] Indexed " + current.size() + " files in " + deptDir.getAbsolutePath());
                 }
             }
         }
-
-        System.out.println("[NODE] Sending " + files.size() + " files to client");
-        out.writeObject(files);
+        return index;
+    }
+    // Called around our own writes so they update the index without forcing a rescan
+    private boolean departmentIndexInSync(String department) {
+        DepartmentIndex index = departmentIndex(department);
+        return index.scannedMtime == new File(baseDir, department).lastModified();
+    }
+    private void updateDepartmentIndex(String department, String filename, boolean present, boolean wasInSync) {
+        DepartmentIndex index = departmentIndexes.computeIfAbsent(department, k -> new DepartmentIndex());
+        synchronized (index) {
+            if (present) {
+                index.names.add(filename);
+            } else {
+                index.names.remove(filename);
+            }
+            if (wasInSync) {
+                index.scannedMtime = new File(baseDir, department).lastModified();
+            }
+        }
+    }
+    // Bytes held in department directories (in-progress writes under .tmp don't count)
+    private long bytesStored() throws IOException {
+        long total = 0;
+        File[] deptDirs = baseDir.listFiles(File::isDirectory);
+        if (deptDirs != null) {
+            for (File deptDir : deptDirs) {
+                if (deptDir.getName().startsWith(".")) continue;
+                total += directorySize(deptDir);
+                total += directorySize(ecDir(deptDir.getName()));
+            }
+        }
+        return total;
+    }
+    private static long directorySize(File dir) throws IOException {
+        if (!dir.isDirectory()) return 0;
+        long total = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath(), Files::isRegularFile)) {
+            for (Path entry : entries) {
+                total += Files.size(entry);
+            }
+        }
+        return total;
+    }
+    // Streams every stored file as (department, page of names) records so the coordinator can
+    // rebuild its location index without either side holding one huge list.
+    private void handleInventoryAction(Socket socket, ObjectOutputStream out, int pageSize) throws IOException {
+        File[] deptDirs = baseDir.listFiles(File::isDirectory);
+        int total = 0;
+        if (deptDirs != null) {
+            for (File deptDir : deptDirs) {
+                if (deptDir.getName().startsWith(".")) continue;
+                ArrayList<String> page = new ArrayList<>(pageSize);
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(deptDir.toPath(), Files::isRegularFile)) {
+                    for (Path entry : entries) {
+                        page.add(entry.getFileName().toString());
+                        if (page.size() == pageSize) {
+                            total += writeInventoryPage(socket, out, deptDir.getName(), page);
+                            page = new ArrayList<>(pageSize);
+                        }
+                    }
+                }
+                for (String name : shardedFiles(deptDir.getName())) {
+                    page.add(name);
+                    if (page.size() == pageSize) {
+                        total += writeInventoryPage(socket, out, deptDir.getName(), page);
+                        page = new ArrayList<>(pageSize);
+                    }
+                }
+                if (!page.isEmpty()) {
+                    total += writeInventoryPage(socket, out, deptDir.getName(), page);
+                }
+            }
+        }
+        out.writeBoolean(false);
         out.flush();
-        System.out.println("[NODE] Successfully sent file list to client");
+        System.out.println("[NODE] Inventory sent (" + total + " files)");
+    }
+    // One walk per process start; after that the tree follows our own writes
+    private void buildMerkleTree() {
+        File[] deptDirs = baseDir.listFiles(File::isDirectory);
+        if (deptDirs == null) return;
+        for (File deptDir : deptDirs) {
+            if (deptDir.getName().startsWith(".")) continue;
+            File[] files = deptDir.listFiles(File::isFile);
+            if (files == null) continue;
+            for (File file : files) {
+                merkleTree.put(deptDir.getName() + "/" + file.getName(), storedVersion(deptDir.getName(), file.getName()));
+            }
+        }
+        System.out.println("[NODE] Merkle tree built over " + merkleTree.size() + " files");
+    }
+    // Top-down walk by a synchronizer on one connection: each (level, index) is answered with the
+    // hashes of that node's children, or with the entries of the leaf at level DEPTH; level -1 ends it
+    private void handleMerkleAction(Socket socket, ObjectInputStream in, ObjectOutputStream out) throws IOException {
+        int level;
+        while ((level = in.readInt()) >= 0) {
+            int index = in.readInt();
+            if (level >= MerkleTree.DEPTH) {
+                out.writeObject(merkleTree.leaf(index));
+            } else {
+                out.writeObject(merkleTree.children(level, index));
+            }
+            out.flush();
+            out.reset();
+            connectionTimestamps.put(socket, System.currentTimeMillis());
+        }
+    }
+    private int writeInventoryPage(Socket socket, ObjectOutputStream out, String department, List<String> page) throws IOException {
+        connectionTimestamps.put(socket, System.currentTimeMillis()); // long inventories must not be reaped as idle
+        out.writeBoolean(true);
+        out.writeUTF(department);
+        out.writeObject(page);
+        out.flush();
+        out.reset(); // don't let the stream's handle table keep every page alive
+        return page.size();
     }
     private void handleAddEditAction(ObjectInputStream in, ObjectOutputStream out, String department, String filename) throws Exception {
         String fileKey = department + "/" + filename;
@@ -224,6 +537,7 @@ class   FileNodeServer {
             lock.writeLock().lock();
             try {
                 byte[] content = (byte[]) in.readObject(); //Receive File Content From Client
+                long version = in.readLong();
                 if (content == null) {
                     System.out.println("[NODE] Received null content for file operation");
                     out.writeBoolean(false);
@@ -237,17 +551,22 @@ class   FileNodeServer {
                     System.out.println("[NODE] " + (created ? "Created" : "Failed to create") + " directory: " + deptDir.getAbsolutePath());
                 }
 
-                File file = new File(deptDir, filename);
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    fos.write(content);
-                    out.writeBoolean(true);
-                    out.flush();
+                File tmp = newTempFile(department);
+                boolean saved = false;
+                try {
+                    try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                        fos.write(content);
+                    }
+                    bytesMoved.add(content.length);
+                    moveIntoPlace(tmp, department, filename, version);
+                    saved = true;
                     System.out.println("[NODE] File " + filename + " saved successfully");
                 } catch (IOException e) {
                     System.err.println("[NODE] Error writing file " + filename + ": " + e.getMessage());
-                    out.writeBoolean(false);
-                    out.flush();
+                    tmp.delete();
                 }
+                out.writeBoolean(saved);
+                out.flush();
             } finally {
                 lock.writeLock().unlock();
             }
@@ -262,6 +581,172 @@ class   FileNodeServer {
             }
         }
     }
+    private void handleUploadAction(Socket socket, ObjectInputStream in, ObjectOutputStream out, String department, String filename) throws IOException {
+        long version = in.readLong();
+        out.writeBoolean(receiveUpload(socket, in, department, filename, version) >= 0);
+        out.flush();
+    }
+    // Client-side data path: the coordinator-signed ticket names the file, so the node needs no other
+    // authorization. Uploads are answered with a signed receipt the client hands back to the coordinator.
+    private void handleTicketAction(Socket socket, ObjectInputStream in, ObjectOutputStream out, String action) throws IOException {
+        String operation = "ticketUpload".equals(action) ? TransferTicket.UPLOAD : TransferTicket.DOWNLOAD;
+        TransferTicket ticket = TransferTicket.verify(in.readUTF(), operation, port);
+        if (ticket == null) {
+            System.out.println("[NODE] Rejected " + action + ": invalid or expired ticket");
+            out.writeBoolean(false);
+            out.flush();
+            return;
+        }
+        out.writeBoolean(true);
+        out.flush();
+        if (operation.equals(TransferTicket.DOWNLOAD)) {
+            handleDownloadAction(socket, in, out, ticket.department, ticket.filename);
+            return;
+        }
+        long stored = receiveUpload(socket, in, ticket.department, ticket.filename, ticket.version);
+        out.writeBoolean(stored >= 0);
+        if (stored >= 0) {
+            out.writeUTF(ticket.receipt(stored));
+        }
+        out.flush();
+    }
+    // Receives a file as length-prefixed chunks (0 = commit, -1 = abort) into a temp file and renames
+    // it into place on commit, so readers only ever see the old or the complete new content.
+    // Returns the bytes stored, or -1 if the upload was aborted.
+    private long receiveUpload(Socket socket, ObjectInputStream in, String department, String filename, long version) throws IOException {
+        String fileKey = department + "/" + filename;
+        File tmp = newTempFile(department);
+        byte[] buffer = new byte[64 * 1024];
+        long received = 0;
+        int length;
+        boolean saved = false;
+        try {
+            try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(tmp), buffer.length)) {
+                while ((length = in.readInt()) > 0) {
+                    if (length > MAX_CHUNK_SIZE) throw new IOException("chunk of " + length + " bytes exceeds limit");
+                    for (int remaining = length; remaining > 0; ) {
+                        int n = Math.min(buffer.length, remaining);
+                        in.readFully(buffer, 0, n);
+                        fos.write(buffer, 0, n);
+                        remaining -= n;
+                    }
+                    received += length;
+                    bytesMoved.add(length);
+                    connectionTimestamps.put(socket, System.currentTimeMillis()); // still active, don't reap
+                }
+            }
+            if (length == 0) {
+                ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
+                lock.writeLock().lock();
+                try {
+                    moveIntoPlace(tmp, department, filename, version);
+                    saved = true;
+                } catch (IOException e) {
+                    System.err.println("[NODE] Upload " + fileKey + " not stored: " + e.getMessage());
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            if (!saved) tmp.delete();
+        }
+        System.out.println("[NODE] Upload " + fileKey + ": " + (saved ? received + " bytes stored" : "aborted"));
+        return saved ? received : -1;
+    }
+    // Streams a file from `offset` as length-prefixed chunks ending with 0, after its size (-1 if missing).
+    // The stream is opened under the read lock; writers replace files by rename, so it stays consistent.
+    private void handleDownloadAction(Socket socket, ObjectInputStream in, ObjectOutputStream out, String department, String filename) throws IOException {
+        long offset = in.readLong();
+        int chunkSize = Math.max(1, Math.min(in.readInt(), MAX_CHUNK_SIZE));
+        String fileKey = department + "/" + filename;
+        ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
+        File targetFile = new File(new File(baseDir, department), filename);
+
+        FileInputStream fis = null;
+        long version = -1;
+        lock.readLock().lock();
+        try {
+            if (targetFile.isFile()) {
+                fis = new FileInputStream(targetFile);
+                version = storedVersion(department, filename);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (fis == null) {
+            out.writeLong(-1);
+            out.flush();
+            return;
+        }
+        try (FileInputStream stream = fis) {
+            // Size and version up front, so a reader resuming on another replica can tell it holds the same file
+            out.writeLong(stream.getChannel().size());
+            out.writeLong(version);
+            stream.getChannel().position(offset);
+            byte[] buffer = new byte[chunkSize];
+            int n;
+            while ((n = stream.read(buffer)) > 0) {
+                out.writeInt(n);
+                out.write(buffer, 0, n);
+                out.flush();
+                bytesMoved.add(n);
+                connectionTimestamps.put(socket, System.currentTimeMillis());
+            }
+            out.writeInt(0);
+            out.flush();
+        }
+    }
+    private File newTempFile(String department) throws IOException {
+        File tmpDir = new File(baseDir, TMP_DIR);
+        if (!tmpDir.exists() && !tmpDir.mkdirs() && !tmpDir.exists()) {
+            throw new IOException("Failed to create " + tmpDir.getAbsolutePath());
+        }
+        return new File(tmpDir, department + "-" + UUID.randomUUID() + ".part");
+    }
+    // Caller holds the file's write lock. Versions only move forward: content older than what is
+    // stored is refused. The version is written after the content, so a crash in between leaves the
+    // file looking stale (and repaired from another replica), never stale content looking current.
+    private void moveIntoPlace(File tmp, String department, String filename, long version) throws IOException {
+        long current = storedVersion(department, filename);
+        if (version < current) {
+            throw new IOException("version " + version + " is older than stored version " + current);
+        }
+        File deptDir = new File(baseDir, department);
+        if (!deptDir.exists()) {
+            deptDir.mkdirs();
+        }
+        boolean indexInSync = departmentIndexInSync(department);
+        Files.move(tmp.toPath(), new File(deptDir, filename).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        updateDepartmentIndex(department, filename, true, indexInSync);
+        writeVersion(department, filename, version);
+        merkleTree.put(department + "/" + filename, version);
+    }
+    private File versionFile(String department, String filename) {
+        return new File(new File(new File(baseDir, VERSIONS_DIR), department), filename);
+    }
+    // -1 if the file isn't here, 0 if it was stored before files had versions
+    private long storedVersion(String department, String filename) {
+        if (!new File(new File(baseDir, department), filename).isFile()) return -1;
+        File file = versionFile(department, filename);
+        if (!file.isFile()) return 0;
+        try {
+            return Long.parseLong(Files.readString(file.toPath()).trim());
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("[NODE] Unreadable version of " + department + "/" + filename + ": " + e.getMessage());
+            return 0;
+        }
+    }
+    private void writeVersion(String department, String filename, long version) throws IOException {
+        File file = versionFile(department, filename);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Failed to create " + dir.getAbsolutePath());
+        }
+        File tmp = newTempFile(department);
+        Files.writeString(tmp.toPath(), Long.toString(version));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
     private void handleDeleteAction(ObjectOutputStream out, String department, String filename) throws IOException {
         String fileKey = department + "/" + filename;
         ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
@@ -271,7 +756,13 @@ class   FileNodeServer {
         try {
             File file = new File(new File(baseDir, department), filename);
 
+            boolean indexInSync = departmentIndexInSync(department);
             boolean deleted = file.delete();
+            versionFile(department, filename).delete();
+            merkleTree.remove(fileKey);
+            if (deleted && shardFiles(department, filename).length == 0) {
+                updateDepartmentIndex(department, filename, false, indexInSync);
+            }
 
             out.writeBoolean(deleted);
             fileLocks.remove(fileKey);
@@ -289,6 +780,270 @@ class   FileNodeServer {
             lock.writeLock().unlock();
         }
     }
+    // Pushes a local file straight to a peer node, so re-replication doesn't go through the coordinator.
+    // Streamed in chunks over the peer's "upload" action; like a download, only opening the file and
+    // reading its version happen under the read lock, and the peer refuses it if it holds a newer version.
+    // Replies with the number of bytes the peer accepted, or -1.
+    private void handleReplicateAction(Socket socket, ObjectInputStream in, ObjectOutputStream out, String department, String filename) throws IOException {
+        String targetHost = in.readUTF();
+        int targetPort = in.readInt();
+        String fileKey = department + "/" + filename;
+        ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
+        File targetFile = new File(new File(baseDir, department), filename);
+
+        FileInputStream fis = null;
+        long version = -1;
+        lock.readLock().lock();
+        try {
+            if (targetFile.isFile()) {
+                fis = new FileInputStream(targetFile);
+                version = storedVersion(department, filename);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        long sent = -1;
+        if (fis == null) {
+            System.out.println("[NODE] Replicate: file not found " + fileKey);
+        } else {
+            try (FileInputStream stream = fis; Socket peer = new Socket()) {
+                peer.connect(new InetSocketAddress(targetHost, targetPort), PEER_CONNECT_TIMEOUT);
+                peer.setSoTimeout(SOCKET_TIMEOUT);
+                ObjectOutputStream peerOut = new ObjectOutputStream(peer.getOutputStream());
+                peerOut.flush();
+                ObjectInputStream peerIn = NodeReply.open(peer);
+                peerOut.writeUTF("upload");
+                peerOut.writeUTF(department);
+                peerOut.writeUTF(filename);
+                peerOut.writeLong(version); // the copy keeps the version, it is the same content
+                byte[] buffer = new byte[REPLICATE_CHUNK_SIZE];
+                long total = 0;
+                int n;
+                while ((n = stream.read(buffer)) > 0) {
+                    peerOut.writeInt(n);
+                    peerOut.write(buffer, 0, n);
+                    total += n;
+                    connectionTimestamps.put(socket, System.currentTimeMillis()); // still active, don't reap
+                }
+                peerOut.writeInt(0);
+                peerOut.flush();
+                if (peerIn.readBoolean()) {
+                    sent = total;
+                    bytesMoved.add(sent);
+                }
+            } catch (IOException e) {
+                System.err.println("[NODE] Replicate " + fileKey + " to " + targetHost + ":" + targetPort + " failed: " + e.getMessage());
+            }
+        }
+        System.out.println("[NODE] Replicated " + fileKey + " to " + targetHost + ":" + targetPort + ": " +
+                (sent >= 0 ? sent + " bytes" : "failed"));
+        out.writeLong(sent);
+        out.flush();
+    }
+    // Block signatures of the current version, or null if the file isn't here
+    private void handleSignaturesAction(ObjectOutputStream out, String department, String filename) throws IOException {
+        String fileKey = department + "/" + filename;
+        ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
+        File targetFile = new File(new File(baseDir, department), filename);
+        BlockSignatures signatures = null;
+        lock.readLock().lock();
+        try {
+            if (targetFile.isFile()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(targetFile))) {
+                    signatures = BlockSignatures.of(in, targetFile.length());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        out.writeObject(signatures);
+        out.flush();
+    }
+    // Rebuilds the file from its current version and the delta in a temp file, checks the result
+    // against the delta's hash and renames it into place. Refused if the file changed since the
+    // signatures were taken.
+    private void handlePatchAction(ObjectInputStream in, ObjectOutputStream out, String department, String filename) throws Exception {
+        FileDelta delta = (FileDelta) in.readObject();
+        long version = in.readLong();
+        String fileKey = department + "/" + filename;
+        ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
+        File targetFile = new File(new File(baseDir, department), filename);
+        boolean patched = false;
+        lock.writeLock().lock();
+        try {
+            if (targetFile.isFile() && Arrays.equals(sha256(targetFile), delta.baseHash)) {
+                File tmp = newTempFile(department);
+                try {
+                    boolean valid;
+                    try (RandomAccessFile base = new RandomAccessFile(targetFile, "r");
+                         OutputStream fos = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                        valid = delta.apply(base, fos);
+                    }
+                    if (valid) {
+                        moveIntoPlace(tmp, department, filename, version);
+                        patched = true;
+                    }
+                } catch (IOException e) {
+                    System.err.println("[NODE] Patch " + fileKey + " not stored: " + e.getMessage());
+                } finally {
+                    if (!patched) tmp.delete();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        bytesMoved.add(delta.literalBytes());
+        System.out.println("[NODE] Patch " + fileKey + ": " + (patched ? delta.literalBytes() + " new bytes of " +
+                delta.newLength : "rejected (file missing or changed)"));
+        out.writeBoolean(patched);
+        out.flush();
+    }
+    private static byte[] sha256(File file) throws IOException {
+        MessageDigest sha = BlockSignatures.sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                sha.update(buffer, 0, n);
+            }
+        }
+        return sha.digest();
+    }
+    private File ecDir(String department) {
+        return new File(new File(baseDir, EC_DIR), department);
+    }
+    // Shard files of one file, of every version: "<filename>.<index>@<version>"
+    private File[] shardFiles(String department, String filename) {
+        File[] files = ecDir(department).listFiles((dir, name) -> name.startsWith(filename + ".") &&
+                isShardSuffix(name.substring(filename.length() + 1)));
+        return files == null ? new File[0] : files;
+    }
+    // "<index>@<version>", with up to three index digits
+    private static boolean isShardSuffix(String suffix) {
+        int at = suffix.indexOf('@');
+        if (at < 1 || at > 3 || at == suffix.length() - 1) return false;
+        for (int i = 0; i < suffix.length(); i++) {
+            if (i != at && !Character.isDigit(suffix.charAt(i))) return false;
+        }
+        return true;
+    }
+    private static long shardVersion(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(name.lastIndexOf('@') + 1));
+    }
+    // Names of the files this node holds shards of, for listings and the inventory
+    private Set<String> shardedFiles(String department) {
+        Set<String> names = new TreeSet<>();
+        String[] files = ecDir(department).list();
+        if (files != null) {
+            for (String name : files) {
+                int dot = name.lastIndexOf('.', Math.max(0, name.lastIndexOf('@')));
+                if (dot > 0 && isShardSuffix(name.substring(dot + 1))) names.add(name.substring(0, dot));
+            }
+        }
+        return names;
+    }
+    // Stores one shard next to those of other versions; the coordinator prunes the older versions
+    // once every shard of the new one is stored, so a failed overwrite leaves the old file readable
+    private void handlePutShardAction(ObjectInputStream in, ObjectOutputStream out, String department, String filename) throws Exception {
+        Shard shard = (Shard) in.readObject();
+        String fileKey = department + "/" + filename;
+        ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
+        boolean stored = false;
+        lock.writeLock().lock();
+        try {
+            File dir = ecDir(department);
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Failed to create " + dir.getAbsolutePath());
+            }
+            File tmp = newTempFile(department);
+            try {
+                try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                    shard.writeTo(dos);
+                }
+                boolean indexInSync = departmentIndexInSync(department);
+                Files.move(tmp.toPath(), new File(dir, filename + "." + shard.index + "@" + shard.version).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                stored = true;
+                updateDepartmentIndex(department, filename, true, indexInSync);
+            } finally {
+                if (!stored) tmp.delete();
+            }
+            bytesMoved.add(shard.data.length);
+        } catch (IOException e) {
+            System.err.println("[NODE] Storing shard " + shard.index + " of " + fileKey + " failed: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        out.writeBoolean(stored);
+        out.flush();
+    }
+    private void handleGetShardsAction(ObjectOutputStream out, String department, String filename) throws IOException {
+        String fileKey = department + "/" + filename;
+        ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
+        ArrayList<Shard> shards = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (File file : shardFiles(department, filename)) {
+                Shard shard = readShard(file);
+                if (shard != null) {
+                    shards.add(shard);
+                    bytesMoved.add(shard.data.length);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        out.writeObject(shards);
+        out.flush();
+    }
+    // Deletes the shards with fromVersion <= version < toVersion: one version, the ones older than
+    // a version, or all of them
+    private void handleDeleteShardsAction(ObjectInputStream in, ObjectOutputStream out, String department, String filename) throws IOException {
+        long fromVersion = in.readLong();
+        long toVersion = in.readLong();
+        String fileKey = department + "/" + filename;
+        ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
+        int deleted = 0;
+        lock.writeLock().lock();
+        try {
+            for (File file : shardFiles(department, filename)) {
+                long version = shardVersion(file);
+                if (version >= fromVersion && version < toVersion && file.delete()) deleted++;
+            }
+            if (deleted > 0 && shardFiles(department, filename).length == 0 &&
+                    !new File(new File(baseDir, department), filename).exists()) {
+                updateDepartmentIndex(department, filename, false, departmentIndexInSync(department));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        System.out.println("[NODE] Deleted " + deleted + " shards of " + fileKey);
+        out.writeInt(deleted);
+        out.flush();
+    }
+    private static Shard readShard(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return Shard.readFrom(in);
+        } catch (IOException e) {
+            System.err.println("[NODE] Unreadable shard " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+    // Version of the stored file (-1 if missing), so readers can tell stale replicas apart cheaply
+    private void handleStatAction(ObjectOutputStream out, String department, String filename) throws IOException {
+        ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(department + "/" + filename, k -> new ReentrantReadWriteLock());
+        long version;
+        lock.readLock().lock();
+        try {
+            version = storedVersion(department, filename);
+        } finally {
+            lock.readLock().unlock();
+        }
+        out.writeLong(version);
+        out.flush();
+    }
     private void handleFetchAction(ObjectOutputStream out, String department, String filename) throws IOException {
         String fileKey = department + "/" + filename;
         ReentrantReadWriteLock lock = fileLocks.computeIfAbsent(fileKey, k -> new ReentrantReadWriteLock());
@@ -306,6 +1061,7 @@ class   FileNodeServer {
                     System.out.println("[NODE] Sending " + data.length + " bytes");
                     out.writeObject(data);
                     out.flush();
+                    bytesMoved.add(data.length);
                     System.out.println("[NODE] Successfully sent file data");
                 } catch (IOException e) {
                     System.err.println("[NODE] Error reading file: " + e.getMessage());
@@ -323,13 +1079,24 @@ class   FileNodeServer {
     }
     public void start() throws IOException {
         startCleanupThread(); // Start the cleanup thread
+        buildMerkleTree();
         try (ServerSocket serverSocket = new ServerSocket(port)) {
+            listener = serverSocket;
             serverSocket.setSoTimeout(SOCKET_TIMEOUT);
             serverSocket.setReceiveBufferSize(65536);
             serverSocket.setReuseAddress(true);
             System.out.println("File Node running on port " + port);
+            ServerSocket control = new ServerSocket(port + Config.CONTROL_PORT_OFFSET);
+            controlListener = control;
+            Thread controlThread = new Thread(() -> acceptControl(control), "Control-" + port);
+            controlThread.setDaemon(true);
+            controlThread.start();
+            System.out.println("Control lane on port " + control.getLocalPort());
+            Thread registration = new Thread(this::registerWithCoordinator, "Register-" + port);
+            registration.setDaemon(true);
+            registration.start();
 
-            while (!Thread.currentThread().isInterrupted()) {
+            while (!stopped && !Thread.currentThread().isInterrupted()) {
                 if (!isOnline) {
                     try {
                         Thread.sleep(1000);
@@ -351,15 +1118,36 @@ class   FileNodeServer {
                     socket.setSoLinger(true, 5);
 
 
-                    threadPool.execute(() -> handleClient(socket));
+                    if (threadPool.getQueue().size() >= Config.NODE_BUSY_WATERMARK) {
+                        rejectBusy(socket);
+                    } else {
+                        try {
+                            threadPool.execute(() -> handleClient(socket));
+                        } catch (RejectedExecutionException e) {
+                            rejectBusy(socket);
+                        }
+                    }
                 } catch (SocketTimeoutException e) {
                     // Timeout is expected, continue looping
                 } catch (IOException e) {
+                    if (stopped) break;
                     System.err.println("[NODE] Accept failed: " + e.getMessage());
                 }
             }
         } finally {
+            stopped = true;
+            deregisterFromCoordinator();
+            // Persistent channels (heartbeats, pings) would otherwise outlive the node
+            for (Socket socket : new ArrayList<>(socketThreads.keySet())) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            closeQuietly(controlListener);
+            controlPool.shutdownNow();
             threadPool.shutdown();
+            busyReplies.shutdownNow();
             try {
                 if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
                     threadPool.shutdownNow();
@@ -369,6 +1157,87 @@ class   FileNodeServer {
             }
         }
     }
+    // Tells the client to go elsewhere: BUSY, then wait for the client to hang up (closing with its
+    // request unread would reset the connection and could lose the status)
+    private void rejectBusy(Socket socket) {
+        long rejected = busyRejections.incrementAndGet();
+        if (rejected == 1 || rejected % 100 == 0) {
+            System.out.println("[NODE] Port " + port + " busy (" + threadPool.getQueue().size() +
+                    " queued): " + rejected + " connections turned away so far");
+        }
+        try {
+            busyReplies.execute(() -> replyBusy(socket));
+        } catch (RejectedExecutionException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+    private void replyBusy(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(Config.CONNECTION_TIMEOUT);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            NodeReply.write(out, NodeReply.BUSY);
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            byte[] drain = new byte[4096];
+            while (in.read(drain) >= 0) {
+                // discard until the client closes
+            }
+        } catch (IOException ignored) {
+        }
+    }
+    // Leaves the cluster and stops accepting; start() returns once in-flight requests are done
+    public void stop() {
+        stopped = true;
+        closeQuietly(listener);
+        closeQuietly(controlListener);
+    }
+    private static void closeQuietly(ServerSocket serverSocket) {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+    // Announces this node to the coordinator, retrying until the coordinator is up or the node stops
+    private void registerWithCoordinator() {
+        while (!stopped) {
+            try {
+                MembershipService membership = (MembershipService) LocateRegistry
+                        .getRegistry(Config.COORDINATOR_HOST, Config.REGISTRY_PORT).lookup("MembershipService");
+                int id = membership.register(Config.NODE_HOST, port, Membership.proof(Config.NODE_HOST, port));
+                if (id >= 0) {
+                    nodeId = id;
+                    System.out.println("[NODE] Port " + port + " registered with the coordinator as node " + id);
+                } else {
+                    System.err.println("[NODE] Coordinator refused to register port " + port);
+                }
+                return;
+            } catch (RemoteException | NotBoundException e) {
+                // coordinator not up yet
+            }
+            try {
+                Thread.sleep(Config.REGISTER_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    private synchronized void deregisterFromCoordinator() {
+        if (nodeId < 0) return;
+        try {
+            MembershipService membership = (MembershipService) LocateRegistry
+                    .getRegistry(Config.COORDINATOR_HOST, Config.REGISTRY_PORT).lookup("MembershipService");
+            membership.deregister(Config.NODE_HOST, port, Membership.proof(Config.NODE_HOST, port));
+            System.out.println("[NODE] Port " + port + " left the cluster (was node " + nodeId + ")");
+        } catch (RemoteException | NotBoundException e) {
+            System.err.println("[NODE] Could not deregister port " + port + ": " + e.getMessage());
+        }
+        nodeId = -1;
+    }
     private void cleanupConnection(Socket socket) {
         try {
             if (validConnections.getOrDefault(socket, false)) {
@@ -419,14 +1288,28 @@ class   FileNodeServer {
         cleanupThread.setDaemon(true);
         cleanupThread.start();
     }
+    private static final List<Integer> DEFAULT_PORTS = List.of(5001, 5002, 5003);
+    // The original three nodes keep their ./node1..3 directories, any other port gets ./node-<port>
+    private static String dataDir(int port) {
+        int i = DEFAULT_PORTS.indexOf(port);
+        return i >= 0 ? "node" + (i + 1) : "node-" + port;
+    }
+    // Usage: FileNodeServer [port...] (default 5001 5002 5003)
     public static void main(String[] args) {
+        Config.requireClusterSecret();
         Map<Integer, NodeInfo> nodeMap = new ConcurrentHashMap<>();
-        List<Integer> ports = List.of(5001, 5002, 5003);
+        List<Integer> ports = new ArrayList<>();
+        for (String arg : args) {
+            ports.add(Integer.parseInt(arg));
+        }
+        if (ports.isEmpty()) {
+            ports = DEFAULT_PORTS;
+        }
 
         // Initialize nodes
         for (int i = 0; i < ports.size(); i++) {
             int port = ports.get(i);
-            String name = "node" + (i + 1);
+            String name = dataDir(port);
             FileNodeServer server = new FileNodeServer(port, name);
             Thread t = new Thread(() -> {
                 try {
@@ -440,6 +1323,10 @@ class   FileNodeServer {
             System.out.println("Node " + name + " started on port " + port);
         }
 
+        // Killed rather than exited: still tell the coordinator we are leaving
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                nodeMap.values().forEach(info -> info.server().deregisterFromCoordinator())));
+
         Scanner scanner = new Scanner(System.in);
 
         while (true) {
@@ -452,6 +1339,9 @@ class   FileNodeServer {
             System.out.print("Choose: ");
 
             try {
+                if (!scanner.hasNextLine()) {
+                    return; // no console (e.g. started in the background): the nodes keep serving
+                }
                 String choice = scanner.nextLine();
 
                 switch (choice) {
@@ -471,9 +1361,9 @@ class   FileNodeServer {
         }
     }
     private static void startNode(Scanner scanner, Map<Integer, FileNodeServer.NodeInfo> nodeMap, List<Integer> ports) {
-        System.out.print("Enter node number (1-3): ");
+        System.out.print("Enter node number (1-" + ports.size() + "): ");
         int num = Integer.parseInt(scanner.nextLine());
-        if (num < 1 || num > 3) {
+        if (num < 1 || num > ports.size()) {
             System.out.println("Invalid node number.");
             return;
         }
@@ -482,7 +1372,7 @@ class   FileNodeServer {
             System.out.println("Node " + num + " is already running.");
             return;
         }
-        String name = "node" + num;
+        String name = dataDir(port);
         FileNodeServer server = new FileNodeServer(port, name);
         Thread t = new Thread(() -> {
             try {
@@ -496,14 +1386,24 @@ class   FileNodeServer {
         System.out.println("Node " + num + " started.");
     }
     private static void stopNode(Scanner scanner, Map<Integer, FileNodeServer.NodeInfo> nodeMap, List<Integer> ports) {
-        System.out.print("Enter node number (1-3): ");
+        System.out.print("Enter node number (1-" + ports.size() + "): ");
         int num = Integer.parseInt(scanner.nextLine());
+        if (num < 1 || num > ports.size()) {
+            System.out.println("Invalid node number.");
+            return;
+        }
         int port = ports.get(num - 1);
         FileNodeServer.NodeInfo info = nodeMap.get(port);
         if (info != null) {
             info.loadThreads().forEach(Thread::interrupt);
             info.loadThreads().clear();
+            info.server().stop();
             info.thread().interrupt();
+            try {
+                info.thread().join(10000); // frees the port for a restart
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
             nodeMap.remove(port);
             System.out.println("Node " + num + " stopped.");
         } else {
@@ -529,6 +1429,7 @@ class   FileNodeServer {
         System.out.println("Shutting down all nodes...");
         nodeMap.values().forEach(info -> {
             info.loadThreads().forEach(Thread::interrupt);
+            info.server().stop();
             info.thread().interrupt();
         });
     }
@@ -5,6 +5,7 @@ import java.util.List;
 public interface AuthServices extends Remote {
     boolean registerUser(String token, String username, String password, String role, String department) throws RemoteException;
     String login(String username, String password) throws RemoteException;
+    boolean logout(String token) throws RemoteException;
     List<String> listUsers(String token) throws RemoteException;
     boolean hasPermission(String token, String action, String department) throws RemoteException;
 }
@@ -1,15 +1,18 @@
 package server.services.auth;
+import server.utility.AuthToken;
+import server.utility.Config;
 import server.utility.User;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 public class AuthServicesImpl   extends UnicastRemoteObject implements AuthServices {
     private final Map<String, User> users = new ConcurrentHashMap<>();
-    public final Map<String, String> activeTokens = new ConcurrentHashMap<>();
+    // Tokens are signed AuthTokens; the store only tracks which sessions are still live, and is bounded
+    private final SessionStore sessions = new SessionStore(Config.SESSION_IDLE_TTL, Config.AUTH_TOKEN_TTL,
+            Config.MAX_SESSIONS_PER_USER, Config.SESSION_REPORT_INTERVAL);
     public AuthServicesImpl() throws RemoteException {
         super();
     }
@@ -23,11 +26,8 @@ public class AuthServicesImpl   extends UnicastRemoteObject implements AuthServi
         List<String> allowedDepartments = List.of("QA", "Graphic", "Development", "general");
         if (!allowedDepartments.contains(department)) return false;
 
-        String requester = activeTokens.get(token);
-        if (requester == null) return false;
-
-        User currentUser = users.get(requester);
-        if (currentUser == null || !currentUser.role.equals("manager")) return false;
+        AuthToken requester = liveSession(token);
+        if (requester == null || !requester.isManager()) return false;
         if (users.containsKey(username)) return false;
 
         users.put(username, new User(username, password, role, department));
@@ -37,16 +37,19 @@ public class AuthServicesImpl   extends UnicastRemoteObject implements AuthServi
     public String login(String username, String password) throws RemoteException {
         User user = users.get(username);
         if (user == null || !user.password.equals(password)) return null;
-        String token = UUID.randomUUID().toString();
-        activeTokens.put(token, username);
-        return token;
+        String sessionId = sessions.create(user.username, user.role, user.department.trim());
+        return AuthToken.issue(sessionId, user.username, user.role, user.department, Config.AUTH_TOKEN_TTL);
+    }
+    @Override
+    public boolean logout(String token) throws RemoteException {
+        AuthToken claims = AuthToken.verify(token);
+        return claims != null && sessions.invalidate(claims.sessionId);
     }
     @Override
     public List<String> listUsers(String token) throws RemoteException {
-        String username = activeTokens.get(token);
-        if (username == null) return List.of("Access Denied: Invalid token");
-        User user = users.get(username);
-        if (!"manager".equals(user.role)) return List.of("Access Denied: Not a manager");
+        AuthToken requester = liveSession(token);
+        if (requester == null) return List.of("Access Denied: Invalid token");
+        if (!requester.isManager()) return List.of("Access Denied: Not a manager");
 
         List<String> result = new ArrayList<>();
         for (User u : users.values()) {
@@ -56,12 +59,19 @@ public class AuthServicesImpl   extends UnicastRemoteObject implements AuthServi
     }
     @Override
     public boolean hasPermission(String token, String action, String department) throws RemoteException {
-        String username = activeTokens.get(token);
-        if (username == null) return false;
-        User user = users.get(username);
-        if (user == null) return false;
-        if (user.role.equals("manager")) return true;
-        return user.department.trim().equalsIgnoreCase(department.trim()) &&
-                List.of("add", "edit", "delete", "view").contains(action.toLowerCase());
+        AuthToken claims = liveSession(token);
+        return claims != null && claims.allows(action, department);
+    }
+    public String sessionMetrics() {
+        return sessions.metrics();
+    }
+    public void shutdown() {
+        sessions.close();
+    }
+    // Signature and expiry come from the token itself; idle timeout, logout and who the session
+    // belongs to come from the session store, so claims re-sealed onto another session id don't pass
+    private AuthToken liveSession(String token) {
+        AuthToken claims = AuthToken.verify(token);
+        return claims != null && sessions.touch(claims.sessionId, claims.username, claims.role, claims.department) ? claims : null;
     }
 }
@@ -0,0 +1,172 @@
+package server.services.auth;
+
+import server.utility.TimingWheel;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Live login sessions on the coordinator, bounded three ways: a session ends after `idleTtl`
+// without use, after `absoluteTtl` no matter what, and a user's oldest session is dropped when
+// they exceed `maxPerUser`. Each session has one pending timeout on a timing wheel (O(1) to
+// schedule and fire); when it fires early because the session was used, it is simply re-armed
+// for the next possible deadline.
+public class SessionStore {
+
+    private static final class Session {
+        final String id;
+        final String username;
+        final String role;
+        final String department;
+        final long absoluteDeadline;
+        volatile long lastSeen;
+        volatile TimingWheel.Timeout expiry;
+
+        Session(String id, String username, String role, String department, long now, long absoluteTtl) {
+            this.id = id;
+            this.username = username;
+            this.role = role;
+            this.department = department;
+            this.absoluteDeadline = now + absoluteTtl;
+            this.lastSeen = now;
+        }
+    }
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Deque<Session>> byUser = new ConcurrentHashMap<>();
+    private final TimingWheel wheel = new TimingWheel("SessionExpiry", 1000, 512);
+    private final SecureRandom random = new SecureRandom();
+    private final long idleTtl;
+    private final long absoluteTtl;
+    private final int maxPerUser;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong expiredIdle = new AtomicLong();
+    private final AtomicLong expiredAbsolute = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong loggedOut = new AtomicLong();
+    private String lastReport = "";
+
+    public SessionStore(long idleTtl, long absoluteTtl, int maxPerUser, long reportInterval) {
+        this.idleTtl = idleTtl;
+        this.absoluteTtl = absoluteTtl;
+        this.maxPerUser = maxPerUser;
+        wheel.start();
+        report(reportInterval);
+    }
+
+    // The session remembers who it was opened for, so a token can't be re-sealed with other claims
+    public String create(String username, String role, String department) {
+        byte[] idBytes = new byte[16];
+        random.nextBytes(idBytes);
+        long now = System.currentTimeMillis();
+        Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes), username, role,
+                department, now, absoluteTtl);
+        sessions.put(session.id, session);
+        created.incrementAndGet();
+        // Per-user bookkeeping happens inside compute, so it is atomic per user
+        byUser.compute(username, (k, userSessions) -> {
+            if (userSessions == null) userSessions = new ConcurrentLinkedDeque<>();
+            userSessions.addLast(session);
+            while (userSessions.size() > maxPerUser) {
+                Session oldest = userSessions.pollFirst();
+                if (sessions.remove(oldest.id, oldest)) {
+                    evicted.incrementAndGet();
+                    cancel(oldest);
+                }
+            }
+            return userSessions;
+        });
+        arm(session, Math.min(idleTtl, absoluteTtl));
+        return session.id;
+    }
+
+    // Marks the session as used; false if it has ended or was opened for a different user, role or department
+    public boolean touch(String id, String username, String role, String department) {
+        Session session = id == null ? null : sessions.get(id);
+        if (session == null) return false;
+        if (!session.username.equals(username) || !session.role.equals(role) || !session.department.equals(department)) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= session.absoluteDeadline || now - session.lastSeen >= idleTtl) {
+            return false; // the wheel removes it on its next pass
+        }
+        session.lastSeen = now;
+        return true;
+    }
+
+    public boolean invalidate(String id) {
+        Session session = id == null ? null : sessions.remove(id);
+        if (session == null) return false;
+        cancel(session);
+        forget(session);
+        loggedOut.incrementAndGet();
+        return true;
+    }
+
+    public int liveSessions() {
+        return sessions.size();
+    }
+
+    public int sessionsOf(String username) {
+        Deque<Session> userSessions = byUser.get(username);
+        return userSessions == null ? 0 : userSessions.size();
+    }
+
+    public String metrics() {
+        return "live=" + sessions.size() + " users=" + byUser.size() + " created=" + created.get() +
+                " expiredIdle=" + expiredIdle.get() + " expiredAbsolute=" + expiredAbsolute.get() +
+                " evicted=" + evicted.get() + " loggedOut=" + loggedOut.get();
+    }
+
+    public void close() {
+        wheel.stop();
+    }
+
+    // Logs the counters periodically, but only when they moved
+    private void report(long interval) {
+        wheel.schedule(() -> {
+            String current = metrics();
+            if (!current.equals(lastReport)) {
+                System.out.println("[AUTH] Sessions: " + current);
+                lastReport = current;
+            }
+            report(interval);
+        }, interval);
+    }
+
+    private void arm(Session session, long delay) {
+        session.expiry = wheel.schedule(() -> expire(session), delay);
+    }
+
+    private static void cancel(Session session) {
+        TimingWheel.Timeout expiry = session.expiry;
+        if (expiry != null) expiry.cancel();
+    }
+
+    private void expire(Session session) {
+        if (sessions.get(session.id) != session) return; // logged out or evicted meanwhile
+        long now = System.currentTimeMillis();
+        if (now >= session.absoluteDeadline) {
+            if (sessions.remove(session.id, session)) expiredAbsolute.incrementAndGet();
+            forget(session);
+        } else if (now - session.lastSeen >= idleTtl) {
+            if (sessions.remove(session.id, session)) expiredIdle.incrementAndGet();
+            forget(session);
+        } else {
+            arm(session, Math.min(session.lastSeen + idleTtl, session.absoluteDeadline) - now);
+        }
+    }
+
+    private void forget(Session session) {
+        byUser.computeIfPresent(session.username, (k, userSessions) -> {
+            userSessions.remove(session);
+            return userSessions.isEmpty() ? null : userSessions;
+        });
+    }
+}
@@ -0,0 +1,164 @@
+package server.services.file_operations;
+
+import server.utility.Config;
+import server.utility.LoadBalancer;
+import server.utility.ClusterView;
+import server.utility.NodeBusyException;
+import server.utility.NodeInfo;
+import server.utility.NodeReply;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.*;
+
+// One chunked download to a client. A reader task streams the file from a replica node into a
+// small bounded queue ahead of the client's read() calls. If the node drops mid-file, the reader
+// resumes from the same offset on the next replica, so the client sees one continuous stream, as
+// long as that replica holds the same version.
+class DownloadSession {
+    private static final byte[] END = new byte[0];
+    private static final byte[] FAILED = new byte[0];
+
+    final String department;
+    final String filename;
+    private final List<Integer> replicas; // preference order
+    private final ClusterView nodes;
+    private final LoadBalancer loadBalancer;
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(Config.TRANSFER_QUEUE_CHUNKS);
+    private final CompletableFuture<Long> size = new CompletableFuture<>();
+    private long version = -1; // of the replica the stream started on; only the reader task uses it
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean closed;
+    private volatile Socket current;
+    private Future<?> reader;
+
+    private DownloadSession(String department, String filename, List<Integer> replicas,
+                            ClusterView nodes, LoadBalancer loadBalancer) {
+        this.department = department;
+        this.filename = filename;
+        this.replicas = replicas;
+        this.nodes = nodes;
+        this.loadBalancer = loadBalancer;
+    }
+
+    // Starts streaming from the first replica that has the file; returns null if none does.
+    static DownloadSession open(String department, String filename, List<Integer> replicas,
+                                ClusterView nodes, LoadBalancer loadBalancer, ExecutorService executor) {
+        DownloadSession session = new DownloadSession(department, filename, replicas, nodes, loadBalancer);
+        session.reader = executor.submit(session::pump);
+        try {
+            if (session.size.get(Config.REPLICATE_TIMEOUT, TimeUnit.MILLISECONDS) >= 0) {
+                return session;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // fall through
+        }
+        session.close();
+        return null;
+    }
+
+    long size() {
+        return size.getNow(-1L);
+    }
+
+    // Next chunk, an empty array at end of file, or null if the file could not be read.
+    byte[] read() throws InterruptedException {
+        lastActivity = System.currentTimeMillis();
+        byte[] chunk = chunks.poll(Config.TRANSFER_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        lastActivity = System.currentTimeMillis();
+        if (chunk == null || chunk == FAILED) return null;
+        return chunk;
+    }
+
+    void close() {
+        closed = true;
+        Socket socket = current;
+        if (socket != null) closeQuietly(socket);
+        if (reader != null) reader.cancel(true);
+    }
+
+    long idleMillis() {
+        return System.currentTimeMillis() - lastActivity;
+    }
+
+    private void pump() {
+        long offset = 0;
+        try {
+            for (int nodeId : replicas) {
+                if (closed) return;
+                NodeInfo node = nodes.node(nodeId);
+                if (node == null) continue;
+                long start = loadBalancer.onStart(nodeId);
+                boolean measured = false;
+                try (Socket socket = new Socket()) {
+                    current = socket;
+                    int timeout = loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT);
+                    socket.connect(new InetSocketAddress(node.host, node.port), timeout);
+                    socket.setSoTimeout(Config.REPLICATE_TIMEOUT);
+                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                    out.flush();
+                    ObjectInputStream in = NodeReply.open(socket);
+                    out.writeUTF("download");
+                    out.writeUTF(department);
+                    out.writeUTF(filename);
+                    out.writeLong(offset);
+                    out.writeInt(Config.TRANSFER_CHUNK_SIZE);
+                    out.flush();
+
+                    long fileSize = in.readLong();
+                    loadBalancer.onComplete(nodeId, start, true);
+                    measured = true;
+                    if (fileSize < 0) continue; // not on this replica
+                    long replicaVersion = in.readLong();
+                    if (!size.isDone()) {
+                        version = replicaVersion;
+                        size.complete(fileSize);
+                    } else if (fileSize != size.getNow(-1L) || replicaVersion != version) {
+                        // The file was replaced since we started; splicing two versions would corrupt it
+                        System.err.println("[COORDINATOR] Download of " + department + "/" + filename + " changed mid-stream");
+                        break;
+                    }
+
+                    int length;
+                    while ((length = in.readInt()) > 0) {
+                        byte[] chunk = new byte[length];
+                        in.readFully(chunk);
+                        chunks.put(chunk);
+                        offset += length;
+                    }
+                    chunks.put(END);
+                    return;
+                } catch (NodeBusyException e) {
+                    loadBalancer.onBusy(nodeId, start); // nothing was sent yet, the next replica takes over
+                    if (closed) return;
+                } catch (IOException e) {
+                    if (!measured) loadBalancer.onComplete(nodeId, start, false);
+                    if (closed) return;
+                    System.err.println("[COORDINATOR] Download from node " + nodeId + " failed at byte " + offset +
+                            ": " + e.getMessage());
+                } finally {
+                    current = null;
+                }
+            }
+            size.complete(-1L);
+            chunks.put(FAILED);
+        } catch (InterruptedException e) {
+            // closed by the client or the idle sweeper
+        } finally {
+            size.complete(-1L);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package server.services.file_operations;
+
+import server.utility.ClusterView;
+import server.utility.Config;
+import server.utility.FileLocationIndex;
+import server.utility.LoadBalancer;
+import server.utility.NodeBusyException;
+import server.utility.NodeInfo;
+import server.utility.NodeReply;
+import server.utility.ReedSolomon;
+import server.utility.Shard;
+import server.utility.StoragePolicy;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.io.IOException;
+import java.util.*;
+
+// Files of erasure-coded departments (see StoragePolicy): written as k+m Reed-Solomon shards spread
+// so no node holds more than m of them, read back from any k, and repaired shard by shard when a
+// node fails. The location index keeps its meaning (nodes that hold part of the file); which shard
+// is where is only known to the nodes, whose shards describe themselves.
+class ErasureCodedStore {
+    static final long NOT_CODED = -2; // repair(): no shards found, the file is stored as replicas
+
+    interface Placement {
+        List<Integer> order(ClusterView view, List<Integer> candidates);
+    }
+
+    private final FileLocationIndex locationIndex;
+    private final LoadBalancer loadBalancer;
+    private final Placement placement;
+
+    ErasureCodedStore(FileLocationIndex locationIndex, LoadBalancer loadBalancer, Placement placement) {
+        this.locationIndex = locationIndex;
+        this.loadBalancer = loadBalancer;
+        this.placement = placement;
+    }
+
+    // Encodes and stores the file as `version`, replacing any older version. The older shards are only
+    // deleted once every new shard is stored; if one can't be placed the new shards are removed
+    // again and false is returned, leaving the previous version as it was. Also false, without
+    // storing anything, if there are too few active nodes for the policy; the caller then stores replicas.
+    boolean write(String department, String filename, byte[] content, long version, StoragePolicy policy, ClusterView view) {
+        List<Integer> order = placement.order(view, view.activeNodes());
+        if (order.size() < policy.minNodes()) {
+            System.out.println("[COORDINATOR] Only " + order.size() + " active nodes, storing " + department + "/" +
+                    filename + " as replicas instead of " + policy.dataShards() + "+" + policy.parityShards() + " shards");
+            return false;
+        }
+        ReedSolomon codec = new ReedSolomon(policy.dataShards(), policy.parityShards());
+        byte[][] pieces = codec.encode(content);
+        Map<Integer, Integer> perNode = new HashMap<>();
+        long locations = 0L;
+        for (int index = 0; index < pieces.length; index++) {
+            Shard shard = new Shard(version, policy.dataShards(), policy.parityShards(), index, content.length, pieces[index]);
+            int node = place(department, filename, shard, order, index, perNode, policy.parityShards(), view);
+            if (node < 0) {
+                System.err.println("[COORDINATOR] Could not place shard " + index + " of " + department + "/" + filename);
+                for (int nodeId : view.activeAmong(locations)) {
+                    deleteShards(nodeId, view.node(nodeId), department, filename, version, version + 1);
+                }
+                return false;
+            }
+            locations |= FileLocationIndex.bit(node);
+        }
+        // Every new shard is stored: drop the older versions, wherever they are
+        long previous = locationIndex.nodes(department, filename);
+        for (int nodeId : view.activeAmong(previous | locations)) {
+            deleteShards(nodeId, view.node(nodeId), department, filename, Long.MIN_VALUE, version);
+        }
+        locationIndex.setLocations(department, filename, locations);
+        System.out.println("[COORDINATOR] Stored " + department + "/" + filename + " as " + policy.dataShards() + "+" +
+                policy.parityShards() + " shards of " + pieces[0].length + " bytes on " + Long.bitCount(locations) + " nodes");
+        return true;
+    }
+
+    // The file, rebuilt from any k shards of its newest complete version; null if no shards were found or too few
+    byte[] read(String department, String filename, ClusterView view) {
+        Map<Long, Shard[]> versions = collect(department, filename, view, -1, true);
+        Shard[] best = complete(versions);
+        if (best == null) {
+            if (!versions.isEmpty()) {
+                System.err.println("[COORDINATOR] Not enough shards left to rebuild " + department + "/" + filename);
+            }
+            return null;
+        }
+        Shard any = first(best);
+        ReedSolomon codec = new ReedSolomon(any.dataShards, any.parityShards);
+        byte[][] pieces = new byte[best.length][];
+        int missing = 0;
+        for (int i = 0; i < best.length; i++) {
+            if (best[i] != null) pieces[i] = best[i].data;
+            else if (i < any.dataShards) missing++;
+        }
+        if (missing > 0) {
+            System.out.println("[COORDINATOR] Decoding " + department + "/" + filename + " from parity, " + missing + " data shards missing");
+        }
+        return codec.decode(pieces, any.fileLength);
+    }
+
+    // Recreates the shards the failed node held on other active nodes. Returns the bytes written,
+    // -1 if too few shards survive, or NOT_CODED if the survivors hold no shards of the file.
+    long repair(String department, String filename, int failedNodeId, ClusterView view) {
+        Map<Long, Shard[]> versions = collect(department, filename, view, failedNodeId, false);
+        if (versions.isEmpty()) return NOT_CODED;
+        Shard[] best = complete(versions);
+        if (best == null) {
+            System.err.println("[COORDINATOR] Failed to repair " + department + "/" + filename + ": fewer than k shards survive");
+            return -1;
+        }
+        Shard any = first(best);
+        ReedSolomon codec = new ReedSolomon(any.dataShards, any.parityShards);
+        byte[][] pieces = new byte[best.length][];
+        for (int i = 0; i < best.length; i++) {
+            if (best[i] != null) pieces[i] = best[i].data;
+        }
+        codec.reconstruct(pieces);
+
+        // Shards per surviving node, so the repaired ones keep to at most m per node
+        long survivors = locationIndex.nodes(department, filename) & ~FileLocationIndex.bit(failedNodeId);
+        Map<Integer, Integer> perNode = new HashMap<>();
+        for (Map.Entry<Integer, List<Integer>> entry : holders(department, filename, view, survivors, any.version).entrySet()) {
+            perNode.put(entry.getKey(), entry.getValue().size());
+        }
+        List<Integer> candidates = new ArrayList<>(view.activeNodes());
+        candidates.remove(Integer.valueOf(failedNodeId));
+        List<Integer> order = placement.order(view, candidates);
+        // Nodes without a shard of this file first
+        order.sort(Comparator.comparingInt(nodeId -> perNode.getOrDefault(nodeId, 0)));
+
+        long written = 0;
+        for (int i = 0; i < best.length; i++) {
+            if (best[i] != null) continue;
+            Shard shard = new Shard(any.version, any.dataShards, any.parityShards, i, any.fileLength, pieces[i]);
+            int node = place(department, filename, shard, order, 0, perNode, any.parityShards, view);
+            if (node < 0) {
+                System.err.println("[COORDINATOR] No node can take shard " + i + " of " + department + "/" + filename);
+                return -1;
+            }
+            locationIndex.addLocation(department, filename, node);
+            written += shard.data.length;
+        }
+        locationIndex.removeLocation(department, filename, failedNodeId);
+        System.out.println("[COORDINATOR] Repaired " + department + "/" + filename + " (" + written + " shard bytes)");
+        return written;
+    }
+
+    // Deletes the shards on every node that holds some; returns how many were removed
+    int delete(String department, String filename, ClusterView view) {
+        int deleted = 0;
+        for (int nodeId : view.activeAmong(locationIndex.nodes(department, filename))) {
+            deleted += Math.max(0, deleteShards(nodeId, view.node(nodeId), department, filename, Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+        return deleted;
+    }
+
+    // Tries nodes round-robin from `start` in `order`, skipping those that already hold `limit` shards
+    private int place(String department, String filename, Shard shard, List<Integer> order, int start,
+                      Map<Integer, Integer> perNode, int limit, ClusterView view) {
+        for (int i = 0; i < order.size(); i++) {
+            int nodeId = order.get((start + i) % order.size());
+            if (perNode.getOrDefault(nodeId, 0) >= limit) continue;
+            if (putShard(nodeId, view.node(nodeId), department, filename, shard)) {
+                perNode.merge(nodeId, 1, Integer::sum);
+                return nodeId;
+            }
+        }
+        return -1;
+    }
+
+    // version -> shards by index, from active nodes in the file's locations (minus `excluded`).
+    // With stopEarly, stops asking nodes once some version has k shards; while a write is between
+    // storing its shards and pruning the old ones, that can still be the previous version.
+    private Map<Long, Shard[]> collect(String department, String filename, ClusterView view, int excluded, boolean stopEarly) {
+        Map<Long, Shard[]> versions = new HashMap<>();
+        List<Integer> nodes = view.activeAmong(locationIndex.nodes(department, filename));
+        for (int nodeId : loadBalancer.chooseDistinct(nodes, nodes.size())) {
+            if (nodeId == excluded) continue;
+            for (Shard shard : getShards(nodeId, view.node(nodeId), department, filename)) {
+                Shard[] byIndex = versions.computeIfAbsent(shard.version, v -> new Shard[shard.dataShards + shard.parityShards]);
+                if (shard.index >= 0 && shard.index < byIndex.length) byIndex[shard.index] = shard;
+            }
+            if (stopEarly && complete(versions) != null) break;
+        }
+        return versions;
+    }
+
+    // The newest version with at least k shards
+    private static Shard[] complete(Map<Long, Shard[]> versions) {
+        Shard[] best = null;
+        long bestVersion = Long.MIN_VALUE;
+        for (Map.Entry<Long, Shard[]> entry : versions.entrySet()) {
+            Shard[] byIndex = entry.getValue();
+            int count = 0;
+            for (Shard shard : byIndex) if (shard != null) count++;
+            if (count >= first(byIndex).dataShards && (best == null || entry.getKey() > bestVersion)) {
+                best = byIndex;
+                bestVersion = entry.getKey();
+            }
+        }
+        return best;
+    }
+
+    private static Shard first(Shard[] byIndex) {
+        for (Shard shard : byIndex) if (shard != null) return shard;
+        return null;
+    }
+
+    // node -> indexes of `version` it holds
+    private Map<Integer, List<Integer>> holders(String department, String filename, ClusterView view, long nodes, long version) {
+        Map<Integer, List<Integer>> holders = new HashMap<>();
+        for (int nodeId : view.activeAmong(nodes)) {
+            for (Shard shard : getShards(nodeId, view.node(nodeId), department, filename)) {
+                if (shard.version == version) holders.computeIfAbsent(nodeId, k -> new ArrayList<>()).add(shard.index);
+            }
+        }
+        return holders;
+    }
+
+    private interface Arguments {
+        void write(ObjectOutputStream out) throws IOException;
+    }
+
+    private boolean putShard(int nodeId, NodeInfo node, String department, String filename, Shard shard) {
+        return Boolean.TRUE.equals(call(nodeId, node, "putShard", department, filename, out -> out.writeObject(shard)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Shard> getShards(int nodeId, NodeInfo node, String department, String filename) {
+        Object reply = call(nodeId, node, "getShards", department, filename, out -> {});
+        return reply instanceof List ? (List<Shard>) reply : List.of();
+    }
+
+    // Deletes the node's shards with fromVersion <= version < toVersion
+    private int deleteShards(int nodeId, NodeInfo node, String department, String filename, long fromVersion, long toVersion) {
+        Object reply = call(nodeId, node, "deleteShards", department, filename, out -> {
+            out.writeLong(fromVersion);
+            out.writeLong(toVersion);
+        });
+        return reply instanceof Integer deleted ? deleted : -1;
+    }
+
+    // One shard request; the node's reply (Boolean, List<Shard> or Integer), or null if it failed
+    private Object call(int nodeId, NodeInfo node, String action, String department, String filename, Arguments arguments) {
+        if (node == null) return null;
+        long started = loadBalancer.onStart(nodeId);
+        boolean completed = false;
+        boolean busy = false;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT));
+            socket.setSoTimeout(Config.SOCKET_TIMEOUT); // shards are bulk data, so not the latency-derived timeout
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF(action);
+            out.writeUTF(department);
+            out.writeUTF(filename);
+            arguments.write(out);
+            out.flush();
+            Object reply = switch (action) {
+                case "putShard" -> in.readBoolean();
+                case "deleteShards" -> in.readInt();
+                default -> in.readObject();
+            };
+            completed = true;
+            return reply;
+        } catch (NodeBusyException e) {
+            busy = true;
+            return null;
+        } catch (Exception e) {
+            System.err.println("[COORDINATOR] " + action + " " + department + "/" + filename + " on node " + nodeId +
+                    " failed: " + e.getMessage());
+            return null;
+        } finally {
+            if (busy) loadBalancer.onBusy(nodeId, started);
+            else loadBalancer.onComplete(nodeId, started, completed);
+        }
+    }
+}
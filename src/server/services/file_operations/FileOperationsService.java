@@ -1,5 +1,10 @@
 package server.services.file_operations;
 
+import server.utility.BlockSignatures;
+import server.utility.FileDelta;
+import server.utility.FilePage;
+import server.utility.TransferGrant;
+
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
@@ -8,7 +13,26 @@ public interface FileOperationsService extends Remote {
     boolean sendFileCommand(String token, String action, String filename, String department, byte[] content) throws RemoteException;
     byte[]  requestFile(String token, String filename, String department) throws RemoteException;
     List<String> listFiles(String token, String department) throws RemoteException;
+    FilePage listFilesPage(String token, String department, String prefix, int pageSize, String continuationToken) throws RemoteException;
+    // Chunked transfers: the file never has to fit in one RMI call
+    String openUpload(String token, String filename, String department) throws RemoteException;
+    boolean writeChunk(String uploadId, byte[] chunk) throws RemoteException;
+    boolean commitUpload(String uploadId) throws RemoteException;
+    void abortUpload(String uploadId) throws RemoteException;
+    String openDownload(String token, String filename, String department) throws RemoteException;
+    byte[] readChunk(String downloadId) throws RemoteException;
+    void closeDownload(String downloadId) throws RemoteException;
+    // Direct transfers: the coordinator hands out node locations and signed tickets, the client
+    // moves the bytes to/from the nodes itself and confirms uploads with the nodes' receipts
+    TransferGrant grantUpload(String token, String filename, String department) throws RemoteException;
+    boolean confirmUpload(String token, String filename, String department, List<String> receipts) throws RemoteException;
+    TransferGrant grantDownload(String token, String filename, String department) throws RemoteException;
+    // Delta edits: the client diffs its new content against the stored version's block signatures
+    // and sends only the changed blocks; false from applyDelta means "send the whole file instead"
+    BlockSignatures editSignatures(String token, String filename, String department) throws RemoteException;
+    boolean applyDelta(String token, String filename, String department, FileDelta delta) throws RemoteException;
     boolean lockFileForEdit(String token, String filename, String department) throws RemoteException;
+    boolean renewFileEditLock(String token, String filename, String department) throws RemoteException;
     boolean unlockFileForEdit(String token, String filename, String department) throws RemoteException;
 }
 
@@ -1,264 +1,476 @@
 package server.services.file_operations;
 import server.services.auth.AuthServices;
+import server.services.membership.MembershipService;
+import server.utility.BlockSignatures;
+import server.utility.ClusterView;
 import server.utility.Config;
+import server.utility.FileDelta;
+import server.utility.FileLocationIndex;
+import server.utility.FilePage;
+import server.utility.HeartbeatMonitor;
+import server.utility.LeaseTable;
 import server.utility.LoadBalancer;
+import server.utility.Membership;
 import server.utility.NodeInfo;
+import server.utility.NodeBusyException;
+import server.utility.NodeLoadReport;
+import server.utility.NodeReply;
+import server.utility.PlacementScorer;
+import server.utility.RateLimiter;
+import server.utility.Rebalancer;
+import server.utility.RecoveryPipeline;
+import server.utility.SortedMerge;
+import server.utility.StoragePolicy;
+import server.utility.TimingWheel;
+import server.utility.TransferGrant;
+import server.utility.TransferTicket;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import static server.utility.Config.HEALTH_CHECK_INTERVAL;
-import static server.utility.Config.LOAD_UPDATE_INTERVAL;
-public class FileOperationsServiceImpl extends UnicastRemoteObject implements FileOperationsService {
-    private final Map<String, String> fileLocationMap = new ConcurrentHashMap<>();
-    private final Map<Integer, NodeInfo> nodeInfoMap = new ConcurrentHashMap<>();
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+public class FileOperationsServiceImpl extends UnicastRemoteObject implements FileOperationsService, MembershipService, HeartbeatMonitor.Listener, Rebalancer.Cluster {
+    private final FileLocationIndex locationIndex = new FileLocationIndex(Config.INDEX_DIR);
+    private final Membership membership = new Membership(Config.INDEX_DIR);
     private final LoadBalancer loadBalancer = new LoadBalancer();
-    private Timer loadUpdateTimer;
-    private Timer healthCheckTimer;
-    private final Map<Integer, Long> lastSuccessfulHealthCheck = new ConcurrentHashMap<>();
+    private final HeartbeatMonitor heartbeatMonitor = new HeartbeatMonitor(this);
     private final Map<Integer, Long> lastSuccessfulLoadUpdate = new ConcurrentHashMap<>();
-    private final Map<Integer, Integer> consecutiveFailures = new ConcurrentHashMap<>();
-    private final Map<Integer, Boolean> nodeRecoveryInProgress = new ConcurrentHashMap<>();
-    private final Map<String, String> fileEditLocks = new ConcurrentHashMap<>();
+    private final Map<Integer, RecoveryPipeline> activeRecoveries = new ConcurrentHashMap<>();
+    private final RateLimiter recoveryBandwidth = new RateLimiter(Config.RECOVERY_BANDWIDTH);
+    private final Rebalancer rebalancer = new Rebalancer(locationIndex, this, new RateLimiter(Config.REBALANCE_BANDWIDTH));
+    private final LeaseTable editLeases = new LeaseTable("EditLease", Config.EDIT_LEASE_TTL);
+    private final ErasureCodedStore erasureCoded = new ErasureCodedStore(locationIndex, loadBalancer,
+            (view, candidates) -> placementTargets(view, candidates, candidates.size()));
+    private final AtomicLong lastVersion = new AtomicLong();
+    private final Set<String> readRepairs = ConcurrentHashMap.newKeySet();
+    private final Map<String, UploadSession> uploads = new ConcurrentHashMap<>();
+    private final Map<String, DownloadSession> downloads = new ConcurrentHashMap<>();
+    private final TimingWheel transferSweeper = new TimingWheel("TransferSweeper", 500, 64);
+    private final ExecutorService nodeRequestPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "NodeRequest");
+        t.setDaemon(true);
+        return t;
+    });
     private final AuthServices authService;
+    private volatile boolean ready = false;
     public FileOperationsServiceImpl(AuthServices authService) throws RemoteException {
         super();
         this.authService = authService;
+        locationIndex.start();
         initializeNodes();
-        startLoadUpdates();
-        startHealthChecks();
+        rebuildInventory();
+        startHeartbeats();
+        transferSweeper.start();
+        rebalancer.start();
+        ready = true;
+        System.out.println("[COORDINATOR] Ready (" + locationIndex.size() + " files indexed)");
     }
+    public boolean isReady() {
+        return ready;
+    }
+    // Members from the last run; nodes that are new (or were away) register themselves
     private void initializeNodes() {
-        List<String> addresses = List.of("localhost", "localhost", "localhost");
-        List<Integer> ports = List.of(5001, 5002, 5003);
+        for (int nodeId : membership.snapshot().nodes().keySet()) {
+            loadBalancer.addNode(nodeId);
+        }
+    }
+    @Override
+    public synchronized int register(String host, int port, String proof) throws RemoteException {
+        if (!Membership.verifyProof(host, port, proof)) {
+            System.err.println("[COORDINATOR] Rejected registration of " + host + ":" + port + ": bad proof");
+            return -1;
+        }
+        int known = membership.idOf(host, port);
+        boolean alreadyMember = known >= 0 && membership.get(known) != null;
+        int nodeId = membership.join(host, port);
+        if (nodeId < 0) {
+            System.err.println("[COORDINATOR] Rejected registration of " + host + ":" + port + ": all " +
+                    Config.MAX_NODES + " node ids are taken");
+            return -1;
+        }
+        RecoveryPipeline recovery = activeRecoveries.remove(nodeId);
+        if (recovery != null) {
+            recovery.cancel();
+        }
+        if (!alreadyMember) {
+            loadBalancer.addNode(nodeId);
+            heartbeatMonitor.watch(nodeId, membership.get(nodeId));
+        }
+        System.out.println("[COORDINATOR] Node " + nodeId + " " + (alreadyMember ? "re-registered" : "joined") +
+                " at " + host + ":" + port + " (" + membership.size() + " members)");
+        rebalancer.trigger();
+        // Whatever it holds now (possibly files from before it left) becomes known to the index
+        NodeInfo node = membership.get(nodeId);
+        nodeRequestPool.execute(() -> {
+            try {
+                int files = fetchInventory(nodeId, node, new AtomicLong());
+                System.out.println("[COORDINATOR] Inventory of node " + nodeId + ": " + files + " files");
+            } catch (Exception e) {
+                System.err.println("[COORDINATOR] Inventory of node " + nodeId + " failed: " + e.getMessage());
+            }
+        });
+        return nodeId;
+    }
+    // A leaving node is handled like a failed one: its files are re-replicated from their other copies
+    @Override
+    public synchronized boolean deregister(String host, int port, String proof) throws RemoteException {
+        if (!Membership.verifyProof(host, port, proof)) return false;
+        int nodeId = membership.idOf(host, port);
+        NodeInfo node = nodeId < 0 ? null : membership.get(nodeId);
+        if (node == null) return false;
+        heartbeatMonitor.unwatch(nodeId);
+        membership.setActive(nodeId, false);
+        redistributeFilesFromNode(nodeId);
+        membership.leave(nodeId);
+        loadBalancer.removeNode(nodeId);
+        System.out.println("[COORDINATOR] Node " + nodeId + " left (" + membership.size() + " members)");
+        return true;
+    }
+    public String rebalanceMetrics() {
+        return rebalancer.metrics();
+    }
+    // New replicas go by the nodes' load reports (disk, I/O, throughput), skipping open breakers when possible
+    private List<Integer> placementTargets(ClusterView view, List<Integer> candidates, int count) {
+        List<Integer> available = new ArrayList<>(candidates.size());
+        for (int nodeId : candidates) {
+            if (loadBalancer.isAvailable(nodeId)) available.add(nodeId);
+        }
+        return PlacementScorer.DEFAULT.chooseDistinct(view, available.size() >= Math.min(count, candidates.size()) ? available : candidates, count);
+    }
+    // Nodes to write a new version of a file to: its current replicas first, so they are replaced rather
+    // than left behind, then new nodes by placement
+    private List<Integer> writeOrder(ClusterView view, List<Integer> holders) {
+        List<Integer> others = new ArrayList<>(view.activeNodes());
+        others.removeAll(holders);
+        List<Integer> order = new ArrayList<>(placementTargets(view, holders, holders.size()));
+        order.addAll(placementTargets(view, others, others.size()));
+        return order;
+    }
+    private static int writeSlots(ClusterView view, List<Integer> holders) {
+        return Math.min(Math.max(Config.REPLICATION_FACTOR, holders.size()), view.activeNodes().size());
+    }
+    // Unmodifiable and precomputed in the current view, so this does not allocate
+    @Override
+    public List<Integer> activeNodes() {
+        return membership.snapshot().activeNodes();
+    }
+    // Asks every node for its full inventory in parallel and reconciles the location index with it.
+    // Nodes that don't answer keep whatever the persisted index says about them.
+    private void rebuildInventory() {
+        long start = System.currentTimeMillis();
+        AtomicLong filesSeen = new AtomicLong();
+        AtomicInteger nodesDone = new AtomicInteger();
+        int nodeCount = membership.size();
+        System.out.println("[COORDINATOR] Rebuilding file inventory from " + nodeCount + " nodes...");
 
-        for (int i = 0; i < ports.size(); i++) {
-            nodeInfoMap.put(i, new NodeInfo(
-                    addresses.get(i),
-                    ports.get(i),
-                    new AtomicInteger(0),
-                    true
-            ));
-            loadBalancer.addNode(i);
-        }
-    }
-    private void startLoadUpdates() {
-        loadUpdateTimer = new Timer(true);
-        loadUpdateTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nodeCount));
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+        progress.scheduleAtFixedRate(() -> System.out.println("[COORDINATOR] Inventory progress: " +
+                nodesDone.get() + "/" + nodeCount + " nodes, " + filesSeen.get() + " files"), 1, 1, TimeUnit.SECONDS);
+
+        List<Future<?>> tasks = new ArrayList<>();
+        for (Map.Entry<Integer, NodeInfo> entry : membership.snapshot().nodes().entrySet()) {
+            int nodeId = entry.getKey();
+            NodeInfo node = entry.getValue();
+            tasks.add(pool.submit(() -> {
+                long nodeStart = System.currentTimeMillis();
                 try {
-                    updateNodeLoads();
+                    int files = fetchInventory(nodeId, node, filesSeen);
+                    System.out.println("[COORDINATOR] Inventory of node " + nodeId + ": " + files + " files in " +
+                            (System.currentTimeMillis() - nodeStart) + " ms");
                 } catch (Exception e) {
-                    System.err.println("[COORDINATOR] Error updating node loads: " + e.getMessage());
+                    System.err.println("[COORDINATOR] Inventory of node " + nodeId + " failed: " + e.getMessage());
+                } finally {
+                    nodesDone.incrementAndGet();
                 }
+            }));
+        }
+
+        long deadline = start + Config.INVENTORY_TIMEOUT;
+        for (Future<?> task : tasks) {
+            try {
+                task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                task.cancel(true);
+            } catch (Exception e) {
+                // already logged by the task
             }
-        }, 5000, LOAD_UPDATE_INTERVAL); // Start after 5 seconds, then update every LOAD_UPDATE_INTERVAL
-    }
-    private void startHealthChecks() {
-        healthCheckTimer = new Timer(true);
-        healthCheckTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                checkNodeHealth();
-            }
-        }, 0, HEALTH_CHECK_INTERVAL);
+        }
+        pool.shutdownNow();
+        progress.shutdownNow();
+        System.out.println("[COORDINATOR] Inventory rebuild finished: " + nodesDone.get() + "/" + nodeCount +
+                " nodes, " + filesSeen.get() + " files seen, " + locationIndex.size() + " files indexed in " +
+                (System.currentTimeMillis() - start) + " ms");
     }
-    private void updateNodeLoads() {
-        for (int i = 0; i < nodeInfoMap.size(); i++) {
-            NodeInfo node = nodeInfoMap.get(i);
-            if (node != null && node.isActive) {
-                try (Socket socket = new Socket()) {
-                    socket.connect(new InetSocketAddress(node.host, node.port), Config.CONNECTION_TIMEOUT);
-                    socket.setSoTimeout(Config.SOCKET_TIMEOUT);
-                    socket.setKeepAlive(true);
-                    socket.setTcpNoDelay(true);
-                    socket.setReceiveBufferSize(8192);
-                    socket.setSendBufferSize(8192);
-
-                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                    out.flush();
-                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+    // Runs while the service takes writes: files written or deleted after the scan started are left
+    // as those writes set them
+    private int fetchInventory(int nodeId, NodeInfo node, AtomicLong filesSeen) throws Exception {
+        Set<FileLocationIndex.FileKey> present = new HashSet<>();
+        long scan = locationIndex.beginScan();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), Config.CONNECTION_TIMEOUT);
+            socket.setSoTimeout(Config.SOCKET_TIMEOUT);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF("inventory");
+            out.writeInt(Config.INVENTORY_PAGE_SIZE);
+            out.flush();
 
-                    out.writeUTF("getLoad");
-                    out.flush();
-
-                    int load = in.readInt();
-                    if (load != node.currentLoad) {
-                        node.currentLoad = load;
-                        lastSuccessfulLoadUpdate.put(i, System.currentTimeMillis());
-                        System.out.println("[COORDINATOR] Node " + i + " load: " + load + " connections");
-                    }
-                } catch (IOException e) {
-                    System.err.println("[COORDINATOR] Failed to update load for node " + i + ": " + e.getMessage());
-                    // Reset load to 0 if we can't get the load
-                    if (node.currentLoad != 0) {
-                        node.currentLoad = 0;
-                        System.out.println("[COORDINATOR] Reset node " + i + " load to 0 due to connection failure");
-                    }
+            while (in.readBoolean()) {
+                String department = in.readUTF();
+                @SuppressWarnings("unchecked")
+                List<String> page = (List<String>) in.readObject();
+                for (String filename : page) {
+                    locationIndex.addLocationIfUnchanged(department, filename, nodeId, scan);
+                    present.add(new FileLocationIndex.FileKey(department, filename));
                 }
-            } else if (node != null && !node.isActive && node.currentLoad != 0) {
-                // Reset load for inactive nodes
-                node.currentLoad = 0;
-                System.out.println("[COORDINATOR] Reset inactive node " + i + " load to 0");
+                filesSeen.addAndGet(page.size());
             }
+            int stale = locationIndex.retainOnNode(nodeId, present, scan);
+            if (stale > 0) {
+                System.out.println("[COORDINATOR] Dropped " + stale + " stale locations for node " + nodeId);
+            }
+        } finally {
+            locationIndex.endScan();
         }
+        return present.size();
     }
-    private void checkNodeHealth() {
-        for (int i = 0; i < nodeInfoMap.size(); i++) {
-            final int nodeId = i;
-            NodeInfo node = nodeInfoMap.get(nodeId);
-            if (node != null) {
-                try (Socket socket = new Socket()) {
-                    socket.connect(new InetSocketAddress(node.host, node.port), Config.CONNECTION_TIMEOUT);
-                    socket.setSoTimeout(Config.SOCKET_TIMEOUT);
-                    socket.setKeepAlive(true);
-                    socket.setTcpNoDelay(true);
-                    socket.setReceiveBufferSize(8192);
-                    socket.setSendBufferSize(8192);
-
-                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                    out.flush();
-                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-                    out.writeUTF("ping");
-                    out.flush();
-
-                    String response = in.readUTF();
-                    if ("pong".equals(response)) {
-                        if (!node.isActive) {
-                            System.out.println("[COORDINATOR] Node " + nodeId + " is back online");
-                            node.isActive = true;
-                            node.failureCount = 0;
-                            consecutiveFailures.put(nodeId, 0);
-                            nodeRecoveryInProgress.remove(nodeId);
-                        }
-                        lastSuccessfulHealthCheck.put(nodeId, System.currentTimeMillis());
-                    }
-                } catch (IOException e) {
-                    if (node.isActive) {
-                        int failures = consecutiveFailures.getOrDefault(nodeId, 0) + 1;
-                        consecutiveFailures.put(nodeId, failures);
-                        System.err.println("[COORDINATOR] Node " + nodeId + " health check failed: " + e.getMessage() +
-                                " (Consecutive failures: " + failures + ")");
-
-                        if (failures >= Config.MAX_FAILURES) {
-                            System.err.println("[COORDINATOR] Node " + nodeId + " marked as offline after " + failures + " consecutive failures");
-                            node.isActive = false;
-                            node.currentLoad = 0; // Reset load when node goes offline
-                            if (!nodeRecoveryInProgress.getOrDefault(nodeId, false)) {
-                                nodeRecoveryInProgress.put(nodeId, true);
-                                new Thread(() -> redistributeFilesFromNode(nodeId)).start();
-                            }
-                        }
-                    }
-                }
+    public void shutdown() {
+        heartbeatMonitor.shutdown();
+        rebalancer.shutdown();
+        editLeases.close();
+        transferSweeper.stop();
+        uploads.values().forEach(UploadSession::abort);
+        downloads.values().forEach(DownloadSession::close);
+        nodeRequestPool.shutdownNow();
+        locationIndex.close();
+    }
+    private void startHeartbeats() {
+        for (Map.Entry<Integer, NodeInfo> entry : membership.snapshot().nodes().entrySet()) {
+            heartbeatMonitor.watch(entry.getKey(), entry.getValue());
+        }
+        heartbeatMonitor.start();
+    }
+    @Override
+    public void onHeartbeat(int nodeId, NodeLoadReport report) {
+        if (membership.setActive(nodeId, true)) {
+            System.out.println("[COORDINATOR] Node " + nodeId + " is back online");
+            RecoveryPipeline recovery = activeRecoveries.remove(nodeId);
+            if (recovery != null) {
+                recovery.cancel();
             }
+            rebalancer.trigger();
         }
+        loadBalancer.updateReportedLoad(nodeId, report.activeConnections);
+        if (membership.setLoad(nodeId, report)) {
+            lastSuccessfulLoadUpdate.put(nodeId, System.currentTimeMillis());
+        }
+    }
+    @Override
+    public void onNodeSuspected(int nodeId, double phi) {
+        if (!membership.setActive(nodeId, false)) return; // unknown, or already marked offline
+        System.err.println("[COORDINATOR] Node " + nodeId + " marked as offline (phi " + String.format("%.1f", phi) + ")");
+        redistributeFilesFromNode(nodeId);
     }
+    // Starts (or resumes from its checkpoint) the recovery pipeline for a failed node; returns immediately.
     private void redistributeFilesFromNode(int failedNodeId) {
-        NodeInfo failedNode = nodeInfoMap.get(failedNodeId);
-        if (failedNode == null) return;
-
-        String failedNodeAddress = failedNode.host + ":" + failedNode.port;
-        List<String> filesToRedistribute = new ArrayList<>();
-
-        // Find all files stored on the failed node (may be in a list of locations)
-        for (Map.Entry<String, String> entry : fileLocationMap.entrySet()) {
-            String[] locations = entry.getValue().split(",");
-            for (String loc : locations) {
-                if (loc.equals(failedNodeAddress)) {
-                    filesToRedistribute.add(entry.getKey());
-                    break;
-                }
+        if (membership.get(failedNodeId) == null) return;
+        RecoveryPipeline pipeline = new RecoveryPipeline(failedNodeId, this::recoverFile,
+                Config.RECOVERY_PARALLELISM, Config.INDEX_DIR);
+        if (activeRecoveries.putIfAbsent(failedNodeId, pipeline) != null) return; // already recovering
+        pipeline.finished().thenRun(() -> activeRecoveries.remove(failedNodeId, pipeline));
+        pipeline.start(locationIndex.filesOnNode(failedNodeId), key -> survivingReplicas(key, failedNodeId));
+    }
+    private int survivingReplicas(FileLocationIndex.FileKey key, int failedNodeId) {
+        long survivors = locationIndex.nodes(key.department(), key.filename()) & ~FileLocationIndex.bit(failedNodeId);
+        return Long.bitCount(survivors & membership.snapshot().activeMask());
+    }
+    // Brings one file of the failed node back to REPLICATION_FACTOR active copies.
+    // Returns the bytes sent to new replicas, or -1 if no surviving copy could be read.
+    private long recoverFile(FileLocationIndex.FileKey key, int failedNodeId) throws InterruptedException {
+        String department = key.department();
+        String filename = key.filename();
+        if (StoragePolicy.forDepartment(department).erasureCoded()) {
+            long repaired = erasureCoded.repair(department, filename, failedNodeId, membership.snapshot());
+            if (repaired != ErasureCodedStore.NOT_CODED) {
+                if (repaired > 0) recoveryBandwidth.acquire(repaired);
+                return repaired;
             }
         }
+        long survivors = locationIndex.nodes(department, filename) & ~FileLocationIndex.bit(failedNodeId);
 
-        System.out.println("[COORDINATOR] Attempting to recover " + filesToRedistribute.size() + " files from failed node " + failedNodeId);
+        ClusterView view = membership.snapshot();
+        List<Integer> activeSurvivors = view.activeAmong(survivors);
+        List<Integer> targets = view.activeAmong(~survivors & ~FileLocationIndex.bit(failedNodeId));
+        if (activeSurvivors.isEmpty()) {
+            System.err.println("[COORDINATOR] Failed to recover file " + filename + ": no active node holds a copy");
+            return -1;
+        }
+        int needed = Config.REPLICATION_FACTOR - activeSurvivors.size();
+        if (needed <= 0) {
+            locationIndex.removeLocation(department, filename, failedNodeId);
+            return 0;
+        }
 
-        for (String fileKey : filesToRedistribute) {
-            String[] parts = fileKey.split("/");
-            String department = parts[0];
-            String filename = parts[1];
-            byte[] data = null;
-            // Try to get file from any other node that has it
-            String[] locations = fileLocationMap.get(fileKey).split(",");
-            for (String loc : locations) {
-                if (!loc.equals(failedNodeAddress)) {
-                    String[] hostPort = loc.split(":");
-                    String host = hostPort[0];
-                    int port = Integer.parseInt(hostPort[1]);
-                    try (Socket socket = new Socket()) {
-                        socket.connect(new InetSocketAddress(host, port), Config.CONNECTION_TIMEOUT);
-                        socket.setSoTimeout(Config.SOCKET_TIMEOUT);
-                        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                        out.writeUTF("fetch");
-                        out.writeUTF(department);
-                        out.writeUTF(filename);
-                        out.flush();
-                        data = (byte[]) in.readObject();
-                        if (data != null && data.length > 0) {
-                            System.out.println("[COORDINATOR] Recovered file " + filename + " from backup node " + host + ":" + port);
-                            break;
-                        }
-                    } catch (Exception e) {
-                        System.err.println("[COORDINATOR] Failed to recover file " + filename + " from backup node " + host + ":" + port);
-                    }
+        // Survivors push the file to the new replicas themselves; the coordinator only directs
+        long sent = 0;
+        int placed = 0;
+        List<Integer> sources = loadBalancer.chooseDistinct(activeSurvivors, activeSurvivors.size());
+        boolean anySourceWorked = false;
+        for (int nodeId : placementTargets(view, targets, targets.size())) {
+            if (placed >= needed) break;
+            for (int sourceId : sources) {
+                long bytes = replicateBetweenNodes(sourceId, nodeId, department, filename);
+                if (bytes >= 0) {
+                    anySourceWorked = true;
+                    locationIndex.addLocation(department, filename, nodeId);
+                    recoveryBandwidth.acquire(bytes); // charged afterwards; the limiter carries the debt
+                    sent += bytes;
+                    placed++;
+                    System.out.println("[COORDINATOR] Successfully redistributed file " + filename + " from node " +
+                            sourceId + " to node " + nodeId);
+                    break;
                 }
             }
-            // If recovered, redistribute to another active node
-            if (data != null && data.length > 0) {
-                Set<String> updatedLocs = new HashSet<>(Arrays.asList(locations));
-                updatedLocs.remove(failedNodeAddress); // Remove the failed one
-
-                for (int i = 0; i < nodeInfoMap.size(); i++) {
-                    if (i != failedNodeId) {
-                        NodeInfo node = nodeInfoMap.get(i);
-                        if (node != null && node.isActive) {
-                            String newLoc = node.host + ":" + node.port;
-
-                            // ✅ Avoid re-sending to a node that already has the file
-                            if (updatedLocs.contains(newLoc)) continue;
-
-                            try (Socket newSocket = new Socket()) {
-                                newSocket.connect(new InetSocketAddress(node.host, node.port), Config.CONNECTION_TIMEOUT);
-                                newSocket.setSoTimeout(Config.SOCKET_TIMEOUT);
-                                ObjectOutputStream newOut = new ObjectOutputStream(newSocket.getOutputStream());
-                                ObjectInputStream newIn = new ObjectInputStream(newSocket.getInputStream());
-                                newOut.writeUTF("add");
-                                newOut.writeUTF(department);
-                                newOut.writeUTF(filename);
-                                newOut.writeObject(data);
-                                newOut.flush();
-                                boolean success = newIn.readBoolean();
-                                if (success) {
-                                    updatedLocs.add(newLoc);
-                                    System.out.println("[COORDINATOR] Successfully redistributed file " + filename + " to node " + i);
-                                } else {
-                                    System.err.println("[COORDINATOR] Node " + i + " failed to accept file " + filename);
-                                }
-                            } catch (Exception e) {
-                                System.err.println("[COORDINATOR] Failed to redistribute file " + filename + " to node " + i);
-                            }
-                        }
-                    }
-                }
-
-                // 🔄 Update fileLocationMap after all attempts
-                fileLocationMap.put(fileKey, String.join(",", updatedLocs));
+        }
+        if (!anySourceWorked && !targets.isEmpty()) {
+            System.err.println("[COORDINATOR] Failed to recover file " + filename + " from any backup node");
+            return -1;
+        }
+        locationIndex.removeLocation(department, filename, failedNodeId);
+        return sent;
+    }
+    @Override
+    public boolean isRecovering() {
+        return !activeRecoveries.isEmpty();
+    }
+    @Override
+    public boolean isBusy(FileLocationIndex.FileKey key) {
+        // Shards are placed by the store itself; the rebalancer only moves whole replicas
+        if (StoragePolicy.forDepartment(key.department()).erasureCoded()) return true;
+        return editLeases.holder(key.department() + "/" + key.filename()) != null;
+    }
+    @Override
+    public long diskUsage(int nodeId) {
+        NodeInfo node = membership.get(nodeId);
+        if (node == null) return -1;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT));
+            socket.setSoTimeout(Config.SOCKET_TIMEOUT);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF("usage");
+            out.flush();
+            return in.readLong();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+    // Rebalancer move: copy, add the new location, and only then take the old one out of the index
+    // and off the node, so reads keep working from the old copy throughout. A write or delete that
+    // lands during the copy can't see the new copy yet, so then the move is given up instead.
+    @Override
+    public long move(FileLocationIndex.FileKey key, int from, int to) {
+        String department = key.department();
+        String filename = key.filename();
+        long scan = locationIndex.beginScan();
+        try {
+            // Checked after beginScan, so a removal from here on shows up in addLocationIfUnchanged
+            if ((locationIndex.nodes(department, filename) & FileLocationIndex.bit(from)) == 0) return -1;
+            long bytes = replicateBetweenNodes(from, to, department, filename);
+            if (bytes < 0) return -1;
+            // Someone started editing meanwhile, or the file changed; the copy may already be stale
+            if (isBusy(key) || !locationIndex.addLocationIfUnchanged(department, filename, to, scan)) {
+                deleteOnNode(to, department, filename);
+                return -1;
             }
-            else {
-                System.err.println("[COORDINATOR] Failed to recover file " + filename + " from any backup node");
+            locationIndex.removeLocation(department, filename, from);
+            if (!deleteOnNode(from, department, filename)) {
+                System.err.println("[REBALANCE] Moved " + department + "/" + filename + " to node " + to +
+                        " but could not delete it from node " + from);
             }
+            return bytes;
+        } finally {
+            locationIndex.endScan();
+        }
+    }
+    private boolean deleteOnNode(int nodeId, String department, String filename) {
+        NodeInfo node = membership.get(nodeId);
+        if (node == null) return false;
+        long started = loadBalancer.onStart(nodeId);
+        boolean completed = false;
+        boolean busy = false;
+        int timeout = loadBalancer.timeoutMillis(nodeId, Config.SOCKET_TIMEOUT);
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), timeout);
+            socket.setSoTimeout(timeout);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF("delete");
+            out.writeUTF(department);
+            out.writeUTF(filename);
+            out.flush();
+            boolean deleted = in.readBoolean();
+            completed = true;
+            return deleted;
+        } catch (NodeBusyException e) {
+            busy = true;
+            return false;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            if (busy) loadBalancer.onBusy(nodeId, started);
+            else loadBalancer.onComplete(nodeId, started, completed);
+        }
+    }
+    // Tells the source node to stream its copy directly to the target node.
+    // Returns the bytes transferred, or -1 if the source didn't have the file or the target refused it.
+    private long replicateBetweenNodes(int sourceId, int targetId, String department, String filename) {
+        NodeInfo source = membership.get(sourceId);
+        NodeInfo target = membership.get(targetId);
+        if (source == null || target == null) return -1;
+        long started = loadBalancer.onStart(sourceId);
+        boolean completed = false;
+        boolean busy = false;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(source.host, source.port), loadBalancer.timeoutMillis(sourceId, Config.CONNECTION_TIMEOUT));
+            socket.setSoTimeout(Config.REPLICATE_TIMEOUT); // covers the whole node-to-node copy
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF("replicate");
+            out.writeUTF(department);
+            out.writeUTF(filename);
+            out.writeUTF(target.host);
+            out.writeInt(target.port);
+            out.flush();
+            long bytes = in.readLong();
+            completed = true;
+            return bytes;
+        } catch (NodeBusyException e) {
+            busy = true;
+            System.err.println("[COORDINATOR] Node " + sourceId + " too busy to replicate " + department + "/" + filename);
+            return -1;
+        } catch (Exception e) {
+            System.err.println("[COORDINATOR] Replicating " + department + "/" + filename + " from node " + sourceId +
+                    " to node " + targetId + " failed: " + e.getMessage());
+            return -1;
+        } finally {
+            if (busy) loadBalancer.onBusy(sourceId, started);
+            else loadBalancer.onComplete(sourceId, started, completed);
         }
-        nodeRecoveryInProgress.remove(failedNodeId);
     }
     @Override
     public boolean sendFileCommand(String token, String action, String filename, String department, byte[] content) throws RemoteException {
@@ -268,137 +480,126 @@ public class FileOperationsServiceImpl extends UnicastRemoteObject implements Fi
         }
 
         System.out.println("[COORDINATOR] Attempting " + action + " operation for " + department + "/" + filename);
-        int retries = 0;
 
         String key = department + "/" + filename;
         if (action.equals("edit")) {
-            String lockHolder = fileEditLocks.get(key);
+            String lockHolder = editLeases.holder(key);
             if (lockHolder != null && !lockHolder.equals(token)) {
                 System.out.println("[COORDINATOR] Edit denied: file is locked by another user.");
                 return false;
             }
         }
 
-        while (retries < Config.MAX_RETRIES) {
-            // Get active nodes and their current loads
-            List<Integer> activeNodes = new ArrayList<>();
-            Map<Integer, Integer> nodeLoads = new HashMap<>();
-            for (int i = 0; i < nodeInfoMap.size(); i++) {
-                NodeInfo node = nodeInfoMap.get(i);
-                if (node != null && node.isActive) {
-                    activeNodes.add(i);
-                    nodeLoads.put(i, node.currentLoad);
+        StoragePolicy policy = StoragePolicy.forDepartment(department);
+        boolean replacesShards = false; // coded write fell back to replicas: drop the shards once they are stored
+        boolean shardsDeleted = false; // full copies from a replicated fallback are deleted below as well
+        if (policy.erasureCoded()) {
+            ClusterView view = membership.snapshot();
+            if (action.equalsIgnoreCase("delete")) {
+                shardsDeleted = erasureCoded.delete(department, filename, view) > 0;
+            } else if (content != null) {
+                long previous = locationIndex.nodes(department, filename);
+                if (erasureCoded.write(department, filename, content, nextVersion(), policy, view)) {
+                    // Full copies from before the department was coded, or from a replicated fallback
+                    for (int nodeId : view.activeAmong(previous)) deleteOnNode(nodeId, department, filename);
+                    return true;
                 }
+                replacesShards = true;
             }
+        }
 
-            if (activeNodes.isEmpty()) {
-                System.err.println("[COORDINATOR] No active nodes available.");
-                return false;
-            }
+        ClusterView view = membership.snapshot();
+        List<Integer> activeNodes = view.activeNodes();
+        if (activeNodes.isEmpty()) {
+            System.err.println("[COORDINATOR] No active nodes available.");
+            return false;
+        }
+        long previous = locationIndex.nodes(department, filename);
+        List<Integer> holders = view.activeAmong(previous);
 
-            // For add: replicate to 2 least-loaded nodes
-            if (action.equalsIgnoreCase("add")) {
-                // Sort nodes by load
-                activeNodes.sort(Comparator.comparingInt(nodeLoads::get));
-                int replicationFactor = Math.min(2, activeNodes.size());
-                List<String> locations = new ArrayList<>();
-                boolean allSuccess = true;
-                for (int i = 0; i < replicationFactor; i++) {
-                    int nodeId = activeNodes.get(i);
-                    NodeInfo node = nodeInfoMap.get(nodeId);
-                    try (Socket socket = new Socket()) {
-                        socket.connect(new InetSocketAddress(node.host, node.port), 3000);
-                        socket.setSoTimeout(3000);
-                        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                        out.writeUTF("add");
-                        out.writeUTF(department);
-                        out.writeUTF(filename);
-                        out.writeObject(content);
-                        out.flush();
-                        boolean success = in.readBoolean();
-                        if (success) {
-                            locations.add(node.host + ":" + node.port);
-                            System.out.println("[COORDINATOR] File replicated to node " + nodeId);
-                        } else {
-                            System.err.println("[COORDINATOR] Node " + nodeId + " reported operation failure");
-                            allSuccess = false;
-                        }
-                    } catch (Exception e) {
-                        System.err.println("[COORDINATOR] Error with node " + nodeId + ": " + e.getMessage());
-                        node.failureCount++;
-                        if (node.failureCount >= 3) {
-                            System.err.println("[COORDINATOR] Node " + nodeId + " marked as offline after " + node.failureCount + " failures");
-                            node.isActive = false;
-                            redistributeFilesFromNode(nodeId);
-                        }
-                        allSuccess = false;
-                    }
-                }
-                if (!locations.isEmpty()) {
-                    fileLocationMap.put(department + "/" + filename, String.join(",", locations));
-                }
-                return allSuccess;
+        // Delete every replica, so none is left behind to be read or repaired from
+        if (action.equalsIgnoreCase("delete")) {
+            boolean deleted = shardsDeleted;
+            for (int nodeId : previous == 0L ? activeNodes : holders) {
+                deleted |= deleteOnNode(nodeId, department, filename);
             }
+            locationIndex.remove(department, filename);
+            System.out.println("[COORDINATOR] Delete " + key + (deleted ? " completed" : ": not found on any node"));
+            return deleted;
+        }
 
-            // For other actions, use the least-loaded node
-            int selectedNode = activeNodes.stream()
-                    .min(Comparator.comparingInt(nodeLoads::get))
-                    .orElse(-1);
-
-            if (selectedNode == -1) {
-                System.err.println("[COORDINATOR] Failed to select a node.");
-                return false;
+        // Add and edit write a new version to every current replica first, then to new nodes by
+        // placement until there are REPLICATION_FACTOR. The coordinator sends the content once; the
+        // first node that stored it forwards it (with its version) to the others. A node that answers
+        // BUSY gives its slot to the next node in order.
+        long version = nextVersion();
+        List<Integer> order = writeOrder(view, holders);
+        int slots = writeSlots(view, holders);
+        long locations = 0L;
+        boolean allSuccess = true;
+        int primary = -1;
+        for (int nodeId : order) {
+            if (slots == 0) break;
+            slots--;
+            if (primary >= 0 && replicateBetweenNodes(primary, nodeId, department, filename) >= 0) {
+                locations |= FileLocationIndex.bit(nodeId);
+                System.out.println("[COORDINATOR] File replicated to node " + nodeId + " by node " + primary);
+                continue;
             }
-
-            NodeInfo node = nodeInfoMap.get(selectedNode);
-            System.out.println("\n[COORDINATOR] Selected node " + selectedNode + " (Load: " + node.currentLoad + " connections)");
-
+            NodeInfo node = view.node(nodeId);
+            long started = loadBalancer.onStart(nodeId);
+            boolean completed = false;
+            boolean busy = false;
             try (Socket socket = new Socket()) {
-                socket.connect(new InetSocketAddress(node.host, node.port), 3000);
-                socket.setSoTimeout(3000);
-
+                socket.connect(new InetSocketAddress(node.host, node.port), loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT));
+                socket.setSoTimeout(3000); // carries the whole file, so not the latency-derived timeout
                 ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-                System.out.println("[COORDINATOR] Connected to node " + selectedNode + " for " + action + " operation");
-
-                out.writeUTF(action);
+                ObjectInputStream in = NodeReply.open(socket);
+                out.writeUTF(action.equalsIgnoreCase("edit") ? "edit" : "add");
                 out.writeUTF(department);
                 out.writeUTF(filename);
-                if (content != null) {
-                    out.writeObject(content);
-                }
+                out.writeObject(content);
+                out.writeLong(version);
                 out.flush();
-
-                System.out.println("[COORDINATOR] Sent command to node " + selectedNode + ", waiting for response...");
                 boolean success = in.readBoolean();
-
+                completed = true;
                 if (success) {
-                    if (action.equalsIgnoreCase("edit") || action.equalsIgnoreCase("delete")) {
-                        fileLocationMap.put(department + "/" + filename, node.host + ":" + node.port);
-                        System.out.println("[COORDINATOR] File operation completed successfully on node " + selectedNode);
-                    } else {
-                        System.out.println("[COORDINATOR] " + action + " operation completed successfully on node " + selectedNode);
-                    }
-                    return true;
+                    locations |= FileLocationIndex.bit(nodeId);
+                    if (primary < 0) primary = nodeId;
+                    System.out.println("[COORDINATOR] File replicated to node " + nodeId + " (version " + version + ")");
                 } else {
-                    System.err.println("[COORDINATOR] Node " + selectedNode + " reported operation failure");
+                    System.err.println("[COORDINATOR] Node " + nodeId + " reported operation failure");
+                    allSuccess = false;
                 }
+            } catch (NodeBusyException e) {
+                System.out.println("[COORDINATOR] Node " + nodeId + " is busy, placing the replica elsewhere");
+                busy = true;
+                slots++;
             } catch (Exception e) {
-                System.err.println("[COORDINATOR] Error with node " + selectedNode + ": " + e.getMessage());
-                node.failureCount++;
-                if (node.failureCount >= 3) {
-                    System.err.println("[COORDINATOR] Node " + selectedNode + " marked as offline after " + node.failureCount + " failures");
-                    node.isActive = false;
-                    redistributeFilesFromNode(selectedNode);
-                }
-                retries++;
+                System.err.println("[COORDINATOR] Error with node " + nodeId + ": " + e.getMessage());
+                allSuccess = false;
+            } finally {
+                if (busy) loadBalancer.onBusy(nodeId, started);
+                else loadBalancer.onComplete(nodeId, started, completed);
             }
         }
-
-        System.err.println("[COORDINATOR] Failed to execute " + action + " operation after " + Config.MAX_RETRIES + " retries");
-        return false;
+        if (locations == 0L) {
+            System.err.println("[COORDINATOR] Failed to execute " + action + " operation for " + key + " on any node");
+            return false;
+        }
+        if (replacesShards) {
+            erasureCoded.delete(department, filename, view);
+            locationIndex.setLocations(department, filename, locations);
+        } else {
+            // Replicas that missed this version (down, or failed the write) stay indexed, so reads
+            // compare their version with the new ones and repair them
+            locationIndex.setLocations(department, filename, locations | previous);
+        }
+        return allSuccess && slots == 0;
+    }
+    // Hybrid clock: wall-clock milliseconds, but always above the last version handed out
+    private long nextVersion() {
+        return lastVersion.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
     }
     @Override
     public byte[] requestFile(String token, String filename, String department) throws RemoteException {
@@ -408,60 +609,69 @@ public class FileOperationsServiceImpl extends UnicastRemoteObject implements Fi
 //        }
 
         String key = department + "/" + filename;
-        String locationList = fileLocationMap.get(key);
-        if (locationList != null) {
-            String[] locations = locationList.split(",");
-            // Build a list of node indices and their loads for nodes that have the file
-            List<Integer> candidateNodes = new ArrayList<>();
-            Map<Integer, Integer> nodeLoads = new HashMap<>();
-            for (String loc : locations) {
-                for (int i = 0; i < nodeInfoMap.size(); i++) {
-                    NodeInfo node = nodeInfoMap.get(i);
-                    if (node != null && node.isActive && (node.host + ":" + node.port).equals(loc)) {
-                        candidateNodes.add(i);
-                        nodeLoads.put(i, node.currentLoad);
-                    }
-                }
+        if (StoragePolicy.forDepartment(department).erasureCoded()) {
+            byte[] data = erasureCoded.read(department, filename, membership.snapshot());
+            if (data != null) {
+                System.out.println("[COORDINATOR] File " + key + " rebuilt from shards on " + describeLocations(department, filename));
+                return data;
+            }
+        }
+        long locations = locationIndex.nodes(department, filename);
+        if (locations != 0L) {
+            // Active nodes that have the file
+            ClusterView view = membership.snapshot();
+            List<Integer> candidateNodes = view.activeAmong(locations);
+            if (candidateNodes.size() > 1) {
+                candidateNodes = newestReplicas(view, candidateNodes, department, filename);
             }
             if (!candidateNodes.isEmpty()) {
-                // Sort candidate nodes by load (ascending)
-                candidateNodes.sort(Comparator.comparingInt(nodeLoads::get));
-                // Try each node in order of least load
-                for (int nodeId : candidateNodes) {
-                    NodeInfo node = nodeInfoMap.get(nodeId);
+                // Try replicas in the load balancer's preference order
+                for (int nodeId : loadBalancer.chooseDistinct(candidateNodes, candidateNodes.size())) {
+                    NodeInfo node = view.node(nodeId);
+                    long started = loadBalancer.onStart(nodeId);
+                    boolean completed = false;
+                    boolean busy = false;
                     try (Socket socket = new Socket()) {
-                        socket.connect(new InetSocketAddress(node.host, node.port), 10000);
-                        socket.setSoTimeout(10000);
+                        socket.connect(new InetSocketAddress(node.host, node.port), loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT));
+                        socket.setSoTimeout(10000); // carries the whole file, so not the latency-derived timeout
                         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
                         out.flush();
-                        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                        ObjectInputStream in = NodeReply.open(socket);
                         out.writeUTF("fetch");
                         out.writeUTF(department);
                         out.writeUTF(filename);
                         out.flush();
                         byte[] data = (byte[]) in.readObject();
+                        completed = true;
                         if (data != null && data.length > 0) {
                             System.out.println("[COORDINATOR] File " + key + " served from node " + nodeId + " (Load: " + node.currentLoad + ")");
-                            System.out.println("File locations for " + key + ": " + fileLocationMap.get(key));
+                            System.out.println("File locations for " + key + ": " + describeLocations(department, filename));
                             return data;
                         }
+                    } catch (NodeBusyException e) {
+                        System.out.println("[COORDINATOR] Node " + nodeId + " is busy, trying the next replica");
+                        busy = true;
                     } catch (Exception e) {
                         System.err.println("[COORDINATOR] Node " + nodeId + " error: " + e.getMessage());
+                    } finally {
+                        if (busy) loadBalancer.onBusy(nodeId, started);
+                        else loadBalancer.onComplete(nodeId, started, completed);
                     }
                 }
             }
         }
-        // Fallback: try all active nodes if not found in fileLocationMap
+        // Fallback: try all active nodes if not found in the location index
         System.out.println("[COORDINATOR] Fallback: trying all active nodes for file: " + key);
-        for (int i = 0; i < nodeInfoMap.size(); i++) {
-            NodeInfo node = nodeInfoMap.get(i);
-            if (node != null && node.isActive) {
+        for (Map.Entry<Integer, NodeInfo> entry : membership.snapshot().nodes().entrySet()) {
+            int i = entry.getKey();
+            NodeInfo node = entry.getValue();
+            if (node.isActive) {
                 try (Socket socket = new Socket()) {
-                    socket.connect(new InetSocketAddress(node.host, node.port), 10000);
+                    socket.connect(new InetSocketAddress(node.host, node.port), loadBalancer.timeoutMillis(i, Config.CONNECTION_TIMEOUT));
                     socket.setSoTimeout(10000);
                     ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
                     out.flush();
-                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                    ObjectInputStream in = NodeReply.open(socket);
                     out.writeUTF("fetch");
                     out.writeUTF(department);
                     out.writeUTF(filename);
@@ -469,9 +679,9 @@ public class FileOperationsServiceImpl extends UnicastRemoteObject implements Fi
                     byte[] data = (byte[]) in.readObject();
                     if (data != null && data.length > 0) {
                         System.out.println("[COORDINATOR] Fallback: file " + key + " found on node " + i);
-                        // Update fileLocationMap for future requests
-                        fileLocationMap.put(key, node.host + ":" + node.port);
-                        System.out.println("File locations for " + key + ": " + fileLocationMap.get(key));
+                        // Update the location index for future requests
+                        locationIndex.addLocation(department, filename, i);
+                        System.out.println("File locations for " + key + ": " + describeLocations(department, filename));
                         return data;
                     }
                 } catch (Exception e) {
@@ -482,6 +692,94 @@ public class FileOperationsServiceImpl extends UnicastRemoteObject implements Fi
         System.out.println("[COORDINATOR] File " + key + " not found on any available node");
         return new byte[0];
     }
+    // The replicas holding the newest version; the others are brought up to it in the background.
+    // Replicas that don't answer are left out of both; if none answers, all of them are returned.
+    private List<Integer> newestReplicas(ClusterView view, List<Integer> replicas, String department, String filename) {
+        Map<Integer, Future<Long>> pending = new HashMap<>();
+        for (int nodeId : replicas) {
+            pending.put(nodeId, nodeRequestPool.submit(() -> versionOnNode(nodeId, view.node(nodeId), department, filename)));
+        }
+        Map<Integer, Long> versions = new HashMap<>();
+        for (Map.Entry<Integer, Future<Long>> entry : pending.entrySet()) {
+            try {
+                Long version = entry.getValue().get();
+                if (version != null) versions.put(entry.getKey(), version);
+            } catch (ExecutionException e) {
+                // counts as not answering
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        long newest = versions.values().stream().mapToLong(Long::longValue).max().orElse(-1L);
+        if (newest < 0) return replicas;
+        List<Integer> fresh = new ArrayList<>();
+        List<Integer> stale = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : versions.entrySet()) {
+            (entry.getValue() == newest ? fresh : stale).add(entry.getKey());
+        }
+        if (!stale.isEmpty()) {
+            int source = loadBalancer.choose(fresh);
+            for (int nodeId : stale) {
+                System.out.println("[COORDINATOR] Read repair: node " + nodeId + " has version " + versions.get(nodeId) +
+                        " of " + department + "/" + filename + ", node " + source + " has " + newest);
+                repairReplica(source, nodeId, department, filename);
+            }
+        }
+        return fresh;
+    }
+    private void repairReplica(int sourceId, int targetId, String department, String filename) {
+        String repair = department + "/" + filename + "@" + targetId;
+        if (sourceId < 0 || !readRepairs.add(repair)) return; // already being repaired
+        nodeRequestPool.execute(() -> {
+            try {
+                if (replicateBetweenNodes(sourceId, targetId, department, filename) >= 0) {
+                    locationIndex.addLocation(department, filename, targetId);
+                    System.out.println("[COORDINATOR] Read repair of " + department + "/" + filename + " on node " + targetId + " done");
+                }
+            } finally {
+                readRepairs.remove(repair);
+            }
+        });
+    }
+    // Version of the file on the node (-1 if it isn't there), or null if the node didn't answer
+    private Long versionOnNode(int nodeId, NodeInfo node, String department, String filename) {
+        if (node == null) return null;
+        long started = loadBalancer.onStart(nodeId);
+        boolean completed = false;
+        boolean busy = false;
+        int timeout = loadBalancer.timeoutMillis(nodeId, Config.SOCKET_TIMEOUT);
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), timeout);
+            socket.setSoTimeout(timeout);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF("stat");
+            out.writeUTF(department);
+            out.writeUTF(filename);
+            out.flush();
+            long version = in.readLong();
+            completed = true;
+            return version;
+        } catch (NodeBusyException e) {
+            busy = true;
+            return null;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (busy) loadBalancer.onBusy(nodeId, started);
+            else loadBalancer.onComplete(nodeId, started, completed);
+        }
+    }
+    private String describeLocations(String department, String filename) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (long rest = locationIndex.nodes(department, filename); rest != 0; rest &= rest - 1) {
+            NodeInfo node = membership.get(Long.numberOfTrailingZeros(rest));
+            if (node != null) joiner.add(node.host + ":" + node.port);
+        }
+        return joiner.toString();
+    }
     @Override
     public List<String> listFiles(String token, String department) throws RemoteException {
 //        if (!authService.hasPermission(token, "view", department)) {
@@ -490,74 +788,54 @@ public class FileOperationsServiceImpl extends UnicastRemoteObject implements Fi
 //        }
 
         System.out.println("[COORDINATOR] Attempting to list files in " + department);
-        List<String> result = new ArrayList<>();
 
-        // Get active nodes
-        List<Integer> activeNodes = new ArrayList<>();
-        for (int i = 0; i < nodeInfoMap.size(); i++) {
-            NodeInfo node = nodeInfoMap.get(i);
-            if (node != null && node.isActive) {
-                activeNodes.add(i);
-            }
-        }
+        ClusterView view = membership.snapshot();
+        List<Integer> activeNodes = view.activeNodes();
 
         if (activeNodes.isEmpty()) {
             System.out.println("[COORDINATOR] No available nodes for listing files");
             return List.of("No available nodes");
         }
 
-        // Try each active node until we get a successful response
+        // Every node only holds the replicas placed on it, so ask all of them at once
+        // and merge whatever came back before the deadline.
+        long deadline = System.currentTimeMillis() + Config.LIST_DEADLINE;
+        CompletionService<List<String>> completion = new ExecutorCompletionService<>(nodeRequestPool);
+        Map<Future<List<String>>, Integer> pending = new HashMap<>();
         for (int nodeId : activeNodes) {
-            NodeInfo node = nodeInfoMap.get(nodeId);
-            System.out.println("[COORDINATOR] Trying node " + nodeId + " for listing files");
-
-            try (Socket socket = new Socket()) {
-                socket.connect(new InetSocketAddress(node.host, node.port), 10000);
-                socket.setSoTimeout(10000);
-                socket.setKeepAlive(true);
-                socket.setTcpNoDelay(true);
-
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                out.flush();
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-                System.out.println("[COORDINATOR] Connected to node " + nodeId + " for listing files");
-
-                out.writeUTF("list");
-                out.writeUTF(department);
-                out.flush();
+            NodeInfo node = view.node(nodeId);
+            pending.put(completion.submit(() -> listFilesOnNode(nodeId, node, department)), nodeId);
+        }
 
-                // Add retry logic for reading the response
-                int retries = 3;
-                while (retries > 0) {
-                    try {
-                        @SuppressWarnings("unchecked")
-                        List<String> files = (List<String>) in.readObject();
-                        if (files != null) {
-                            result.addAll(files);
-                            System.out.println("[COORDINATOR] Retrieved " + files.size() + " files from node " + nodeId);
-                            if (!result.isEmpty()) {
-                                return result; // Return if we found any files
-                            }
-                        }
-                        break; // Break the retry loop if we got a response
-                    } catch (Exception e) {
-                        retries--;
-                        if (retries > 0) {
-                            System.out.println("[COORDINATOR] Retrying read from node " + nodeId + " (" + retries + " attempts left)");
-                            Thread.sleep(1000);
-                            continue;
-                        }
-                        System.err.println("[COORDINATOR] Error reading from node " + nodeId + ": " + e.getMessage());
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("[COORDINATOR] Error connecting to node " + nodeId + ": " + e.getMessage());
-                continue;
+        List<List<String>> nodeLists = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            long remaining = deadline - System.currentTimeMillis();
+            Future<List<String>> done;
+            try {
+                done = remaining > 0 ? completion.poll(remaining, TimeUnit.MILLISECONDS) : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
+            if (done == null) break;
+            int nodeId = pending.remove(done);
+            try {
+                List<String> files = done.get();
+                nodeLists.add(files);
+                System.out.println("[COORDINATOR] Retrieved " + files.size() + " files from node " + nodeId);
+            } catch (ExecutionException e) {
+                System.err.println("[COORDINATOR] Error listing files on node " + nodeId + ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Map.Entry<Future<List<String>>, Integer> missed : pending.entrySet()) {
+            missed.getKey().cancel(true);
+            System.err.println("[COORDINATOR] Node " + missed.getValue() + " missed the listing deadline, returning partial results");
         }
 
-        // If we get here, either all nodes failed or no files were found
+        List<String> result = SortedMerge.mergeDistinct(nodeLists);
         if (result.isEmpty()) {
             System.out.println("[COORDINATOR] No files found in any node");
             return List.of("No files found");
@@ -566,18 +844,453 @@ public class FileOperationsServiceImpl extends UnicastRemoteObject implements Fi
         return result;
     }
     @Override
-    public synchronized boolean lockFileForEdit(String token, String filename, String department) throws RemoteException {
+    public FilePage listFilesPage(String token, String department, String prefix, int pageSize, String continuationToken) throws RemoteException {
+        if (!authService.hasPermission(token, "view", department)) {
+            System.out.println("[COORDINATOR] Permission denied for listing " + department);
+            return new FilePage(List.of(), null);
+        }
+        String namePrefix = prefix == null ? "" : prefix;
+        int limit = Math.max(1, Math.min(pageSize, Config.MAX_PAGE_SIZE));
+        String after = decodeContinuationToken(continuationToken);
+
+        ClusterView view = membership.snapshot();
+        List<Integer> activeNodes = view.activeNodes();
+        if (activeNodes.isEmpty()) {
+            System.out.println("[COORDINATOR] No available nodes for listing files");
+            return new FilePage(List.of(), null);
+        }
+
+        // Each node returns its own next `limit` names, so the merged first `limit` are exact
+        long deadline = System.currentTimeMillis() + Config.LIST_DEADLINE;
+        List<Future<List<String>>> futures = new ArrayList<>();
+        for (int nodeId : activeNodes) {
+            NodeInfo node = view.node(nodeId);
+            futures.add(nodeRequestPool.submit(() -> listPageOnNode(nodeId, node, department, namePrefix, after, limit)));
+        }
+        List<List<String>> nodePages = new ArrayList<>();
+        boolean anyFull = false;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                List<String> page = futures.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                nodePages.add(page);
+                anyFull |= page.size() >= limit;
+            } catch (TimeoutException e) {
+                futures.get(i).cancel(true);
+                System.err.println("[COORDINATOR] Node " + activeNodes.get(i) + " missed the listing deadline, returning partial page");
+            } catch (ExecutionException e) {
+                System.err.println("[COORDINATOR] Error listing page on node " + activeNodes.get(i) + ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // One name past the page shows whether the merge cut anything off; a node that sent a full
+        // page may also hold more than it sent
+        List<String> files = SortedMerge.mergeDistinct(nodePages, limit + 1);
+        boolean more = files.size() > limit || (anyFull && files.size() == limit);
+        if (files.size() > limit) files = new ArrayList<>(files.subList(0, limit)); // subList views are not Serializable
+        String next = more ? encodeContinuationToken(files.get(files.size() - 1)) : null;
+        System.out.println("[COORDINATOR] Listed " + files.size() + " files in " + department +
+                (namePrefix.isEmpty() ? "" : " with prefix '" + namePrefix + "'") + (next != null ? " (more available)" : ""));
+        return new FilePage(files, next);
+    }
+    private static String encodeContinuationToken(String lastFilename) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastFilename.getBytes(StandardCharsets.UTF_8));
+    }
+    private static String decodeContinuationToken(String token) {
+        if (token == null || token.isEmpty()) return "";
+        try {
+            return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[COORDINATOR] Ignoring malformed continuation token");
+            return "";
+        }
+    }
+    private List<String> listPageOnNode(int nodeId, NodeInfo node, String department, String prefix, String after, int limit) throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT));
+            socket.setSoTimeout(Config.LIST_DEADLINE);
+            socket.setTcpNoDelay(true);
+
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+
+            out.writeUTF("listPage");
+            out.writeUTF(department);
+            out.writeUTF(prefix);
+            out.writeUTF(after);
+            out.writeInt(limit);
+            out.flush();
+
+            @SuppressWarnings("unchecked")
+            List<String> page = (List<String>) in.readObject();
+            return page == null ? List.of() : page;
+        }
+    }
+    private List<String> listFilesOnNode(int nodeId, NodeInfo node, String department) throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT));
+            socket.setSoTimeout(Config.LIST_DEADLINE);
+            socket.setTcpNoDelay(true);
+
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+
+            out.writeUTF("list");
+            out.writeUTF(department);
+            out.flush();
+
+            @SuppressWarnings("unchecked")
+            List<String> files = (List<String>) in.readObject();
+            if (files == null) return List.of();
+            List<String> sorted = new ArrayList<>(files);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+    @Override
+    public String openUpload(String token, String filename, String department) throws RemoteException {
+        if (!authService.hasPermission(token, "add", department)) {
+            System.out.println("[COORDINATOR] Permission denied for upload in " + department);
+            return null;
+        }
+        String lockHolder = editLeases.holder(department + "/" + filename);
+        if (lockHolder != null && !lockHolder.equals(token)) {
+            System.out.println("[COORDINATOR] Upload denied: file is locked by another user.");
+            return null;
+        }
+        ClusterView view = membership.snapshot();
+        List<Integer> holders = view.activeAmong(locationIndex.nodes(department, filename));
+        UploadSession session = UploadSession.open(department, filename, nextVersion(), writeOrder(view, holders),
+                writeSlots(view, holders), view, loadBalancer, nodeRequestPool);
+        if (session == null) {
+            System.err.println("[COORDINATOR] Upload of " + department + "/" + filename + " failed: no node reachable");
+            return null;
+        }
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, session);
+        expireWhenIdle(uploadId, uploads, UploadSession::idleMillis, UploadSession::abort, Config.TRANSFER_IDLE_TIMEOUT);
+        System.out.println("[COORDINATOR] Upload " + uploadId + " opened for " + department + "/" + filename + " on nodes " + session.nodeIds());
+        return uploadId;
+    }
+    @Override
+    public boolean writeChunk(String uploadId, byte[] chunk) throws RemoteException {
+        UploadSession session = uploads.get(uploadId);
+        if (session == null) return false;
+        try {
+            return session.write(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    @Override
+    public boolean commitUpload(String uploadId) throws RemoteException {
+        UploadSession session = uploads.remove(uploadId);
+        if (session == null) return false;
+        List<Integer> stored;
+        try {
+            stored = session.commit();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.abort();
+            return false;
+        }
+        if (stored.isEmpty()) {
+            System.err.println("[COORDINATOR] Upload " + uploadId + " failed on every node");
+            return false;
+        }
+        long nodes = 0L;
+        for (int nodeId : stored) nodes |= FileLocationIndex.bit(nodeId);
+        // Replicas that missed this version stay indexed, so reads repair them and deletes reach them
+        long previous = locationIndex.nodes(session.department, session.filename);
+        locationIndex.setLocations(session.department, session.filename, nodes | previous);
+        System.out.println("[COORDINATOR] Upload " + uploadId + " committed: " + session.bytesReceived() + " bytes of " +
+                session.department + "/" + session.filename + " on nodes " + stored);
+        return true;
+    }
+    @Override
+    public void abortUpload(String uploadId) throws RemoteException {
+        UploadSession session = uploads.remove(uploadId);
+        if (session != null) {
+            session.abort();
+            System.out.println("[COORDINATOR] Upload " + uploadId + " aborted");
+        }
+    }
+    @Override
+    public String openDownload(String token, String filename, String department) throws RemoteException {
+        if (!authService.hasPermission(token, "view", department)) {
+            System.out.println("[COORDINATOR] Permission denied for download in " + department);
+            return null;
+        }
+        long locations = locationIndex.nodes(department, filename);
+        ClusterView view = membership.snapshot();
+        List<Integer> candidates = view.activeAmong(locations);
+        if (candidates.size() > 1) candidates = newestReplicas(view, candidates, department, filename);
+        List<Integer> order = loadBalancer.chooseDistinct(candidates, candidates.size());
+        // Unindexed copies (e.g. written by the synchronizer) are still worth a try, last
+        order.addAll(view.activeAmong(~locations));
+        DownloadSession session = DownloadSession.open(department, filename, order, view, loadBalancer, nodeRequestPool);
+        if (session == null) {
+            System.out.println("[COORDINATOR] Download: " + department + "/" + filename + " not found on any active node");
+            return null;
+        }
+        String downloadId = UUID.randomUUID().toString();
+        downloads.put(downloadId, session);
+        expireWhenIdle(downloadId, downloads, DownloadSession::idleMillis, DownloadSession::close, Config.TRANSFER_IDLE_TIMEOUT);
+        System.out.println("[COORDINATOR] Download " + downloadId + " opened for " + department + "/" + filename +
+                " (" + session.size() + " bytes)");
+        return downloadId;
+    }
+    @Override
+    public byte[] readChunk(String downloadId) throws RemoteException {
+        DownloadSession session = downloads.get(downloadId);
+        if (session == null) return null;
+        try {
+            byte[] chunk = session.read();
+            if (chunk == null || chunk.length == 0) {
+                downloads.remove(downloadId);
+                session.close();
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+    @Override
+    public void closeDownload(String downloadId) throws RemoteException {
+        DownloadSession session = downloads.remove(downloadId);
+        if (session != null) session.close();
+    }
+    @Override
+    public TransferGrant grantUpload(String token, String filename, String department) throws RemoteException {
+        if (!authService.hasPermission(token, "add", department)) {
+            System.out.println("[COORDINATOR] Permission denied for upload in " + department);
+            return null;
+        }
+        String lockHolder = editLeases.holder(department + "/" + filename);
+        if (lockHolder != null && !lockHolder.equals(token)) {
+            System.out.println("[COORDINATOR] Upload denied: file is locked by another user.");
+            return null;
+        }
+        ClusterView view = membership.snapshot();
+        List<Integer> holders = view.activeAmong(locationIndex.nodes(department, filename));
+        List<Integer> order = writeOrder(view, holders);
+        List<Integer> targets = order.subList(0, Math.min(writeSlots(view, holders), order.size()));
+        if (targets.isEmpty()) {
+            System.err.println("[COORDINATOR] No active nodes available.");
+            return null;
+        }
+        System.out.println("[COORDINATOR] Granted direct upload of " + department + "/" + filename + " to nodes " + targets);
+        return grant(TransferTicket.UPLOAD, department, filename, nextVersion(), view, targets);
+    }
+    @Override
+    public boolean confirmUpload(String token, String filename, String department, List<String> receipts) throws RemoteException {
+        if (!authService.hasPermission(token, "add", department) || receipts == null) {
+            return false;
+        }
+        // A receipt only counts while its node still holds the version it names and nothing indexed is
+        // newer, so one replayed from an earlier upload of the same file can't put a stale replica back
+        ClusterView view = membership.snapshot();
+        long indexedVersion = -1;
+        for (int nodeId : view.activeAmong(locationIndex.nodes(department, filename))) {
+            Long version = versionOnNode(nodeId, view.node(nodeId), department, filename);
+            if (version != null) indexedVersion = Math.max(indexedVersion, version);
+        }
+        long nodes = 0L;
+        long bytes = -1;
+        for (String receipt : receipts) {
+            TransferTicket.Receipt verified = TransferTicket.verifyReceipt(receipt);
+            if (verified == null || !verified.department().equals(department) || !verified.filename().equals(filename)
+                    || verified.nodeId() < 0 || verified.nodeId() >= Config.MAX_NODES) {
+                System.err.println("[COORDINATOR] Ignoring invalid upload receipt for " + department + "/" + filename);
+                continue;
+            }
+            Long stored = versionOnNode(verified.nodeId(), view.node(verified.nodeId()), department, filename);
+            if (stored == null || stored != verified.version() || verified.version() < indexedVersion) {
+                System.err.println("[COORDINATOR] Ignoring upload receipt for " + department + "/" + filename + " version " +
+                        verified.version() + ": node " + verified.nodeId() + " holds " + stored + ", newest indexed is " + indexedVersion);
+                continue;
+            }
+            nodes |= FileLocationIndex.bit(verified.nodeId());
+            bytes = verified.bytes();
+        }
+        if (nodes == 0L) return false;
+        // Replicas that missed this version stay indexed, so reads repair them and deletes reach them
+        locationIndex.setLocations(department, filename, nodes | locationIndex.nodes(department, filename));
+        System.out.println("[COORDINATOR] Direct upload of " + department + "/" + filename + " confirmed: " +
+                bytes + " bytes on " + Long.bitCount(nodes) + " node(s)");
+        return true;
+    }
+    @Override
+    public TransferGrant grantDownload(String token, String filename, String department) throws RemoteException {
+        if (!authService.hasPermission(token, "view", department)) {
+            System.out.println("[COORDINATOR] Permission denied for download in " + department);
+            return null;
+        }
+        long locations = locationIndex.nodes(department, filename);
+        ClusterView view = membership.snapshot();
+        List<Integer> candidates = view.activeAmong(locations);
+        if (candidates.size() > 1) candidates = newestReplicas(view, candidates, department, filename);
+        if (candidates.isEmpty()) {
+            System.out.println("[COORDINATOR] Download: " + department + "/" + filename + " is not indexed on any active node");
+            return null;
+        }
+        return grant(TransferTicket.DOWNLOAD, department, filename, 0L, view, loadBalancer.chooseDistinct(candidates, candidates.size()));
+    }
+    private TransferGrant grant(String operation, String department, String filename, long version,
+                                ClusterView view, List<Integer> nodeIds) {
+        List<TransferGrant.Target> targets = new ArrayList<>(nodeIds.size());
+        for (int nodeId : nodeIds) {
+            NodeInfo node = view.node(nodeId);
+            String ticket = TransferTicket.issue(operation, nodeId, node.port, department, filename, version,
+                    Config.TRANSFER_TICKET_TTL);
+            targets.add(new TransferGrant.Target(nodeId, node.host, node.port, ticket));
+        }
+        return new TransferGrant(department, filename, targets);
+    }
+    // Drops a transfer session the client stopped talking to, re-checked when its idle time would run out
+    private <S> void expireWhenIdle(String id, Map<String, S> sessions, ToLongFunction<S> idleMillis,
+                                    Consumer<S> expire, long delay) {
+        transferSweeper.schedule(() -> {
+            S session = sessions.get(id);
+            if (session == null) return;
+            long idle = idleMillis.applyAsLong(session);
+            if (idle < Config.TRANSFER_IDLE_TIMEOUT) {
+                expireWhenIdle(id, sessions, idleMillis, expire, Config.TRANSFER_IDLE_TIMEOUT - idle);
+            } else if (sessions.remove(id, session)) {
+                expire.accept(session);
+                System.out.println("[COORDINATOR] Transfer " + id + " expired after " + idle + " ms idle");
+            }
+        }, delay);
+    }
+    @Override
+    public BlockSignatures editSignatures(String token, String filename, String department) throws RemoteException {
+        if (!mayEdit(token, filename, department)) return null;
+        ClusterView view = membership.snapshot();
+        List<Integer> candidates = view.activeAmong(locationIndex.nodes(department, filename));
+        for (int nodeId : loadBalancer.chooseDistinct(candidates, candidates.size())) {
+            BlockSignatures signatures = signaturesOnNode(nodeId, view.node(nodeId), department, filename);
+            if (signatures != null) return signatures;
+        }
+        return null;
+    }
+    // Patches every active replica. Those that miss the new version (down, or their copy doesn't match the
+    // delta's base) stay indexed, so reads repair them and deletes reach them
+    @Override
+    public boolean applyDelta(String token, String filename, String department, FileDelta delta) throws RemoteException {
+        if (delta == null || !mayEdit(token, filename, department)) return false;
+        ClusterView view = membership.snapshot();
+        long version = nextVersion();
+        long patched = 0L;
+        for (int nodeId : view.activeAmong(locationIndex.nodes(department, filename))) {
+            if (patchOnNode(nodeId, view.node(nodeId), department, filename, delta, version)) {
+                patched |= FileLocationIndex.bit(nodeId);
+            }
+        }
+        if (patched == 0L) {
+            System.out.println("[COORDINATOR] Delta edit of " + department + "/" + filename + " not applied anywhere");
+            return false;
+        }
+        locationIndex.setLocations(department, filename, patched | locationIndex.nodes(department, filename));
+        System.out.println("[COORDINATOR] Delta edit of " + department + "/" + filename + ": " + delta.literalBytes() +
+                " new bytes of " + delta.newLength + " on " + Long.bitCount(patched) + " replicas");
+        return true;
+    }
+    private boolean mayEdit(String token, String filename, String department) throws RemoteException {
+        if (!authService.hasPermission(token, "edit", department)) {
+            System.out.println("[COORDINATOR] Permission denied for edit operation in " + department);
+            return false;
+        }
+        String lockHolder = editLeases.holder(department + "/" + filename);
+        if (lockHolder != null && !lockHolder.equals(token)) {
+            System.out.println("[COORDINATOR] Edit denied: file is locked by another user.");
+            return false;
+        }
+        return true;
+    }
+    private BlockSignatures signaturesOnNode(int nodeId, NodeInfo node, String department, String filename) {
+        long started = loadBalancer.onStart(nodeId);
+        boolean completed = false;
+        boolean busy = false;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT));
+            socket.setSoTimeout(Config.REPLICATE_TIMEOUT); // hashes the whole file
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF("signatures");
+            out.writeUTF(department);
+            out.writeUTF(filename);
+            out.flush();
+            BlockSignatures signatures = (BlockSignatures) in.readObject();
+            completed = true;
+            return signatures;
+        } catch (NodeBusyException e) {
+            busy = true;
+            return null;
+        } catch (Exception e) {
+            System.err.println("[COORDINATOR] Signatures of " + department + "/" + filename + " from node " + nodeId +
+                    " failed: " + e.getMessage());
+            return null;
+        } finally {
+            if (busy) loadBalancer.onBusy(nodeId, started);
+            else loadBalancer.onComplete(nodeId, started, completed);
+        }
+    }
+    private boolean patchOnNode(int nodeId, NodeInfo node, String department, String filename, FileDelta delta, long version) {
+        long started = loadBalancer.onStart(nodeId);
+        boolean completed = false;
+        boolean busy = false;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT));
+            socket.setSoTimeout(Config.REPLICATE_TIMEOUT); // rebuilds and hashes the whole file
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF("patch");
+            out.writeUTF(department);
+            out.writeUTF(filename);
+            out.writeObject(delta);
+            out.writeLong(version);
+            out.flush();
+            boolean patched = in.readBoolean();
+            completed = true;
+            return patched;
+        } catch (NodeBusyException e) {
+            busy = true;
+            return false;
+        } catch (Exception e) {
+            System.err.println("[COORDINATOR] Patching " + department + "/" + filename + " on node " + nodeId +
+                    " failed: " + e.getMessage());
+            return false;
+        } finally {
+            if (busy) loadBalancer.onBusy(nodeId, started);
+            else loadBalancer.onComplete(nodeId, started, completed);
+        }
+    }
+    // Edit locks are leases: they lapse after Config.EDIT_LEASE_TTL unless renewed,
+    // so a client that dies mid-edit doesn't keep the file locked.
+    @Override
+    public boolean lockFileForEdit(String token, String filename, String department) throws RemoteException {
         String key = department + "/" + filename;
-        if (fileEditLocks.containsKey(key)) return false; // Already locked
-        fileEditLocks.put(key, token);
-        System.out.println("[COORDINATOR] File locked for edit: " + key + " by token " + token);
+        if (!editLeases.acquire(key, token)) return false; // Already locked
+        System.out.println("[COORDINATOR] File locked for edit: " + key + " by token " + token +
+                " (lease " + editLeases.ttlMillis() / 1000 + "s)");
         return true;
     }
     @Override
-    public synchronized boolean unlockFileForEdit(String token, String filename, String department) throws RemoteException {
+    public boolean renewFileEditLock(String token, String filename, String department) throws RemoteException {
+        return editLeases.renew(department + "/" + filename, token);
+    }
+    @Override
+    public boolean unlockFileForEdit(String token, String filename, String department) throws RemoteException {
         String key = department + "/" + filename;
-        if (fileEditLocks.getOrDefault(key, "").equals(token)) {
-            fileEditLocks.remove(key);
+        if (editLeases.release(key, token)) {
             System.out.println("[COORDINATOR] File unlocked for edit: " + key + " by token " + token);
             return true;
         }
@@ -0,0 +1,206 @@
+package server.services.file_operations;
+
+import server.utility.Config;
+import server.utility.LoadBalancer;
+import server.utility.ClusterView;
+import server.utility.NodeBusyException;
+import server.utility.NodeInfo;
+import server.utility.NodeReply;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+// One chunked upload from a client. Chunks handed to write() are queued and a pump task streams
+// each one to every replica node as soon as it arrives, so the coordinator never holds more than
+// Config.TRANSFER_QUEUE_CHUNKS chunks of the file. Nodes write into a temp file and only rename it
+// into place on commit.
+class UploadSession {
+    private static final byte[] COMMIT = new byte[0];
+    private static final byte[] ABORT = new byte[0];
+
+    private static final class Replica {
+        final int nodeId;
+        final Socket socket;
+        final ObjectOutputStream out;
+        final ObjectInputStream in;
+        boolean failed;
+
+        Replica(int nodeId, Socket socket, ObjectOutputStream out, ObjectInputStream in) {
+            this.nodeId = nodeId;
+            this.socket = socket;
+            this.out = out;
+            this.in = in;
+        }
+    }
+
+    final String department;
+    final String filename;
+    private final List<Replica> replicas;
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(Config.TRANSFER_QUEUE_CHUNKS);
+    private final CompletableFuture<List<Integer>> committed = new CompletableFuture<>();
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile long bytesReceived;
+
+    private UploadSession(String department, String filename, List<Replica> replicas) {
+        this.department = department;
+        this.filename = filename;
+        this.replicas = replicas;
+    }
+
+    // Opens upload streams to the first `count` candidates that accept one; a node that answers BUSY
+    // is replaced by the next candidate. Returns null if none of them could be reached.
+    static UploadSession open(String department, String filename, long version, List<Integer> candidates, int count,
+                              ClusterView nodes, LoadBalancer loadBalancer, ExecutorService executor) {
+        List<Replica> replicas = new ArrayList<>();
+        int slots = count;
+        for (int nodeId : candidates) {
+            if (slots == 0) break;
+            NodeInfo node = nodes.node(nodeId);
+            long start = loadBalancer.onStart(nodeId);
+            Socket socket = new Socket();
+            try {
+                int timeout = loadBalancer.timeoutMillis(nodeId, Config.CONNECTION_TIMEOUT);
+                socket.connect(new InetSocketAddress(node.host, node.port), timeout);
+                socket.setSoTimeout(Config.REPLICATE_TIMEOUT);
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                out.flush();
+                ObjectInputStream in = NodeReply.open(socket);
+                out.writeUTF("upload");
+                out.writeUTF(department);
+                out.writeUTF(filename);
+                out.writeLong(version);
+                out.flush();
+                replicas.add(new Replica(nodeId, socket, out, in));
+                slots--;
+                // Only the handshake is measured; the stream's length depends on the client
+                loadBalancer.onComplete(nodeId, start, true);
+            } catch (NodeBusyException e) {
+                loadBalancer.onBusy(nodeId, start);
+                System.out.println("[COORDINATOR] Upload: node " + nodeId + " is busy, trying the next one");
+                closeQuietly(socket);
+            } catch (IOException e) {
+                slots--;
+                loadBalancer.onComplete(nodeId, start, false);
+                System.err.println("[COORDINATOR] Upload: node " + nodeId + " unreachable: " + e.getMessage());
+                closeQuietly(socket);
+            }
+        }
+        if (replicas.isEmpty()) return null;
+        UploadSession session = new UploadSession(department, filename, replicas);
+        executor.execute(session::pump);
+        return session;
+    }
+
+    boolean write(byte[] chunk) throws InterruptedException {
+        lastActivity = System.currentTimeMillis();
+        if (committed.isDone() || chunk == null || chunk.length == 0) return false;
+        boolean queued = chunks.offer(chunk, Config.TRANSFER_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        lastActivity = System.currentTimeMillis();
+        return queued && !committed.isDone();
+    }
+
+    // Ids of the nodes that stored the complete file (empty if none did)
+    List<Integer> commit() throws InterruptedException {
+        lastActivity = System.currentTimeMillis();
+        if (!committed.isDone()) {
+            chunks.put(COMMIT);
+        }
+        try {
+            return committed.get(Config.REPLICATE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            abort();
+            return List.of();
+        }
+    }
+
+    void abort() {
+        if (!committed.isDone() && !chunks.offer(ABORT)) {
+            // Queue is full and the pump is stuck on a node; cut the sockets instead
+            for (Replica replica : replicas) closeQuietly(replica.socket);
+        }
+    }
+
+    List<Integer> nodeIds() {
+        List<Integer> ids = new ArrayList<>(replicas.size());
+        for (Replica replica : replicas) ids.add(replica.nodeId);
+        return ids;
+    }
+
+    long idleMillis() {
+        return System.currentTimeMillis() - lastActivity;
+    }
+
+    long bytesReceived() {
+        return bytesReceived;
+    }
+
+    private void pump() {
+        List<Integer> stored = new ArrayList<>();
+        try {
+            while (true) {
+                byte[] chunk = chunks.take();
+                if (chunk == ABORT) {
+                    for (Replica replica : live()) {
+                        try {
+                            replica.out.writeInt(-1);
+                            replica.out.flush();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                    return;
+                }
+                if (chunk == COMMIT) {
+                    for (Replica replica : live()) {
+                        try {
+                            replica.out.writeInt(0);
+                            replica.out.flush();
+                            if (replica.in.readBoolean()) stored.add(replica.nodeId);
+                        } catch (IOException e) {
+                            System.err.println("[COORDINATOR] Upload commit failed on node " + replica.nodeId + ": " + e.getMessage());
+                        }
+                    }
+                    return;
+                }
+                for (Replica replica : live()) {
+                    try {
+                        replica.out.writeInt(chunk.length);
+                        replica.out.write(chunk);
+                        replica.out.flush();
+                    } catch (IOException e) {
+                        replica.failed = true;
+                        System.err.println("[COORDINATOR] Upload to node " + replica.nodeId + " failed: " + e.getMessage());
+                    }
+                }
+                bytesReceived += chunk.length;
+                if (live().isEmpty()) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Replica replica : replicas) closeQuietly(replica.socket);
+            committed.complete(stored);
+            chunks.clear(); // release a writer blocked on a full queue
+        }
+    }
+
+    private List<Replica> live() {
+        List<Replica> live = new ArrayList<>(replicas.size());
+        for (Replica replica : replicas) {
+            if (!replica.failed) live.add(replica);
+        }
+        return live;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package server.services.membership;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// Nodes announce themselves to the coordinator on startup and leave on shutdown.
+// `proof` is Membership.proof(host, port), sealed with the cluster key.
+public interface MembershipService extends Remote {
+    // The node's stable id, or -1 if the proof is wrong or the cluster is full
+    int register(String host, int port, String proof) throws RemoteException;
+    boolean deregister(String host, int port, String proof) throws RemoteException;
+}
@@ -0,0 +1,118 @@
+package server.utility;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Self-contained login token: session id, user, role, department, expiry and a precomputed
+// permission mask, sealed with the cluster HMAC key. Any process holding the key (coordinator or
+// node) can check a token without a lookup; the coordinator additionally checks the session id
+// against its SessionStore for idle expiry and logout. Verified tokens are cached, so repeated
+// checks cost one map lookup and a few comparisons, with no allocation.
+public final class AuthToken {
+    public static final int ADD = 1;
+    public static final int EDIT = 1 << 1;
+    public static final int DELETE = 1 << 2;
+    public static final int VIEW = 1 << 3;
+    public static final int ALL = ADD | EDIT | DELETE | VIEW;
+
+    private static final int FORMAT = 2;
+    private static final int CACHE_LIMIT = 10_000;
+    private static final Map<String, AuthToken> verified = new ConcurrentHashMap<>();
+
+    public final String sessionId;
+    public final String username;
+    public final String role;
+    public final String department;
+    public final long expiresAt;
+    public final int permissions;
+    public final boolean anyDepartment;
+
+    private AuthToken(String sessionId, String username, String role, String department, long expiresAt, int permissions, boolean anyDepartment) {
+        this.sessionId = sessionId;
+        this.username = username;
+        this.role = role;
+        this.department = department;
+        this.expiresAt = expiresAt;
+        this.permissions = permissions;
+        this.anyDepartment = anyDepartment;
+    }
+
+    // Managers may do anything anywhere; everyone else may do everything in their own department.
+    public static String issue(String sessionId, String username, String role, String department, long ttlMillis) {
+        boolean manager = "manager".equals(role);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT);
+            out.writeUTF(sessionId);
+            out.writeUTF(username);
+            out.writeUTF(role);
+            out.writeUTF(department.trim());
+            out.writeLong(System.currentTimeMillis() + ttlMillis);
+            out.writeInt(ALL);
+            out.writeBoolean(manager);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Hmac.cluster().seal(bytes.toByteArray());
+    }
+
+    // The token's claims if it is authentic and unexpired, otherwise null
+    public static AuthToken verify(String token) {
+        if (token == null) return null;
+        AuthToken cached = verified.get(token);
+        if (cached == null) {
+            cached = parse(token);
+            if (cached == null) return null;
+            if (verified.size() >= CACHE_LIMIT) {
+                evictExpired();
+            }
+            verified.put(token, cached);
+        }
+        if (System.currentTimeMillis() >= cached.expiresAt) {
+            verified.remove(token);
+            return null;
+        }
+        return cached;
+    }
+
+    public static int actionBit(String action) {
+        if (action == null) return 0;
+        return switch (action.toLowerCase()) {
+            case "add" -> ADD;
+            case "edit" -> EDIT;
+            case "delete" -> DELETE;
+            case "view" -> VIEW;
+            default -> 0;
+        };
+    }
+
+    public boolean allows(String action, String department) {
+        if (anyDepartment) return true;
+        int bit = actionBit(action);
+        return (permissions & bit) != 0 && department != null && this.department.equalsIgnoreCase(department.trim());
+    }
+
+    public boolean isManager() {
+        return "manager".equals(role);
+    }
+
+    private static AuthToken parse(String token) {
+        byte[] payload = Hmac.cluster().open(token);
+        if (payload == null) return null;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readByte() != FORMAT) return null;
+            return new AuthToken(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(), in.readInt(), in.readBoolean());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void evictExpired() {
+        long now = System.currentTimeMillis();
+        verified.values().removeIf(t -> now >= t.expiresAt);
+        if (verified.size() >= CACHE_LIMIT) {
+            verified.clear(); // all live; they just get re-verified on next use
+        }
+    }
+}
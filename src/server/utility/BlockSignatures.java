@@ -0,0 +1,91 @@
+package server.utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// rsync-style signatures of a file's current version: for every full block a weak rolling checksum
+// and a strong MD5, plus the SHA-256 of the whole file so a patch can tell it is applied to the same
+// version it was computed against. A trailing partial block is not signed; it is always resent.
+public class BlockSignatures implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final int blockSize;
+    public final long fileLength;
+    public final byte[] fileHash;
+    public final int[] weak;
+    public final byte[][] strong;
+
+    private BlockSignatures(int blockSize, long fileLength, byte[] fileHash, int[] weak, byte[][] strong) {
+        this.blockSize = blockSize;
+        this.fileLength = fileLength;
+        this.fileHash = fileHash;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    // About sqrt(length), like rsync, so signatures stay small for big files and blocks fine for small ones
+    public static int blockSizeFor(long length) {
+        int size = (int) Math.min(Config.DELTA_MAX_BLOCK, Math.max(Config.DELTA_MIN_BLOCK, (long) Math.sqrt(length)));
+        return Integer.highestOneBit(size);
+    }
+
+    public static BlockSignatures of(InputStream in, long length) throws IOException {
+        int blockSize = blockSizeFor(length);
+        int blocks = (int) (length / blockSize);
+        int[] weak = new int[blocks];
+        byte[][] strong = new byte[blocks][];
+        MessageDigest file = sha256();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < blocks; i++) {
+            if (in.readNBytes(block, 0, blockSize) != blockSize) throw new IOException("file shrank while signing");
+            weak[i] = weak(block, 0, blockSize);
+            strong[i] = strong(block, 0, blockSize);
+            file.update(block);
+        }
+        int n;
+        while ((n = in.read(block)) > 0) {
+            file.update(block, 0, n);
+        }
+        return new BlockSignatures(blockSize, length, file.digest(), weak, strong);
+    }
+
+    // rsync's checksum: a = sum of the bytes, b = sum of the running a's, both mod 2^16
+    public static int weak(byte[] data, int offset, int length) {
+        int a = 0, b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += (length - i) * (data[offset + i] & 0xff);
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    // Slides a window of `length` bytes one byte forward: `out` leaves it, `in` enters it
+    public static int roll(int weak, int length, byte out, byte in) {
+        int a = weak & 0xffff;
+        int b = weak >>> 16;
+        a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+        b = (b - length * (out & 0xff) + a) & 0xffff;
+        return a | (b << 16);
+    }
+
+    public static byte[] strong(byte[] data, int offset, int length) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, offset, length);
+            return md5.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
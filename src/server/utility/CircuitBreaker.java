@@ -0,0 +1,106 @@
+package server.utility;
+
+import java.util.Arrays;
+
+// Per-node circuit breaker with a timeout derived from the node's recent latencies.
+// CLOSED: requests flow, consecutive failures are counted. OPEN: the node is skipped by routing
+// until a cool-down passes (doubling on every failed trial). HALF_OPEN: one trial request is let
+// through; its outcome closes or re-opens the breaker.
+// The timeout is a multiple of the p99 of the last samples, clamped between a floor and the
+// caller's ceiling, so a degraded node costs milliseconds rather than the old fixed seconds.
+// It is only meant for connects and small requests (stat, delete, listing): the samples are
+// dominated by those, so transfers of file contents wait their own fixed ceiling instead.
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int WINDOW = 128;
+    private static final int RECOMPUTE_EVERY = 16;
+
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount;
+    private int nextSample;
+    private volatile long adaptiveTimeout = Config.BREAKER_MAX_TIMEOUT;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private boolean trialInFlight;
+    private long openedAt;
+    private long coolDown = Config.BREAKER_OPEN_DURATION;
+
+    // Routing check, doesn't change state.
+    public synchronized boolean isAvailable() {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> System.currentTimeMillis() - openedAt >= coolDown;
+            case HALF_OPEN -> !trialInFlight;
+        };
+    }
+
+    public synchronized void onStart() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= coolDown) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            trialInFlight = true;
+        }
+    }
+
+    public synchronized void onSuccess(long latencyMs) {
+        recordLatency(latencyMs);
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            trialInFlight = false;
+            coolDown = Config.BREAKER_OPEN_DURATION;
+        }
+    }
+
+    // Returns true if this failure opened the breaker.
+    public synchronized boolean onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            coolDown = Math.min(coolDown * 2, Config.BREAKER_MAX_OPEN_DURATION);
+            open();
+            return true;
+        }
+        if (state == State.CLOSED && consecutiveFailures >= Config.BREAKER_FAILURE_THRESHOLD) {
+            open();
+            return true;
+        }
+        return false;
+    }
+
+    // A BUSY reply proves nothing either way; just let another trial through
+    public synchronized void onBusy() {
+        trialInFlight = false;
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    // Timeout to use for connects and the reads of small requests, never above `ceilingMs`.
+    public int timeoutMillis(int ceilingMs) {
+        return (int) Math.min(ceilingMs, adaptiveTimeout);
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void recordLatency(long latencyMs) {
+        samples[nextSample] = latencyMs;
+        nextSample = (nextSample + 1) % WINDOW;
+        if (sampleCount < WINDOW) sampleCount++;
+        if (sampleCount >= RECOMPUTE_EVERY && nextSample % RECOMPUTE_EVERY == 0) {
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            long p99 = sorted[Math.min(sampleCount - 1, (int) Math.ceil(sampleCount * 0.99) - 1)];
+            adaptiveTimeout = Math.max(Config.BREAKER_MIN_TIMEOUT,
+                    Math.min(Config.BREAKER_MAX_TIMEOUT, p99 * Config.BREAKER_TIMEOUT_MULTIPLIER));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package server.utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Immutable snapshot of the cluster: every member with its state, plus the active nodes
+// precomputed as a list and as a bitmask matching FileLocationIndex. Readers grab one view per
+// request and see a consistent cluster for its whole duration; writers build a new view and
+// publish it atomically (see Membership), which only happens on membership, liveness or load changes.
+public final class ClusterView {
+    public static final ClusterView EMPTY = new ClusterView(new TreeMap<>());
+
+    private final Map<Integer, NodeInfo> nodes;
+    private final List<Integer> activeNodes;
+    private final long activeMask;
+
+    private ClusterView(TreeMap<Integer, NodeInfo> nodes) {
+        List<Integer> active = new ArrayList<>();
+        long mask = 0L;
+        for (Map.Entry<Integer, NodeInfo> entry : nodes.entrySet()) {
+            if (entry.getValue().isActive) {
+                active.add(entry.getKey());
+                mask |= FileLocationIndex.bit(entry.getKey());
+            }
+        }
+        this.nodes = Collections.unmodifiableMap(nodes);
+        this.activeNodes = Collections.unmodifiableList(active);
+        this.activeMask = mask;
+    }
+
+    public NodeInfo node(int nodeId) {
+        return nodes.get(nodeId);
+    }
+
+    public boolean isActive(int nodeId) {
+        return nodeId >= 0 && nodeId < Config.MAX_NODES && (activeMask & FileLocationIndex.bit(nodeId)) != 0;
+    }
+
+    // Sorted by id, unmodifiable
+    public Map<Integer, NodeInfo> nodes() {
+        return nodes;
+    }
+
+    // Sorted by id, unmodifiable
+    public List<Integer> activeNodes() {
+        return activeNodes;
+    }
+
+    public long activeMask() {
+        return activeMask;
+    }
+
+    // Active nodes among a FileLocationIndex bitmask
+    public List<Integer> activeAmong(long locations) {
+        long rest = locations & activeMask;
+        List<Integer> result = new ArrayList<>(Long.bitCount(rest));
+        for (; rest != 0; rest &= rest - 1) {
+            result.add(Long.numberOfTrailingZeros(rest));
+        }
+        return result;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public ClusterView with(int nodeId, NodeInfo node) {
+        TreeMap<Integer, NodeInfo> next = new TreeMap<>(nodes);
+        next.put(nodeId, node);
+        return new ClusterView(next);
+    }
+
+    public ClusterView without(int nodeId) {
+        TreeMap<Integer, NodeInfo> next = new TreeMap<>(nodes);
+        next.remove(nodeId);
+        return new ClusterView(next);
+    }
+}
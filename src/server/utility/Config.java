@@ -1,11 +1,86 @@
 package server.utility;
 
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 public class Config {
 
-    public static final int MAX_RETRIES = 3;
-    public static final int HEALTH_CHECK_INTERVAL = 5000; // 5 seconds
     public static final int CONNECTION_TIMEOUT = 3000; // 3 seconds
     public static final int SOCKET_TIMEOUT = 5000; // 5 seconds
-    public static final int MAX_FAILURES = 3;
-    public static final int LOAD_UPDATE_INTERVAL = 2000; // 2 seconds
+    public static final int HEARTBEAT_INTERVAL = 1000; // 1 second, each reply carries the node's load
+    public static final int HEARTBEAT_THREADS = 4;
+    public static final int HEARTBEAT_WINDOW = 100; // inter-arrival samples kept per node
+    public static final int HEARTBEAT_MIN_STD_DEVIATION = 200;
+    public static final int HEARTBEAT_ACCEPTABLE_PAUSE = 1000;
+    public static final double PHI_THRESHOLD = 8.0; // ~3s of silence with a steady 1s heartbeat
+    public static final int MAX_NODES = 64; // node ids are bits in a long
+    // Where nodes find the coordinator's RMI registry, and the host they advertise for themselves
+    public static final String COORDINATOR_HOST = System.getProperty("dfs.coordinator", "localhost");
+    public static final int REGISTRY_PORT = 1099;
+    public static final String NODE_HOST = System.getProperty("dfs.nodeHost", "localhost");
+    public static final int REGISTER_RETRY_INTERVAL = 2000; // nodes keep trying until the coordinator is up
+    public static final String INDEX_DIR = "coordinator_data";
+    public static final int INDEX_SNAPSHOT_INTERVAL = 60000; // 1 minute
+    public static final int BREAKER_FAILURE_THRESHOLD = 3; // consecutive failures that open a node's breaker
+    public static final int BREAKER_OPEN_DURATION = 2000; // first cool-down before a trial request
+    public static final int BREAKER_MAX_OPEN_DURATION = 30000;
+    public static final int BREAKER_MIN_TIMEOUT = 250;
+    public static final int BREAKER_MAX_TIMEOUT = 10000;
+    public static final int BREAKER_TIMEOUT_MULTIPLIER = 4; // timeout = p99 latency x this
+    public static final int EDIT_LEASE_TTL = 30000; // edit locks expire unless the holder renews them
+    public static final int REPLICATION_FACTOR = 2;
+    // Departments stored as Reed-Solomon shards instead of replicas (-Ddfs.erasureCoded=A,B; none by default)
+    public static final Set<String> ERASURE_CODED_DEPARTMENTS = departments(System.getProperty("dfs.erasureCoded", ""));
+    public static final int EC_DATA_SHARDS = 4;
+    public static final int EC_PARITY_SHARDS = 2; // 50% overhead, any one node (up to 2 shards) can be lost
+    public static final long PLACEMENT_MIN_FREE_BYTES = 256L * 1024 * 1024; // nodes below this get no new replicas
+    public static final long PLACEMENT_REFERENCE_BANDWIDTH = 50L * 1024 * 1024; // bytes/s that count as one unit of load
+    public static final int RECOVERY_PARALLELISM = 4; // files re-replicated concurrently per failed node
+    public static final long RECOVERY_BANDWIDTH = 20L * 1024 * 1024; // bytes/s shared by all recoveries
+    public static final int RECOVERY_REPORT_INTERVAL = 5000;
+    public static final int REPLICATE_TIMEOUT = 30000; // node-to-node copy of one file
+    // Node backpressure: connections beyond this many waiting for a worker are answered BUSY right away
+    public static final int NODE_QUEUE_CAPACITY = 200;
+    public static final int NODE_BUSY_WATERMARK = 100;
+    public static final int NODE_BUSY_BACKOFF = 500; // ms the coordinator steers around a node that said BUSY
+    // Control lane: heartbeats, health pings and load queries go to port + offset, served by their
+    // own few threads so data transfers can't starve them
+    public static final int CONTROL_PORT_OFFSET = 1000;
+    public static final int CONTROL_THREADS = 8;
+    public static final int REBALANCE_INTERVAL = 60000;
+    public static final int REBALANCE_TRIGGER_DELAY = 5000; // after a node joins or comes back
+    public static final int REBALANCE_BATCH = 50; // moves per round
+    public static final double REBALANCE_TOLERANCE = 0.1; // nodes within 10% of the mean file count are left alone
+    public static final long REBALANCE_BANDWIDTH = 10L * 1024 * 1024; // bytes/s, separate from recovery
+    // Delta edits: files at least this big are edited by sending only changed blocks
+    public static final int DELTA_MIN_FILE = 64 * 1024;
+    public static final int DELTA_MIN_BLOCK = 2048;
+    public static final int DELTA_MAX_BLOCK = 64 * 1024;
+    public static final int TRANSFER_CHUNK_SIZE = 256 * 1024; // bytes per chunk of an upload/download session
+    public static final int TRANSFER_QUEUE_CHUNKS = 4; // chunks buffered per session on the coordinator
+    public static final int TRANSFER_IDLE_TIMEOUT = 10000; // nodes reap connections idle longer than this
+    public static final long AUTH_TOKEN_TTL = 8L * 60 * 60 * 1000; // absolute session lifetime, a working day
+    public static final long SESSION_IDLE_TTL = 30L * 60 * 1000; // sessions unused this long are dropped
+    public static final int MAX_SESSIONS_PER_USER = 8; // the oldest session goes when a user opens more
+    public static final int SESSION_REPORT_INTERVAL = 60000;
+    public static final int TRANSFER_TICKET_TTL = 60000; // how long a client may take to start a direct transfer
+    // HMAC key shared by the coordinator and the nodes, from -Ddfs.secret or DFS_SECRET; there is no default
+    public static final String CLUSTER_SECRET = System.getProperty("dfs.secret", System.getenv("DFS_SECRET"));
+    public static final int INVENTORY_PAGE_SIZE = 1000;
+    public static final int LIST_DEADLINE = 3000; // listing returns whatever nodes answered by then
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int INVENTORY_TIMEOUT = 60000; // 1 minute for the whole startup rebuild
+
+    // Servers refuse to start without a cluster key rather than fall back to a well-known one
+    public static void requireClusterSecret() {
+        if (CLUSTER_SECRET == null || CLUSTER_SECRET.isBlank()) {
+            System.err.println("No cluster secret: set -Ddfs.secret=... or DFS_SECRET on the coordinator and every node");
+            System.exit(1);
+        }
+    }
+
+    private static Set<String> departments(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).filter(d -> !d.isEmpty()).collect(Collectors.toUnmodifiableSet());
+    }
 }
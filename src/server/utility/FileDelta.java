@@ -0,0 +1,129 @@
+package server.utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// An edit expressed against the blocks of the version described by a BlockSignatures: runs of
+// blocks to copy from that version and literal bytes for everything else. Carries the hashes of
+// the old and the new version, so it is only applied to the exact file it was computed against
+// and the rebuilt file is checked before it replaces the old one.
+public class FileDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Either `count` base blocks starting at `block`, or literal `data`
+    public record Op(int block, int count, byte[] data) implements Serializable {}
+
+    public final int blockSize;
+    public final byte[] baseHash;
+    public final long newLength;
+    public final byte[] newHash;
+    public final List<Op> ops;
+
+    private FileDelta(int blockSize, byte[] baseHash, long newLength, byte[] newHash, List<Op> ops) {
+        this.blockSize = blockSize;
+        this.baseHash = baseHash;
+        this.newLength = newLength;
+        this.newHash = newHash;
+        this.ops = ops;
+    }
+
+    // Walks the new content with the rolling checksum; where the window matches a base block
+    // (weak first, then strong) it emits a copy and jumps a block ahead, otherwise the byte becomes a literal
+    public static FileDelta diff(BlockSignatures base, byte[] content) {
+        int blockSize = base.blockSize;
+        Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        for (int i = 0; i < base.weak.length; i++) {
+            byWeak.computeIfAbsent(base.weak[i], k -> new ArrayList<>(1)).add(i);
+        }
+
+        List<Op> ops = new ArrayList<>();
+        int literalStart = 0;
+        int pos = 0;
+        int weak = content.length >= blockSize ? BlockSignatures.weak(content, 0, blockSize) : 0;
+        while (pos + blockSize <= content.length) {
+            int match = -1;
+            List<Integer> candidates = byWeak.get(weak);
+            if (candidates != null) {
+                byte[] strong = BlockSignatures.strong(content, pos, blockSize);
+                for (int block : candidates) {
+                    if (Arrays.equals(strong, base.strong[block])) {
+                        match = block;
+                        break;
+                    }
+                }
+            }
+            if (match >= 0) {
+                if (literalStart < pos) ops.add(literal(content, literalStart, pos));
+                addCopy(ops, match);
+                pos += blockSize;
+                literalStart = pos;
+                if (pos + blockSize <= content.length) weak = BlockSignatures.weak(content, pos, blockSize);
+            } else {
+                if (pos + blockSize < content.length) {
+                    weak = BlockSignatures.roll(weak, blockSize, content[pos], content[pos + blockSize]);
+                }
+                pos++;
+            }
+        }
+        if (literalStart < content.length) ops.add(literal(content, literalStart, content.length));
+
+        MessageDigest sha = BlockSignatures.sha256();
+        return new FileDelta(blockSize, base.fileHash, content.length, sha.digest(content), ops);
+    }
+
+    // Literal bytes carried by the delta, i.e. roughly what it costs to send
+    public long literalBytes() {
+        long total = 0;
+        for (Op op : ops) {
+            if (op.data() != null) total += op.data().length;
+        }
+        return total;
+    }
+
+    // Writes the new version to `out` from `base`; returns false if the result doesn't hash to newHash
+    public boolean apply(RandomAccessFile base, OutputStream out) throws IOException {
+        MessageDigest sha = BlockSignatures.sha256();
+        byte[] buffer = new byte[blockSize];
+        long written = 0;
+        for (Op op : ops) {
+            if (op.data() != null) {
+                out.write(op.data());
+                sha.update(op.data());
+                written += op.data().length;
+                continue;
+            }
+            base.seek((long) op.block() * blockSize);
+            for (int i = 0; i < op.count(); i++) {
+                base.readFully(buffer);
+                out.write(buffer);
+                sha.update(buffer);
+                written += blockSize;
+            }
+        }
+        return written == newLength && MessageDigest.isEqual(sha.digest(), newHash);
+    }
+
+    private static Op literal(byte[] content, int from, int to) {
+        return new Op(-1, 0, Arrays.copyOfRange(content, from, to));
+    }
+
+    // Consecutive blocks collapse into one run, so an unchanged region costs one op
+    private static void addCopy(List<Op> ops, int block) {
+        if (!ops.isEmpty()) {
+            Op last = ops.get(ops.size() - 1);
+            if (last.data() == null && last.block() + last.count() == block) {
+                ops.set(ops.size() - 1, new Op(last.block(), last.count() + 1, null));
+                return;
+            }
+        }
+        ops.add(new Op(block, 1, null));
+    }
+}
@@ -0,0 +1,364 @@
+package server.utility;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Coordinator metadata: which nodes hold which file.
+// Locations are kept as a bitmask of node ids (bit i = node i), department names are interned
+// so every file of a department shares one Department object, and lookups do not allocate.
+// State is persisted as a periodic snapshot plus an append-only log of absolute entry states,
+// so a restarted coordinator gets its full location knowledge back by replaying both.
+// Every change is stamped with a generation, so a node inventory taken while writes go on can
+// leave alone the files that changed after its scan started (see beginScan).
+public class FileLocationIndex {
+    private static final int SNAPSHOT_MAGIC = 0x46494458; // "FIDX"
+    private static final byte OP_SET = 1;
+    private static final byte OP_REMOVE = 2;
+
+    public record FileKey(String department, String filename) {}
+
+    private static final class Department {
+        final String name;
+        final Map<String, Entry> files = new ConcurrentHashMap<>();
+
+        Department(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class Entry {
+        volatile long nodes;
+        volatile long changed; // generation of the last update
+    }
+
+    private final Map<String, Department> departments = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicInteger scans = new AtomicInteger();
+    // Generation at which files were removed, kept only while some scan is running
+    private final Map<FileKey, Long> removedAt = new ConcurrentHashMap<>();
+    private final Path snapshotFile;
+    private final Path walFile;
+    private final Path previousWalFile;
+    private final Object walLock = new Object();
+    private DataOutputStream wal;
+    private ScheduledExecutorService snapshotScheduler;
+
+    public FileLocationIndex(String dataDir) {
+        Path dir = Paths.get(dataDir);
+        this.snapshotFile = dir.resolve("locations.snapshot");
+        this.walFile = dir.resolve("locations.wal");
+        this.previousWalFile = dir.resolve("locations.wal.prev");
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            System.err.println("[INDEX] Failed to create data directory " + dir + ": " + e.getMessage());
+        }
+    }
+
+    // Loads the last snapshot and replays the log on top of it, then starts periodic snapshots.
+    public void start() {
+        long start = System.currentTimeMillis();
+        loadSnapshot();
+        replayLog(previousWalFile);
+        replayLog(walFile);
+        System.out.println("[INDEX] Recovered " + size() + " file locations in " +
+                (System.currentTimeMillis() - start) + " ms");
+
+        synchronized (walLock) {
+            openLog();
+        }
+        // Fold whatever was replayed into a fresh snapshot so the log starts short
+        snapshot();
+
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "LocationIndex-Snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(this::snapshot,
+                Config.INDEX_SNAPSHOT_INTERVAL, Config.INDEX_SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+        }
+        snapshot();
+        synchronized (walLock) {
+            closeLog();
+        }
+    }
+
+    // Bitmask of nodes holding the file, 0 if unknown.
+    public long nodes(String department, String filename) {
+        Department dept = departments.get(department);
+        if (dept == null) return 0L;
+        Entry entry = dept.files.get(filename);
+        return entry == null ? 0L : entry.nodes;
+    }
+
+    public boolean contains(String department, String filename) {
+        return nodes(department, filename) != 0L;
+    }
+
+    public void addLocation(String department, String filename, int nodeId) {
+        update(department, filename, bit(nodeId), 0L, Long.MAX_VALUE);
+    }
+
+    public void removeLocation(String department, String filename, int nodeId) {
+        update(department, filename, 0L, bit(nodeId), Long.MAX_VALUE);
+    }
+
+    public void setLocations(String department, String filename, long nodes) {
+        update(department, filename, nodes, ~0L, Long.MAX_VALUE);
+    }
+
+    // Starts an inventory scan (or anything else that copies first and indexes after, like a rebalancer
+    // move); returns the generation to pass to the *Unchanged methods and endScan
+    public long beginScan() {
+        scans.incrementAndGet();
+        return generation.get();
+    }
+
+    public void endScan() {
+        if (scans.decrementAndGet() == 0) removedAt.clear();
+    }
+
+    // addLocation, unless the file was written or removed after the scan started; returns whether it was added
+    public boolean addLocationIfUnchanged(String department, String filename, int nodeId, long scan) {
+        return update(department, filename, bit(nodeId), 0L, scan);
+    }
+
+    public void remove(String department, String filename) {
+        setLocations(department, filename, 0L);
+    }
+
+    public List<FileKey> filesOnNode(int nodeId) {
+        long mask = bit(nodeId);
+        List<FileKey> result = new ArrayList<>();
+        for (Department dept : departments.values()) {
+            for (Map.Entry<String, Entry> e : dept.files.entrySet()) {
+                if ((e.getValue().nodes & mask) != 0) {
+                    result.add(new FileKey(dept.name, e.getKey()));
+                }
+            }
+        }
+        return result;
+    }
+
+    // Clears the node's bit from every file it did not report, except those changed after the scan
+    // started (a write may have put them on the node after it listed the directory)
+    public int retainOnNode(int nodeId, Set<FileKey> present, long scan) {
+        int removed = 0;
+        for (FileKey key : filesOnNode(nodeId)) {
+            if (!present.contains(key) && update(key.department(), key.filename(), 0L, bit(nodeId), scan)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        int total = 0;
+        for (Department dept : departments.values()) {
+            total += dept.files.size();
+        }
+        return total;
+    }
+
+    public static long bit(int nodeId) {
+        if (nodeId < 0 || nodeId >= Config.MAX_NODES) {
+            throw new IllegalArgumentException("Node id out of range: " + nodeId);
+        }
+        return 1L << nodeId;
+    }
+
+    // Applies (nodes & ~clear) | set to one entry and logs the resulting state, unless the entry
+    // changed after generation `since` (Long.MAX_VALUE: unconditionally); returns whether it was applied.
+    // The entry monitor orders the log per file the same way memory was changed.
+    private boolean update(String department, String filename, long set, long clear, long since) {
+        Department dept = set != 0 ? departments.computeIfAbsent(department, Department::new) : departments.get(department);
+        if (dept == null) return false;
+        while (true) {
+            Entry entry = set != 0 ? dept.files.computeIfAbsent(filename, k -> new Entry()) : dept.files.get(filename);
+            if (entry == null) return false;
+            synchronized (entry) {
+                if (dept.files.get(filename) != entry) continue; // removed concurrently, retry on the live entry
+                if (entry.changed > since || removedSince(dept.name, filename, since)) {
+                    if (entry.nodes == 0) dept.files.remove(filename, entry); // created just for this check
+                    return false;
+                }
+                // Only direct updates are stamped: inventories of different nodes must not hold each other off
+                boolean direct = since == Long.MAX_VALUE;
+                long stamp = direct ? generation.incrementAndGet() : 0L;
+                if (direct) entry.changed = stamp;
+                long updated = (entry.nodes & ~clear) | set;
+                if (updated == entry.nodes && updated != 0) return true;
+                entry.nodes = updated;
+                if (updated == 0) {
+                    if (direct && scans.get() > 0) removedAt.put(new FileKey(dept.name, filename), stamp);
+                    dept.files.remove(filename, entry);
+                    appendLog(OP_REMOVE, dept.name, filename, 0L);
+                } else {
+                    appendLog(OP_SET, dept.name, filename, updated);
+                }
+                return true;
+            }
+        }
+    }
+
+    private boolean removedSince(String department, String filename, long since) {
+        if (since == Long.MAX_VALUE || removedAt.isEmpty()) return false;
+        Long removed = removedAt.get(new FileKey(department, filename));
+        return removed != null && removed > since;
+    }
+
+    private void appendLog(byte op, String department, String filename, long nodes) {
+        synchronized (walLock) {
+            if (wal == null) return; // still recovering
+            try {
+                wal.writeByte(op);
+                wal.writeUTF(department);
+                wal.writeUTF(filename);
+                wal.writeLong(nodes);
+                wal.flush();
+            } catch (IOException e) {
+                System.err.println("[INDEX] Failed to append to location log: " + e.getMessage());
+            }
+        }
+    }
+
+    private void openLog() {
+        try {
+            wal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(walFile.toFile(), true)));
+        } catch (IOException e) {
+            System.err.println("[INDEX] Failed to open location log: " + e.getMessage());
+        }
+    }
+
+    private void closeLog() {
+        if (wal == null) return;
+        try {
+            wal.close();
+        } catch (IOException e) {
+            System.err.println("[INDEX] Failed to close location log: " + e.getMessage());
+        }
+        wal = null;
+    }
+
+    // Rotates the log, writes the snapshot next to it and only then drops the rotated segment,
+    // so a crash at any point leaves a snapshot plus logs that replay to the current state.
+    public void snapshot() {
+        synchronized (walLock) {
+            if (wal == null) return;
+            if (Files.exists(previousWalFile)) {
+                // An earlier snapshot failed; this one covers that segment too, so keep the current log
+                System.err.println("[INDEX] Previous log segment still present, retrying snapshot");
+            } else {
+                closeLog();
+                try {
+                    Files.move(walFile, previousWalFile, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    System.err.println("[INDEX] Failed to rotate location log: " + e.getMessage());
+                }
+                openLog();
+            }
+        }
+
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            List<Department> depts = new ArrayList<>(departments.values());
+            out.writeInt(depts.size());
+            for (Department dept : depts) {
+                List<Map.Entry<String, Entry>> entries = new ArrayList<>(dept.files.entrySet());
+                out.writeUTF(dept.name);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().nodes);
+                }
+                count += entries.size();
+            }
+        } catch (IOException e) {
+            System.err.println("[INDEX] Failed to write snapshot: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(previousWalFile);
+            System.out.println("[INDEX] Snapshot written (" + count + " files)");
+        } catch (IOException e) {
+            System.err.println("[INDEX] Failed to install snapshot: " + e.getMessage());
+        }
+    }
+
+    private void loadSnapshot() {
+        if (!Files.exists(snapshotFile)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile.toFile())))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                System.err.println("[INDEX] Ignoring snapshot with unknown format: " + snapshotFile);
+                return;
+            }
+            int deptCount = in.readInt();
+            for (int d = 0; d < deptCount; d++) {
+                Department dept = departments.computeIfAbsent(in.readUTF(), Department::new);
+                int fileCount = in.readInt();
+                for (int f = 0; f < fileCount; f++) {
+                    String filename = in.readUTF();
+                    long nodes = in.readLong();
+                    if (nodes == 0) continue;
+                    Entry entry = new Entry();
+                    entry.nodes = nodes;
+                    dept.files.put(filename, entry);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[INDEX] Failed to load snapshot: " + e.getMessage());
+        }
+    }
+
+    private void replayLog(Path log) {
+        if (!Files.exists(log)) return;
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log.toFile())))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                String department = in.readUTF();
+                String filename = in.readUTF();
+                long nodes = in.readLong();
+                if (op == OP_SET) {
+                    setLocations(department, filename, nodes);
+                } else {
+                    remove(department, filename);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            System.err.println("[INDEX] Location log " + log.getFileName() + " ends with a torn record, ignoring it");
+        } catch (IOException e) {
+            System.err.println("[INDEX] Failed to replay location log: " + e.getMessage());
+        }
+        System.out.println("[INDEX] Replayed " + records + " records from " + log.getFileName());
+    }
+}
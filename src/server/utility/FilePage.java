@@ -0,0 +1,21 @@
+package server.utility;
+
+import java.io.Serializable;
+import java.util.List;
+
+// One page of a department listing. nextToken is null on the last page.
+public class FilePage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final List<String> files;
+    public final String nextToken;
+
+    public FilePage(List<String> files, String nextToken) {
+        this.files = files;
+        this.nextToken = nextToken;
+    }
+
+    public boolean hasMore() {
+        return nextToken != null;
+    }
+}
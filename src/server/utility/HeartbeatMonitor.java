@@ -0,0 +1,177 @@
+package server.utility;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Single heartbeat subsystem for the coordinator: one persistent connection per node,
+// probed in parallel, where every reply carries both liveness and the node's NodeLoadReport.
+// Nodes are judged by a phi accrual detector evaluated on its own schedule, so a node that
+// hangs in connect/read is suspected on time and never delays probes of other nodes.
+public class HeartbeatMonitor {
+
+    public interface Listener {
+        // Also the signal that a node is reachable again after being suspected
+        void onHeartbeat(int nodeId, NodeLoadReport report);
+
+        void onNodeSuspected(int nodeId, double phi);
+    }
+
+    private final class Watched {
+        final int nodeId;
+        final NodeInfo node;
+        final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(
+                Config.HEARTBEAT_WINDOW, Config.HEARTBEAT_INTERVAL, Config.HEARTBEAT_MIN_STD_DEVIATION,
+                Config.HEARTBEAT_ACCEPTABLE_PAUSE);
+        volatile boolean suspected;
+        ScheduledFuture<?> probeTask;
+        Socket socket;
+        ObjectOutputStream out;
+        ObjectInputStream in;
+
+        Watched(int nodeId, NodeInfo node) {
+            this.nodeId = nodeId;
+            this.node = node;
+            this.suspected = !node.isActive;
+        }
+    }
+
+    private final Listener listener;
+    private final Map<Integer, Watched> watched = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor scheduler;
+    private ScheduledFuture<?> evaluationTask;
+
+    public HeartbeatMonitor(Listener listener) {
+        this.listener = listener;
+        this.scheduler = new ScheduledThreadPoolExecutor(Config.HEARTBEAT_THREADS, r -> {
+            Thread t = new Thread(r, "Heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    public void start() {
+        evaluationTask = scheduler.scheduleAtFixedRate(this::evaluate,
+                Config.HEARTBEAT_INTERVAL, Config.HEARTBEAT_INTERVAL / 2, TimeUnit.MILLISECONDS);
+    }
+
+    public void watch(int nodeId, NodeInfo node) {
+        Watched w = new Watched(nodeId, node);
+        Watched previous = watched.put(nodeId, w);
+        if (previous != null) {
+            stopProbing(previous);
+        }
+        // Grow the pool with the cluster so every node can have a probe in flight
+        scheduler.setCorePoolSize(Math.max(Config.HEARTBEAT_THREADS, watched.size() + 1));
+        w.probeTask = scheduler.scheduleWithFixedDelay(() -> probe(w), 0, Config.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void unwatch(int nodeId) {
+        Watched w = watched.remove(nodeId);
+        if (w != null) {
+            stopProbing(w);
+        }
+    }
+
+    public double phi(int nodeId) {
+        Watched w = watched.get(nodeId);
+        return w == null ? Double.MAX_VALUE : w.detector.phi(System.currentTimeMillis());
+    }
+
+    public void shutdown() {
+        if (evaluationTask != null) evaluationTask.cancel(false);
+        for (Watched w : watched.values()) {
+            stopProbing(w);
+        }
+        scheduler.shutdownNow();
+    }
+
+    private void probe(Watched w) {
+        try {
+            if (w.socket == null) {
+                connect(w);
+            }
+            w.out.writeUTF("beat");
+            w.out.flush();
+            NodeLoadReport report = NodeLoadReport.readFrom(w.in);
+
+            long now = System.currentTimeMillis();
+            w.detector.heartbeat(now);
+            w.suspected = false;
+            listener.onHeartbeat(w.nodeId, report);
+        } catch (NodeBusyException e) {
+            // Too busy to take the channel, but it answered: alive. Reconnect next round.
+            w.detector.heartbeat(System.currentTimeMillis());
+            w.suspected = false;
+            disconnect(w);
+        } catch (IOException e) {
+            // Silence is what the detector judges; just drop the channel and reconnect next round
+            disconnect(w);
+        }
+    }
+
+    private void evaluate() {
+        long now = System.currentTimeMillis();
+        for (Watched w : watched.values()) {
+            if (w.suspected) continue;
+            double phi = w.detector.phi(now);
+            if (phi >= Config.PHI_THRESHOLD) {
+                w.suspected = true;
+                System.err.println("[HEARTBEAT] Node " + w.nodeId + " suspected (phi=" + String.format("%.1f", phi) +
+                        ", silent for " + w.detector.millisSinceLastHeartbeat(now) + " ms)");
+                try {
+                    listener.onNodeSuspected(w.nodeId, phi);
+                } catch (Exception e) {
+                    System.err.println("[HEARTBEAT] Error handling suspected node " + w.nodeId + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void connect(Watched w) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(w.node.host, w.node.controlPort()), Config.CONNECTION_TIMEOUT);
+            socket.setSoTimeout(Config.SOCKET_TIMEOUT);
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF("heartbeat");
+            w.socket = socket;
+            w.out = out;
+            w.in = in;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void disconnect(Watched w) {
+        if (w.socket != null) {
+            try {
+                w.socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        w.socket = null;
+        w.out = null;
+        w.in = null;
+    }
+
+    private void stopProbing(Watched w) {
+        if (w.probeTask != null) {
+            w.probeTask.cancel(true);
+        }
+        disconnect(w);
+    }
+}
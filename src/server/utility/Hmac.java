@@ -0,0 +1,65 @@
+package server.utility;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+// HMAC-SHA256 sealing of small payloads shared by the coordinator and the nodes.
+// seal() returns "<payload>.<signature>" in URL-safe Base64; open() gives the payload back only if
+// the signature matches. Mac instances are per thread, so signing and checking don't allocate one.
+public final class Hmac {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Hmac CLUSTER = new Hmac(Config.CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8));
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+
+    public Hmac(byte[] secret) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC unavailable", e);
+            }
+        });
+    }
+
+    // Keyed with Config.CLUSTER_SECRET, which every coordinator and node process shares
+    public static Hmac cluster() {
+        return CLUSTER;
+    }
+
+    public byte[] sign(byte[] data) {
+        return macs.get().doFinal(data);
+    }
+
+    public boolean verify(byte[] data, byte[] signature) {
+        return signature != null && MessageDigest.isEqual(sign(data), signature);
+    }
+
+    public String seal(byte[] payload) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(sign(payload));
+    }
+
+    // The payload, or null if the string is malformed or was not sealed with this key
+    public byte[] open(String sealed) {
+        if (sealed == null) return null;
+        int dot = sealed.indexOf('.');
+        if (dot <= 0 || dot == sealed.length() - 1) return null;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            byte[] payload = decoder.decode(sealed.substring(0, dot));
+            byte[] signature = decoder.decode(sealed.substring(dot + 1));
+            return verify(payload, signature) ? payload : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package server.utility;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Exclusive, expiring leases keyed by string (e.g. "dept/file" edit locks).
+// Acquire, renew and release are compare-and-set operations on a concurrent map, so unrelated keys
+// never contend. Every lease carries its expiry: an expired lease is ignored and can be taken
+// over immediately, and a timing wheel removes it in the background so crashed holders don't
+// leave entries behind.
+public class LeaseTable {
+
+    private static final class Lease {
+        final String holder;
+        final long expiresAt;
+        volatile TimingWheel.Timeout expiry;
+
+        Lease(String holder, long expiresAt) {
+            this.holder = holder;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean expired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final TimingWheel sweeper;
+    private final long ttlMillis;
+
+    public LeaseTable(String name, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.sweeper = new TimingWheel(name + "-Sweeper", 100, 512);
+        this.sweeper.start();
+    }
+
+    public long ttlMillis() {
+        return ttlMillis;
+    }
+
+    // Succeeds if the key is free, expired, or already held by `holder` (which renews it).
+    public boolean acquire(String key, String holder) {
+        Lease fresh = new Lease(holder, System.currentTimeMillis() + ttlMillis);
+        while (true) {
+            Lease current = leases.putIfAbsent(key, fresh);
+            if (current == null) break;
+            if (!current.holder.equals(holder) && !current.expired(System.currentTimeMillis())) {
+                return false;
+            }
+            if (leases.replace(key, current, fresh)) {
+                cancelExpiry(current);
+                break;
+            }
+            // Lost a race with another acquire/release on this key, look again
+        }
+        fresh.expiry = sweeper.schedule(() -> leases.remove(key, fresh), ttlMillis);
+        return true;
+    }
+
+    // Extends a live lease held by `holder`; an expired or foreign lease is not resurrected.
+    public boolean renew(String key, String holder) {
+        while (true) {
+            Lease current = leases.get(key);
+            if (current == null || !current.holder.equals(holder) || current.expired(System.currentTimeMillis())) {
+                return false;
+            }
+            Lease fresh = new Lease(holder, System.currentTimeMillis() + ttlMillis);
+            if (leases.replace(key, current, fresh)) {
+                cancelExpiry(current);
+                fresh.expiry = sweeper.schedule(() -> leases.remove(key, fresh), ttlMillis);
+                return true;
+            }
+        }
+    }
+
+    public boolean release(String key, String holder) {
+        Lease current = leases.get(key);
+        if (current == null || !current.holder.equals(holder)) return false;
+        if (leases.remove(key, current)) {
+            cancelExpiry(current);
+            return !current.expired(System.currentTimeMillis());
+        }
+        return false;
+    }
+
+    // Current holder, or null if the key is free or its lease has run out.
+    public String holder(String key) {
+        Lease current = leases.get(key);
+        return current == null || current.expired(System.currentTimeMillis()) ? null : current.holder;
+    }
+
+    public int size() {
+        return leases.size();
+    }
+
+    public void close() {
+        sweeper.stop();
+    }
+
+    private static void cancelExpiry(Lease lease) {
+        TimingWheel.Timeout expiry = lease.expiry;
+        if (expiry != null) expiry.cancel();
+    }
+}
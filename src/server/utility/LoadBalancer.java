@@ -1,33 +1,178 @@
 package server.utility;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Routing engine for node requests.
+// Every request is bracketed by onStart/onComplete, which keep a per-node in-flight count and an
+// EWMA of observed latency. Targets are picked with power-of-two-choices: sample two candidates
+// and take the one with the lower cost (latency x outstanding work). Sampling instead of always
+// taking the global minimum keeps concurrent requests from herding onto one "least loaded" node
+// between load reports. Each node also has a CircuitBreaker fed by the same outcomes: nodes whose
+// breaker is open are skipped, and request timeouts follow the node's observed latency.
 public class LoadBalancer {
     private final Map<Integer, NodeStats> nodeStats = new ConcurrentHashMap<>();
     private final List<Integer> availableNodes = new CopyOnWriteArrayList<>();
-    private final double CONNECTION_WEIGHT = 0.8; // Increased weight for connections
-    private final double RESPONSE_TIME_WEIGHT = 0.2; // Decreased weight for response time
+    private final double EWMA_ALPHA = 0.3; // weight of the newest latency sample
+    private final double INITIAL_RESPONSE_TIME = 10.0; // ms, until a node has been measured
+    private final double FAILURE_PENALTY = 5000.0; // ms charged to the EWMA for a failed request
+    private final double BUSY_PENALTY = 1000.0; // cost multiplier while a node is backing off after BUSY
+    private final AtomicLong busyReplies = new AtomicLong();
 
     public void addNode(int nodeId) {
-        nodeStats.putIfAbsent(nodeId, new NodeStats());
+        nodeStats.putIfAbsent(nodeId, new NodeStats(INITIAL_RESPONSE_TIME));
         if (!availableNodes.contains(nodeId)) {
             availableNodes.add(nodeId);
         }
     }
 
+    public void removeNode(int nodeId) {
+        availableNodes.remove(Integer.valueOf(nodeId));
+        nodeStats.remove(nodeId);
+    }
+
+    // Returns the start timestamp to hand back to onComplete.
+    public long onStart(int nodeId) {
+        NodeStats stats = stats(nodeId);
+        stats.activeConnections.incrementAndGet();
+        stats.breaker.onStart();
+        return System.nanoTime();
+    }
+
+    public void onComplete(int nodeId, long startNanos, boolean success) {
+        onComplete(nodeId, (System.nanoTime() - startNanos) / 1_000_000.0, success);
+    }
+
+    public void onComplete(int nodeId, double latencyMs, boolean success) {
+        NodeStats stats = stats(nodeId);
+        stats.activeConnections.decrementAndGet();
+        stats.completedRequests.incrementAndGet();
+        stats.record(success ? latencyMs : Math.max(latencyMs, FAILURE_PENALTY), EWMA_ALPHA);
+        if (success) {
+            stats.breaker.onSuccess((long) latencyMs);
+        } else if (stats.breaker.onFailure()) {
+            System.err.println("[COORDINATOR] Circuit breaker for node " + nodeId + " opened");
+        }
+    }
+
+    // The node refused the request with BUSY. It answered, so this is not a failure for the breaker,
+    // but routing steers around it for NODE_BUSY_BACKOFF so the retry goes to another replica.
+    public void onBusy(int nodeId, long startNanos) {
+        NodeStats stats = stats(nodeId);
+        stats.activeConnections.decrementAndGet();
+        stats.busyUntil = System.currentTimeMillis() + Config.NODE_BUSY_BACKOFF;
+        stats.breaker.onBusy();
+        busyReplies.incrementAndGet();
+    }
+
+    public long busyReplies() {
+        return busyReplies.get();
+    }
+
+    public boolean isAvailable(int nodeId) {
+        NodeStats stats = nodeStats.get(nodeId);
+        return stats == null || stats.breaker.isAvailable();
+    }
+
+    // Connect/read timeout for the next request to this node, capped at the caller's old fixed value.
+    public int timeoutMillis(int nodeId, int ceilingMs) {
+        NodeStats stats = nodeStats.get(nodeId);
+        return stats == null ? ceilingMs : stats.breaker.timeoutMillis(ceilingMs);
+    }
+
+    public CircuitBreaker.State breakerState(int nodeId) {
+        NodeStats stats = nodeStats.get(nodeId);
+        return stats == null ? CircuitBreaker.State.CLOSED : stats.breaker.state();
+    }
+
+    // Connections the node itself reports (heartbeat), which include work from other clients.
+    public void updateReportedLoad(int nodeId, int load) {
+        stats(nodeId).reportedLoad = load;
+    }
+
+    // Nodes with an open breaker are only considered when nothing else is left.
+    public int choose(List<Integer> candidates) {
+        if (candidates.isEmpty()) return -1;
+        // Only copy the list when some breaker is open, so the usual case doesn't allocate
+        int unavailable = 0;
+        for (Integer c : candidates) {
+            if (!isAvailable(c)) unavailable++;
+        }
+        if (unavailable > 0 && unavailable < candidates.size()) {
+            List<Integer> available = new ArrayList<>(candidates.size() - unavailable);
+            for (Integer c : candidates) {
+                if (isAvailable(c)) available.add(c);
+            }
+            candidates = available;
+        }
+        if (candidates.size() == 1) return candidates.get(0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(candidates.size());
+        int b = random.nextInt(candidates.size() - 1);
+        if (b >= a) b++;
+        int first = candidates.get(a);
+        int second = candidates.get(b);
+        return cost(first) <= cost(second) ? first : second;
+    }
+
+    // Up to `count` distinct candidates, each picked by power-of-two-choices among the rest.
+    // With count == candidates.size() this is a full preference order for failover.
+    public List<Integer> chooseDistinct(List<Integer> candidates, int count) {
+        List<Integer> remaining = new ArrayList<>(candidates);
+        List<Integer> chosen = new ArrayList<>(Math.min(count, remaining.size()));
+        while (chosen.size() < count && !remaining.isEmpty()) {
+            Integer pick = choose(remaining);
+            chosen.add(pick);
+            remaining.remove(pick);
+        }
+        return chosen;
+    }
+
+    public double cost(int nodeId) {
+        NodeStats stats = nodeStats.get(nodeId);
+        if (stats == null) return Double.MAX_VALUE;
+        int outstanding = Math.max(stats.activeConnections.get(), stats.reportedLoad);
+        double cost = stats.avgResponseTime * (outstanding + 1);
+        return System.currentTimeMillis() < stats.busyUntil ? cost * BUSY_PENALTY : cost;
+    }
+
+    public double averageResponseTime(int nodeId) {
+        NodeStats stats = nodeStats.get(nodeId);
+        return stats == null ? 0 : stats.avgResponseTime;
+    }
+
+    public int inFlight(int nodeId) {
+        NodeStats stats = nodeStats.get(nodeId);
+        return stats == null ? 0 : stats.activeConnections.get();
+    }
+
+    private NodeStats stats(int nodeId) {
+        return nodeStats.computeIfAbsent(nodeId, k -> new NodeStats(INITIAL_RESPONSE_TIME));
+    }
 
     private static class NodeStats {
-        int activeConnections;
-        double avgResponseTime;
-        int completedRequests;
-
-        public NodeStats() {
-            this.activeConnections = 0;
-            this.avgResponseTime = 0;
-            this.completedRequests = 0;
+        final AtomicInteger activeConnections;
+        volatile double avgResponseTime;
+        final AtomicLong completedRequests;
+        volatile int reportedLoad;
+        volatile long busyUntil;
+        final CircuitBreaker breaker = new CircuitBreaker();
+
+        public NodeStats(double initialResponseTime) {
+            this.activeConnections = new AtomicInteger(0);
+            this.avgResponseTime = initialResponseTime;
+            this.completedRequests = new AtomicLong(0);
+            this.reportedLoad = 0;
+        }
+
+        synchronized void record(double latencyMs, double alpha) {
+            avgResponseTime = alpha * latencyMs + (1 - alpha) * avgResponseTime;
         }
     }
-}
\ No newline at end of file
+}
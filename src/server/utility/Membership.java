@@ -0,0 +1,157 @@
+package server.utility;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Which nodes are in the cluster, as seen by the coordinator.
+// A node address gets a stable id the first time it registers and keeps it across restarts of the
+// node or the coordinator (ids are persisted next to the location index), so its bit in the
+// location index still means the same node. Readers take snapshot(), an immutable ClusterView;
+// every change (join, leave, liveness, load) publishes a new view with a compare-and-set.
+public class Membership {
+    private final Path file;
+    private final Map<String, Integer> ids = new HashMap<>(); // "host:port" -> id, ever assigned; guarded by this
+    private final AtomicReference<ClusterView> view = new AtomicReference<>(ClusterView.EMPTY);
+
+    public Membership(String dataDir) {
+        this.file = Paths.get(dataDir, "members");
+        load();
+    }
+
+    public ClusterView snapshot() {
+        return view.get();
+    }
+
+    public NodeInfo get(int nodeId) {
+        return view.get().node(nodeId);
+    }
+
+    public int size() {
+        return view.get().size();
+    }
+
+    public synchronized int idOf(String host, int port) {
+        return ids.getOrDefault(address(host, port), -1);
+    }
+
+    // Adds the node to the view and returns its id (the same one as last time for a known address).
+    // A node that is already a member keeps its entry. Returns -1 when all MAX_NODES ids are taken.
+    public synchronized int join(String host, int port) {
+        String address = address(host, port);
+        Integer id = ids.get(address);
+        if (id == null) {
+            id = freeId();
+            if (id < 0) return -1;
+            ids.put(address, id);
+        }
+        int nodeId = id;
+        view.updateAndGet(current -> current.node(nodeId) != null ? current :
+                current.with(nodeId, new NodeInfo(host, port, true, NodeLoadReport.UNKNOWN)));
+        save();
+        return id;
+    }
+
+    // Removes the node from the view; its id stays reserved for its address
+    public synchronized boolean leave(int nodeId) {
+        if (view.get().node(nodeId) == null) return false;
+        view.updateAndGet(current -> current.without(nodeId));
+        save();
+        return true;
+    }
+
+    // Marks the node up or down. True only for the call that actually flipped it, so exactly one
+    // caller reacts to each transition.
+    public boolean setActive(int nodeId, boolean active) {
+        while (true) {
+            ClusterView current = view.get();
+            NodeInfo node = current.node(nodeId);
+            if (node == null || node.isActive == active) return false;
+            if (view.compareAndSet(current, current.with(nodeId, node.withActive(active)))) return true;
+        }
+    }
+
+    // True if the report differs from the last one (and a new view was published)
+    public boolean setLoad(int nodeId, NodeLoadReport report) {
+        while (true) {
+            ClusterView current = view.get();
+            NodeInfo node = current.node(nodeId);
+            if (node == null || node.report.equals(report)) return false;
+            if (view.compareAndSet(current, current.with(nodeId, node.withReport(report)))) return true;
+        }
+    }
+
+    // What a node presents when it registers or leaves, so only processes holding the cluster key can change membership
+    public static String proof(String host, int port) {
+        return Hmac.cluster().seal(address(host, port).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static boolean verifyProof(String host, int port, String proof) {
+        byte[] payload = Hmac.cluster().open(proof);
+        return payload != null && address(host, port).equals(new String(payload, StandardCharsets.UTF_8));
+    }
+
+    private int freeId() {
+        boolean[] used = new boolean[Config.MAX_NODES];
+        for (int id : ids.values()) used[id] = true;
+        for (int id = 0; id < used.length; id++) {
+            if (!used[id]) return id;
+        }
+        return -1;
+    }
+
+    private static String address(String host, int port) {
+        return host + ":" + port;
+    }
+
+    // One line per known address: "<id> <host> <port> <member 1|0>"
+    private void load() {
+        if (!Files.exists(file)) return;
+        ClusterView members = ClusterView.EMPTY;
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length != 4) continue;
+                int id = Integer.parseInt(parts[0]);
+                int port = Integer.parseInt(parts[2]);
+                if (id < 0 || id >= Config.MAX_NODES) continue;
+                ids.put(address(parts[1], port), id);
+                if ("1".equals(parts[3])) {
+                    // Assumed up, as at startup before; the heartbeat monitor corrects that quickly
+                    members = members.with(id, new NodeInfo(parts[1], port, true, NodeLoadReport.UNKNOWN));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("[MEMBERSHIP] Failed to load " + file + ": " + e.getMessage());
+        }
+        view.set(members);
+        System.out.println("[MEMBERSHIP] Loaded " + members.size() + " members (" + ids.size() + " known addresses)");
+    }
+
+    private void save() {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        ClusterView members = view.get();
+        try {
+            Files.createDirectories(file.getParent());
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+                    String address = entry.getKey();
+                    int colon = address.lastIndexOf(':');
+                    out.write(entry.getValue() + " " + address.substring(0, colon) + " " + address.substring(colon + 1) +
+                            " " + (members.node(entry.getValue()) != null ? "1" : "0"));
+                    out.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[MEMBERSHIP] Failed to save " + file + ": " + e.getMessage());
+        }
+    }
+}
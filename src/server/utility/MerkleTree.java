@@ -0,0 +1,132 @@
+package server.utility;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Hash tree over a node's files ("department/filename" -> version), for anti-entropy: two nodes
+// holding the same files at the same versions have the same root, and where they differ only the
+// subtrees along the differing keys have different hashes. Keys are spread over FANOUT^DEPTH leaf
+// buckets by hash; a change re-hashes one leaf and its DEPTH ancestors the next time they are read.
+public class MerkleTree {
+    public static final int FANOUT = 16;
+    public static final int DEPTH = 3; // 4096 leaves
+    private static final byte[] EMPTY = new byte[32];
+
+    private final TreeMap<String, Long>[] leaves;
+    private final byte[][][] hashes; // [level][index], level 0 is the root, level DEPTH the leaves
+    private final boolean[][] dirty;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MerkleTree() {
+        leaves = new TreeMap[width(DEPTH)];
+        hashes = new byte[DEPTH + 1][][];
+        dirty = new boolean[DEPTH + 1][];
+        for (int level = 0; level <= DEPTH; level++) {
+            hashes[level] = new byte[width(level)][];
+            dirty[level] = new boolean[width(level)];
+            Arrays.fill(dirty[level], true);
+        }
+    }
+
+    public static int width(int level) {
+        return 1 << (4 * level); // FANOUT^level
+    }
+
+    public static int leafOf(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return h & (width(DEPTH) - 1);
+    }
+
+    public synchronized void put(String key, long version) {
+        int leaf = leafOf(key);
+        if (leaves[leaf] == null) leaves[leaf] = new TreeMap<>();
+        Long previous = leaves[leaf].put(key, version);
+        if (previous == null || previous != version) invalidate(leaf);
+    }
+
+    public synchronized void remove(String key) {
+        int leaf = leafOf(key);
+        if (leaves[leaf] != null && leaves[leaf].remove(key) != null) invalidate(leaf);
+    }
+
+    public synchronized byte[] root() {
+        return hash(0, 0);
+    }
+
+    // Hashes of the FANOUT children of node `index` on `level` (level < DEPTH)
+    public synchronized byte[][] children(int level, int index) {
+        byte[][] children = new byte[FANOUT][];
+        for (int i = 0; i < FANOUT; i++) {
+            children[i] = hash(level + 1, index * FANOUT + i);
+        }
+        return children;
+    }
+
+    // The entries of one leaf bucket
+    public synchronized HashMap<String, Long> leaf(int index) {
+        return leaves[index] == null ? new HashMap<>() : new HashMap<>(leaves[index]);
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Map<String, Long> leaf : leaves) {
+            if (leaf != null) size += leaf.size();
+        }
+        return size;
+    }
+
+    private void invalidate(int leaf) {
+        for (int level = DEPTH, index = leaf; level >= 0; level--, index /= FANOUT) {
+            dirty[level][index] = true;
+        }
+    }
+
+    // Empty subtrees hash to zeros, so they compare equal without being walked
+    private byte[] hash(int level, int index) {
+        if (!dirty[level][index]) return hashes[level][index];
+        byte[] hash;
+        if (level == DEPTH) {
+            TreeMap<String, Long> entries = leaves[index];
+            if (entries == null || entries.isEmpty()) {
+                hash = EMPTY;
+            } else {
+                MessageDigest sha = sha256();
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    sha.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                    sha.update((byte) 0);
+                    long version = entry.getValue();
+                    for (int shift = 56; shift >= 0; shift -= 8) sha.update((byte) (version >>> shift));
+                }
+                hash = sha.digest();
+            }
+        } else {
+            MessageDigest sha = sha256();
+            boolean empty = true;
+            for (int i = 0; i < FANOUT; i++) {
+                byte[] child = hash(level + 1, index * FANOUT + i);
+                empty &= child == EMPTY;
+                sha.update(child);
+            }
+            hash = empty ? EMPTY : sha.digest();
+        }
+        hashes[level][index] = hash;
+        dirty[level][index] = false;
+        return hash;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package server.utility;
+
+import java.io.IOException;
+
+// The node is up but its work queue is full; the request was not started, so another replica can take it
+public class NodeBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public NodeBusyException(String message) {
+        super(message);
+    }
+}
@@ -1,21 +1,32 @@
 package server.utility;
 
-import java.util.concurrent.atomic.AtomicInteger;
+// One node as it appears in a ClusterView. Immutable: a change of state publishes a new view.
+public final class NodeInfo {
+    public final String host;
+    public final int port;
+    public final boolean isActive;
+    public final int currentLoad;
+    public final NodeLoadReport report; // latest heartbeat
 
-public  class NodeInfo {
-    public   String host;
-    public   int port;
-    public AtomicInteger activeConnections;
-  public  boolean isActive;
-    public   int currentLoad;
-    public   int failureCount;
-
-    public NodeInfo(String host, int port, AtomicInteger activeConnections, boolean isActive) {
+    public NodeInfo(String host, int port, boolean isActive, NodeLoadReport report) {
         this.host = host;
         this.port = port;
-        this.activeConnections = activeConnections;
         this.isActive = isActive;
-        this.currentLoad = 0;
-        this.failureCount = 0;
+        this.report = report;
+        this.currentLoad = report.activeConnections;
+    }
+
+    // Where heartbeats and health checks go, so they never wait behind file transfers
+    public int controlPort() {
+        return port + Config.CONTROL_PORT_OFFSET;
+    }
+
+    public NodeInfo withActive(boolean active) {
+        // An offline node reports no load
+        return active == isActive ? this : new NodeInfo(host, port, active, active ? report : NodeLoadReport.UNKNOWN);
+    }
+
+    public NodeInfo withReport(NodeLoadReport report) {
+        return report.equals(this.report) ? this : new NodeInfo(host, port, isActive, report);
     }
-}
\ No newline at end of file
+}
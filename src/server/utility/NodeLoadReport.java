@@ -0,0 +1,77 @@
+package server.utility;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Objects;
+
+// What a node reports about itself on every heartbeat: connections, disk space, file I/O in
+// progress, throughput and worker-pool saturation. Written field by field (not Java-serialized)
+// so the once-a-second heartbeat stays small and cheap.
+public final class NodeLoadReport {
+    public static final NodeLoadReport UNKNOWN = new NodeLoadReport(0, -1, -1, 0, 0, 0, 0);
+
+    public final int activeConnections;
+    public final long diskFreeBytes;  // -1 if unknown
+    public final long diskTotalBytes; // -1 if unknown
+    public final int ioInFlight;      // file reads/writes currently running
+    public final long bytesPerSecond; // file bytes read + written since the previous report
+    public final int busyWorkers;
+    public final int workerPoolSize;
+
+    public NodeLoadReport(int activeConnections, long diskFreeBytes, long diskTotalBytes, int ioInFlight,
+                          long bytesPerSecond, int busyWorkers, int workerPoolSize) {
+        this.activeConnections = activeConnections;
+        this.diskFreeBytes = diskFreeBytes;
+        this.diskTotalBytes = diskTotalBytes;
+        this.ioInFlight = ioInFlight;
+        this.bytesPerSecond = bytesPerSecond;
+        this.busyWorkers = busyWorkers;
+        this.workerPoolSize = workerPoolSize;
+    }
+
+    // 0 = empty, 1 = full; 0 when unknown
+    public double diskUsedFraction() {
+        if (diskTotalBytes <= 0 || diskFreeBytes < 0) return 0;
+        return 1.0 - (double) diskFreeBytes / diskTotalBytes;
+    }
+
+    public double poolSaturation() {
+        return workerPoolSize <= 0 ? 0 : (double) busyWorkers / workerPoolSize;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(activeConnections);
+        out.writeLong(diskFreeBytes);
+        out.writeLong(diskTotalBytes);
+        out.writeInt(ioInFlight);
+        out.writeLong(bytesPerSecond);
+        out.writeInt(busyWorkers);
+        out.writeInt(workerPoolSize);
+    }
+
+    public static NodeLoadReport readFrom(DataInput in) throws IOException {
+        return new NodeLoadReport(in.readInt(), in.readLong(), in.readLong(), in.readInt(), in.readLong(),
+                in.readInt(), in.readInt());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof NodeLoadReport other)) return false;
+        return activeConnections == other.activeConnections && diskFreeBytes == other.diskFreeBytes &&
+                diskTotalBytes == other.diskTotalBytes && ioInFlight == other.ioInFlight &&
+                bytesPerSecond == other.bytesPerSecond && busyWorkers == other.busyWorkers &&
+                workerPoolSize == other.workerPoolSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(activeConnections, diskFreeBytes, diskTotalBytes, ioInFlight, bytesPerSecond, busyWorkers, workerPoolSize);
+    }
+
+    @Override
+    public String toString() {
+        return "conns=" + activeConnections + " disk=" + String.format("%.0f%%", diskUsedFraction() * 100) +
+                " io=" + ioInFlight + " " + bytesPerSecond + " B/s workers=" + busyWorkers + "/" + workerPoolSize;
+    }
+}
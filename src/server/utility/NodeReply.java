@@ -0,0 +1,34 @@
+package server.utility;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+// Every connection to a node starts with a status from the node, right after the stream header:
+// OK (the request will be served) or BUSY (the node's queue is full and the connection is being
+// closed). Clients open their input stream through open(), which turns BUSY into a NodeBusyException.
+public final class NodeReply {
+    public static final String OK = "OK";
+    public static final String BUSY = "BUSY";
+
+    private NodeReply() {
+    }
+
+    public static ObjectInputStream open(Socket socket) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+        String status = in.readUTF();
+        if (BUSY.equals(status)) {
+            throw new NodeBusyException("node " + socket.getRemoteSocketAddress() + " is busy");
+        }
+        if (!OK.equals(status)) {
+            throw new IOException("unexpected node status: " + status);
+        }
+        return in;
+    }
+
+    public static void write(ObjectOutputStream out, String status) throws IOException {
+        out.writeUTF(status);
+        out.flush();
+    }
+}
@@ -0,0 +1,72 @@
+package server.utility;
+
+// Phi accrual failure detector (Hayashibara et al.) for one node.
+// Keeps a window of heartbeat inter-arrival times and reports how unlikely the current silence is
+// given that history: phi = -log10(P(next heartbeat arrives later than now)).
+// Uses the logistic approximation of the normal CDF, as Akka/Cassandra do.
+public class PhiAccrualFailureDetector {
+    private static final int OUTAGE_FACTOR = 3; // gaps over 3x the expected interval (plus pause) are outages
+
+    private final long[] intervals;
+    private final long maxIntervalMs;
+    private final long minStdDeviationMs;
+    private final long acceptablePauseMs;
+    private int count;
+    private int next;
+    private long sum;
+    private long sumOfSquares;
+    private long lastHeartbeat;
+
+    public PhiAccrualFailureDetector(int windowSize, long expectedIntervalMs, long minStdDeviationMs, long acceptablePauseMs) {
+        this.intervals = new long[windowSize];
+        this.minStdDeviationMs = minStdDeviationMs;
+        this.acceptablePauseMs = acceptablePauseMs;
+        this.maxIntervalMs = expectedIntervalMs * OUTAGE_FACTOR + acceptablePauseMs;
+        // Bootstrap with the expected interval so a node that never answers is still suspected
+        record(expectedIntervalMs);
+        record(expectedIntervalMs + expectedIntervalMs / 4);
+        this.lastHeartbeat = System.currentTimeMillis();
+    }
+
+    // The gap before the first heartbeat after an outage is not a sample: recorded, it would inflate
+    // the mean and variance and mask the node's next failure until it left the window
+    public synchronized void heartbeat(long now) {
+        long interval = now - lastHeartbeat;
+        lastHeartbeat = now;
+        if (interval > 0 && interval <= maxIntervalMs) {
+            record(interval);
+        }
+    }
+
+    public synchronized double phi(long now) {
+        double mean = (double) sum / count + acceptablePauseMs;
+        double variance = (double) sumOfSquares / count - ((double) sum / count) * ((double) sum / count);
+        double std = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDeviationMs);
+        long elapsed = now - lastHeartbeat;
+
+        double y = (elapsed - mean) / std;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public synchronized long millisSinceLastHeartbeat(long now) {
+        return now - lastHeartbeat;
+    }
+
+    private void record(long interval) {
+        if (count == intervals.length) {
+            long evicted = intervals[next];
+            sum -= evicted;
+            sumOfSquares -= evicted * evicted;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        sumOfSquares += interval * interval;
+    }
+}
@@ -0,0 +1,74 @@
+package server.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
+
+// Decides which nodes get new replicas, from their latest NodeLoadReports. Lower score is better:
+//   disk       used/free ratio, 1 at half full and climbing steeply as the disk fills
+//   io         file operations in flight
+//   pool       worker pool saturation (0..1)
+//   bandwidth  bytes/s relative to PLACEMENT_REFERENCE_BANDWIDTH
+// Nodes with less than PLACEMENT_MIN_FREE_BYTES free are only used when nothing else is left.
+// Like request routing, each pick compares two random candidates instead of taking the global
+// best, so placements made between two heartbeats don't all land on the node that looked emptiest.
+public class PlacementScorer {
+    public static final PlacementScorer DEFAULT = new PlacementScorer(1.0, 0.25, 2.0, 0.5);
+
+    private final double diskWeight;
+    private final double ioWeight;
+    private final double poolWeight;
+    private final double bandwidthWeight;
+
+    public PlacementScorer(double diskWeight, double ioWeight, double poolWeight, double bandwidthWeight) {
+        this.diskWeight = diskWeight;
+        this.ioWeight = ioWeight;
+        this.poolWeight = poolWeight;
+        this.bandwidthWeight = bandwidthWeight;
+    }
+
+    public double score(NodeLoadReport report) {
+        double used = report.diskUsedFraction();
+        double disk = used / Math.max(0.01, 1 - used);
+        return diskWeight * disk +
+                ioWeight * report.ioInFlight +
+                poolWeight * report.poolSaturation() +
+                bandwidthWeight * report.bytesPerSecond / Config.PLACEMENT_REFERENCE_BANDWIDTH;
+    }
+
+    public boolean hasRoom(NodeLoadReport report) {
+        return report.diskFreeBytes < 0 || report.diskFreeBytes >= Config.PLACEMENT_MIN_FREE_BYTES;
+    }
+
+    public List<Integer> chooseDistinct(ClusterView view, List<Integer> candidates, int count) {
+        return chooseDistinct(candidates, nodeId -> {
+            NodeInfo node = view.node(nodeId);
+            return node == null ? NodeLoadReport.UNKNOWN : node.report;
+        }, count);
+    }
+
+    // Up to `count` distinct nodes, best first
+    public List<Integer> chooseDistinct(List<Integer> candidates, IntFunction<NodeLoadReport> reports, int count) {
+        List<Integer> roomy = new ArrayList<>(candidates.size());
+        for (int nodeId : candidates) {
+            if (hasRoom(reports.apply(nodeId))) roomy.add(nodeId);
+        }
+        List<Integer> remaining = roomy.size() >= Math.min(count, candidates.size()) ? roomy : new ArrayList<>(candidates);
+        List<Integer> chosen = new ArrayList<>(Math.min(count, remaining.size()));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (chosen.size() < count && !remaining.isEmpty()) {
+            int pick;
+            if (remaining.size() == 1) {
+                pick = 0;
+            } else {
+                int a = random.nextInt(remaining.size());
+                int b = random.nextInt(remaining.size() - 1);
+                if (b >= a) b++;
+                pick = score(reports.apply(remaining.get(a))) <= score(reports.apply(remaining.get(b))) ? a : b;
+            }
+            chosen.add(remaining.remove(pick));
+        }
+        return chosen;
+    }
+}
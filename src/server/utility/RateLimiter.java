@@ -0,0 +1,36 @@
+package server.utility;
+
+// Token bucket limiting a byte rate shared by several threads.
+// acquire() may take more than the bucket holds (a file larger than one second of budget);
+// the bucket then goes into debt and later callers wait it off, so the long-run rate holds.
+public class RateLimiter {
+    private final double bytesPerMilli;
+    private final double capacity;
+    private double available;
+    private long lastRefill;
+
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerMilli = bytesPerSecond / 1000.0;
+        this.capacity = bytesPerSecond; // allow bursts of up to one second
+        this.available = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    public void acquire(long bytes) throws InterruptedException {
+        long waitMs;
+        synchronized (this) {
+            refill();
+            available -= bytes;
+            waitMs = available >= 0 ? 0 : (long) Math.ceil(-available / bytesPerMilli);
+        }
+        if (waitMs > 0) {
+            Thread.sleep(waitMs);
+        }
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        available = Math.min(capacity, available + (now - lastRefill) * bytesPerMilli);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,207 @@
+package server.utility;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Evens out how many files each active node holds, so nodes that joined (or came back) empty take
+// their share of existing data instead of only new adds.
+// Each round plans moves from nodes above the mean to nodes below it and carries out at most
+// REBALANCE_BATCH of them, one at a time, under a shared bandwidth limit. A move copies first and
+// only then switches the index, so reads are served from the old location until the new copy is
+// in place. Rounds run periodically and whenever membership changes; they are skipped while a
+// recovery is running, since recovery has the bandwidth and the placement is still moving.
+public class Rebalancer {
+
+    public interface Cluster {
+        List<Integer> activeNodes();
+
+        // Bytes the node stores, or -1 if it could not be asked
+        long diskUsage(int nodeId);
+
+        // Recovering, being edited, ...: leave these files where they are for now
+        boolean isBusy(FileLocationIndex.FileKey key);
+
+        boolean isRecovering();
+
+        // Copies the file to `to`, records it there, then drops it from `from`.
+        // Returns the bytes copied, or -1 if nothing changed.
+        long move(FileLocationIndex.FileKey key, int from, int to) throws InterruptedException;
+    }
+
+    private record Move(FileLocationIndex.FileKey key, int from, int to) {}
+
+    private final FileLocationIndex index;
+    private final Cluster cluster;
+    private final RateLimiter bandwidth;
+    private final AtomicBoolean triggered = new AtomicBoolean();
+    private final AtomicInteger rounds = new AtomicInteger();
+    private final AtomicLong movedFiles = new AtomicLong();
+    private final AtomicLong failedMoves = new AtomicLong();
+    private final AtomicLong movedBytes = new AtomicLong();
+    private volatile int pendingMoves;
+    private volatile double fileSkew;
+    private volatile double diskSkew;
+    private ScheduledExecutorService scheduler;
+
+    public Rebalancer(FileLocationIndex index, Cluster cluster, RateLimiter bandwidth) {
+        this.index = index;
+        this.cluster = cluster;
+        this.bandwidth = bandwidth;
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Rebalancer");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::round, Config.REBALANCE_INTERVAL, Config.REBALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs a round soon (membership changed); repeated triggers before it starts collapse into one
+    public void trigger() {
+        if (scheduler != null && triggered.compareAndSet(false, true)) {
+            scheduler.schedule(this::round, Config.REBALANCE_TRIGGER_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    public String metrics() {
+        return "rounds=" + rounds.get() + " moved=" + movedFiles.get() + " failed=" + failedMoves.get() +
+                " bytes=" + movedBytes.get() + " pending=" + pendingMoves +
+                " fileSkew=" + String.format("%.2f", fileSkew) + " diskSkew=" + String.format("%.2f", diskSkew);
+    }
+
+    private void round() {
+        triggered.set(false);
+        try {
+            if (cluster.isRecovering()) return;
+            List<Integer> nodes = cluster.activeNodes();
+            if (nodes.size() < 2) return;
+            diskSkew = skew(diskUsage(nodes));
+
+            Map<Integer, List<FileLocationIndex.FileKey>> files = new HashMap<>();
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (int nodeId : nodes) {
+                List<FileLocationIndex.FileKey> onNode = index.filesOnNode(nodeId);
+                files.put(nodeId, onNode);
+                counts.put(nodeId, onNode.size());
+            }
+            fileSkew = skew(counts);
+            List<Move> plan = plan(files, counts);
+            pendingMoves = plan.size();
+            if (plan.isEmpty()) return;
+
+            rounds.incrementAndGet();
+            long start = System.currentTimeMillis();
+            int batch = Math.min(plan.size(), Config.REBALANCE_BATCH);
+            System.out.println("[REBALANCE] Round " + rounds.get() + ": " + plan.size() + " moves planned, running " +
+                    batch + " (file skew " + String.format("%.2f", fileSkew) + ", disk skew " +
+                    String.format("%.2f", diskSkew) + ")");
+            int done = 0;
+            long bytes = 0;
+            for (Move move : plan.subList(0, batch)) {
+                if (Thread.currentThread().isInterrupted() || cluster.isRecovering()) break;
+                if (cluster.isBusy(move.key())) continue;
+                long moved = cluster.move(move.key(), move.from(), move.to());
+                if (moved >= 0) {
+                    bandwidth.acquire(moved); // charged afterwards, like recovery
+                    movedFiles.incrementAndGet();
+                    movedBytes.addAndGet(moved);
+                    bytes += moved;
+                    done++;
+                } else {
+                    failedMoves.incrementAndGet();
+                }
+                pendingMoves--;
+            }
+            Map<Integer, Integer> after = new HashMap<>();
+            for (int nodeId : nodes) after.put(nodeId, index.filesOnNode(nodeId).size());
+            fileSkew = skew(after);
+            diskSkew = skew(diskUsage(nodes));
+            System.out.println("[REBALANCE] Round " + rounds.get() + " finished: " + done + "/" + batch + " moves, " +
+                    bytes + " bytes in " + (System.currentTimeMillis() - start) + " ms; " + metrics());
+            if (pendingMoves > 0 && done > 0) {
+                trigger(); // keep going until balanced, one throttled batch at a time
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("[REBALANCE] Round failed: " + e.getMessage());
+        }
+    }
+
+    // Greedy: the fullest node gives a file the emptiest node lacks, until every node is within
+    // REBALANCE_TOLERANCE of the mean (or nothing more can move)
+    private List<Move> plan(Map<Integer, List<FileLocationIndex.FileKey>> files, Map<Integer, Integer> counts) {
+        int total = 0;
+        for (int count : counts.values()) total += count;
+        double mean = (double) total / counts.size();
+        int high = (int) Math.ceil(mean * (1 + Config.REBALANCE_TOLERANCE));
+        int low = (int) Math.floor(mean * (1 - Config.REBALANCE_TOLERANCE));
+
+        Map<Integer, Set<FileLocationIndex.FileKey>> holdings = new HashMap<>();
+        Map<Integer, Deque<FileLocationIndex.FileKey>> candidates = new HashMap<>();
+        for (Map.Entry<Integer, List<FileLocationIndex.FileKey>> entry : files.entrySet()) {
+            holdings.put(entry.getKey(), new HashSet<>(entry.getValue()));
+            candidates.put(entry.getKey(), new ArrayDeque<>(entry.getValue()));
+        }
+        Comparator<Integer> byCount = Comparator.comparingInt(counts::get);
+        List<Move> plan = new ArrayList<>();
+        while (true) {
+            int donor = Collections.max(counts.keySet(), byCount);
+            int receiver = Collections.min(counts.keySet(), byCount);
+            if (counts.get(donor) <= high && counts.get(receiver) >= low) break;
+            if (counts.get(donor) - counts.get(receiver) <= 1) break;
+
+            // A file the receiver doesn't already hold, so the move keeps the replica count
+            Deque<FileLocationIndex.FileKey> donorFiles = candidates.get(donor);
+            FileLocationIndex.FileKey key = null;
+            while (!donorFiles.isEmpty()) {
+                FileLocationIndex.FileKey next = donorFiles.poll();
+                if (!holdings.get(receiver).contains(next)) {
+                    key = next;
+                    break;
+                }
+            }
+            if (key == null) break;
+            plan.add(new Move(key, donor, receiver));
+            holdings.get(donor).remove(key);
+            holdings.get(receiver).add(key);
+            counts.merge(donor, -1, Integer::sum);
+            counts.merge(receiver, 1, Integer::sum);
+        }
+        return plan;
+    }
+
+    private Map<Integer, Long> diskUsage(List<Integer> nodes) {
+        Map<Integer, Long> usage = new HashMap<>();
+        for (int nodeId : nodes) {
+            long bytes = cluster.diskUsage(nodeId);
+            if (bytes >= 0) usage.put(nodeId, bytes);
+        }
+        return usage;
+    }
+
+    // (max - min) / mean; 0 when perfectly even
+    private static double skew(Map<Integer, ? extends Number> values) {
+        if (values.isEmpty()) return 0;
+        double max = Double.NEGATIVE_INFINITY, min = Double.POSITIVE_INFINITY, sum = 0;
+        for (Number value : values.values()) {
+            double v = value.doubleValue();
+            max = Math.max(max, v);
+            min = Math.min(min, v);
+            sum += v;
+        }
+        double mean = sum / values.size();
+        return mean == 0 ? 0 : (max - min) / mean;
+    }
+}
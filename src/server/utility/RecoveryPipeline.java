@@ -0,0 +1,229 @@
+package server.utility;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+// Re-replicates the files of one failed node.
+// Files go through a priority queue (fewest surviving replicas first) drained by a bounded set of
+// workers; the caller's FileRecovery is expected to respect the shared bandwidth limiter.
+// Each finished file is appended to a checkpoint, so if the coordinator restarts mid-recovery the
+// next run for the same node skips what is already done. Progress is logged periodically.
+public class RecoveryPipeline {
+
+    public interface FileRecovery {
+        // Returns the number of bytes transferred, or -1 if the file could not be re-replicated.
+        long recover(FileLocationIndex.FileKey key, int failedNodeId) throws InterruptedException;
+    }
+
+    private record Job(FileLocationIndex.FileKey key, int survivingReplicas, long order) implements Comparable<Job> {
+        @Override
+        public int compareTo(Job other) {
+            int byReplicas = Integer.compare(survivingReplicas, other.survivingReplicas);
+            return byReplicas != 0 ? byReplicas : Long.compare(order, other.order);
+        }
+    }
+
+    private final int failedNodeId;
+    private final FileRecovery recovery;
+    private final int parallelism;
+    private final Path checkpointFile;
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+    private final AtomicInteger completedFiles = new AtomicInteger();
+    private final AtomicInteger failedFiles = new AtomicInteger();
+    private final AtomicInteger runningWorkers = new AtomicInteger();
+    private final AtomicLong bytesMoved = new AtomicLong();
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+    private final Object checkpointLock = new Object();
+    private DataOutputStream checkpoint;
+    private ExecutorService workers;
+    private ScheduledExecutorService reporter;
+    private volatile boolean cancelled;
+    private long startedAt;
+    private int totalFiles;
+    private int resumedFiles;
+
+    public RecoveryPipeline(int failedNodeId, FileRecovery recovery, int parallelism, String checkpointDir) {
+        this.failedNodeId = failedNodeId;
+        this.recovery = recovery;
+        this.parallelism = parallelism;
+        this.checkpointFile = Paths.get(checkpointDir, "recovery-node" + failedNodeId + ".ckpt");
+    }
+
+    public void start(List<FileLocationIndex.FileKey> files, ToIntFunction<FileLocationIndex.FileKey> survivingReplicas) {
+        startedAt = System.currentTimeMillis();
+        Set<FileLocationIndex.FileKey> done = loadCheckpoint();
+        long order = 0;
+        for (FileLocationIndex.FileKey key : files) {
+            if (done.contains(key)) {
+                resumedFiles++;
+                continue;
+            }
+            queue.add(new Job(key, survivingReplicas.applyAsInt(key), order++));
+        }
+        totalFiles = queue.size();
+        openCheckpoint();
+
+        int singleReplica = (int) queue.stream().filter(j -> j.survivingReplicas() <= 1).count();
+        System.out.println("[RECOVERY] Node " + failedNodeId + ": " + totalFiles + " files to re-replicate (" +
+                singleReplica + " down to a single replica" +
+                (resumedFiles > 0 ? ", " + resumedFiles + " already done before restart" : "") + ")");
+
+        reporter = Executors.newSingleThreadScheduledExecutor(daemon("RecoveryProgress-" + failedNodeId));
+        reporter.scheduleAtFixedRate(this::report, Config.RECOVERY_REPORT_INTERVAL, Config.RECOVERY_REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+        int threads = Math.max(1, Math.min(parallelism, totalFiles));
+        workers = Executors.newFixedThreadPool(threads, daemon("Recovery-" + failedNodeId));
+        runningWorkers.set(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::drain);
+        }
+    }
+
+    // Stops taking new files; the node came back, so the checkpoint no longer describes a live incident.
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+        if (workers != null) workers.shutdownNow();
+    }
+
+    public CompletableFuture<Void> finished() {
+        return finished;
+    }
+
+    public int completedFiles() {
+        return completedFiles.get();
+    }
+
+    public int failedFiles() {
+        return failedFiles.get();
+    }
+
+    public int remainingFiles() {
+        return queue.size();
+    }
+
+    public long bytesMoved() {
+        return bytesMoved.get();
+    }
+
+    public double bytesPerSecond() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startedAt);
+        return bytesMoved.get() * 1000.0 / elapsed;
+    }
+
+    private void drain() {
+        try {
+            Job job;
+            while (!cancelled && (job = queue.poll()) != null) {
+                try {
+                    long bytes = recovery.recover(job.key(), failedNodeId);
+                    if (bytes >= 0) {
+                        bytesMoved.addAndGet(bytes);
+                        completedFiles.incrementAndGet();
+                        appendCheckpoint(job.key());
+                    } else {
+                        failedFiles.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    failedFiles.incrementAndGet();
+                    System.err.println("[RECOVERY] Error recovering " + job.key() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            if (runningWorkers.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+    }
+
+    private void complete() {
+        reporter.shutdownNow();
+        workers.shutdown();
+        synchronized (checkpointLock) {
+            closeCheckpoint();
+            try {
+                Files.deleteIfExists(checkpointFile);
+            } catch (IOException e) {
+                System.err.println("[RECOVERY] Failed to delete checkpoint " + checkpointFile + ": " + e.getMessage());
+            }
+        }
+        long elapsed = System.currentTimeMillis() - startedAt;
+        System.out.println("[RECOVERY] Node " + failedNodeId + (cancelled ? " recovery cancelled" : " recovery finished") +
+                ": " + completedFiles.get() + " files re-replicated, " + failedFiles.get() + " failed, " +
+                bytesMoved.get() + " bytes in " + elapsed + " ms (" + String.format("%.0f", bytesPerSecond()) + " B/s)");
+        finished.complete(null);
+    }
+
+    private void report() {
+        System.out.println("[RECOVERY] Node " + failedNodeId + " progress: " + completedFiles.get() + "/" + totalFiles +
+                " files, " + queue.size() + " remaining, " + failedFiles.get() + " failed, " +
+                String.format("%.0f", bytesPerSecond()) + " B/s");
+    }
+
+    private Set<FileLocationIndex.FileKey> loadCheckpoint() {
+        Set<FileLocationIndex.FileKey> done = new HashSet<>();
+        if (!Files.exists(checkpointFile)) return done;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile.toFile())))) {
+            while (true) {
+                done.add(new FileLocationIndex.FileKey(in.readUTF(), in.readUTF()));
+            }
+        } catch (EOFException e) {
+            // end of checkpoint (a torn last record is simply redone)
+        } catch (IOException e) {
+            System.err.println("[RECOVERY] Failed to read checkpoint " + checkpointFile + ": " + e.getMessage());
+        }
+        return done;
+    }
+
+    private void openCheckpoint() {
+        synchronized (checkpointLock) {
+            try {
+                Files.createDirectories(checkpointFile.getParent());
+                checkpoint = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(checkpointFile.toFile(), true)));
+            } catch (IOException e) {
+                System.err.println("[RECOVERY] Failed to open checkpoint " + checkpointFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void appendCheckpoint(FileLocationIndex.FileKey key) {
+        synchronized (checkpointLock) {
+            if (checkpoint == null) return;
+            try {
+                checkpoint.writeUTF(key.department());
+                checkpoint.writeUTF(key.filename());
+                checkpoint.flush();
+            } catch (IOException e) {
+                System.err.println("[RECOVERY] Failed to write checkpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    private void closeCheckpoint() {
+        if (checkpoint == null) return;
+        try {
+            checkpoint.close();
+        } catch (IOException ignored) {
+        }
+        checkpoint = null;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
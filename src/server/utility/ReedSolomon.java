@@ -0,0 +1,171 @@
+package server.utility;
+
+import java.util.Arrays;
+
+// Systematic Reed-Solomon code over GF(256): a file is cut into k data shards and m parity shards
+// are computed from them; any k of the k+m shards give the file back.
+// The encoding matrix is the identity on top of a Cauchy matrix (1 / (x_i + y_j) with x and y
+// disjoint), so every k x k submatrix of it is invertible.
+public class ReedSolomon {
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= 0x11d; // x^8 + x^4 + x^3 + x^2 + 1
+        }
+        for (int i = 255; i < EXP.length; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    public final int dataShards;
+    public final int parityShards;
+    private final int[][] matrix; // (k + m) x k
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("unsupported code " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        matrix = new int[dataShards + parityShards][dataShards];
+        for (int r = 0; r < dataShards; r++) matrix[r][r] = 1;
+        for (int p = 0; p < parityShards; p++) {
+            for (int c = 0; c < dataShards; c++) {
+                matrix[dataShards + p][c] = inverse((dataShards + p) ^ c);
+            }
+        }
+    }
+
+    public int totalShards() {
+        return dataShards + parityShards;
+    }
+
+    public static int shardSize(long length, int dataShards) {
+        return (int) Math.max(1, (length + dataShards - 1) / dataShards);
+    }
+
+    // All k + m shards of `data`; the last data shard is zero-padded
+    public byte[][] encode(byte[] data) {
+        int size = shardSize(data.length, dataShards);
+        byte[][] shards = new byte[totalShards()][];
+        for (int i = 0; i < dataShards; i++) {
+            int from = Math.min(data.length, i * size);
+            shards[i] = Arrays.copyOf(Arrays.copyOfRange(data, from, Math.min(data.length, from + size)), size);
+        }
+        for (int p = 0; p < parityShards; p++) {
+            shards[dataShards + p] = combine(matrix[dataShards + p], shards, size);
+        }
+        return shards;
+    }
+
+    // Fills in the missing (null) entries of `shards` from any k present ones.
+    // Returns false if fewer than k are present.
+    public boolean reconstruct(byte[][] shards) {
+        int[] present = new int[dataShards];
+        int found = 0;
+        int size = -1;
+        for (int i = 0; i < shards.length && found < dataShards; i++) {
+            if (shards[i] != null) {
+                present[found++] = i;
+                size = shards[i].length;
+            }
+        }
+        if (found < dataShards) return false;
+
+        boolean dataComplete = true;
+        for (int i = 0; i < dataShards; i++) dataComplete &= shards[i] != null;
+        if (!dataComplete) {
+            int[][] sub = new int[dataShards][];
+            byte[][] inputs = new byte[dataShards][];
+            for (int j = 0; j < dataShards; j++) {
+                sub[j] = matrix[present[j]];
+                inputs[j] = shards[present[j]];
+            }
+            int[][] decode = invert(sub);
+            for (int i = 0; i < dataShards; i++) {
+                if (shards[i] == null) shards[i] = combine(decode[i], inputs, size);
+            }
+        }
+        for (int p = 0; p < parityShards; p++) {
+            if (shards[dataShards + p] == null) {
+                shards[dataShards + p] = combine(matrix[dataShards + p], shards, size);
+            }
+        }
+        return true;
+    }
+
+    // The original `length` bytes, or null if fewer than k shards are present
+    public byte[] decode(byte[][] shards, long length) {
+        if (!reconstruct(shards)) return null;
+        byte[] data = new byte[(int) length];
+        int size = shards[0].length;
+        for (int i = 0, offset = 0; i < dataShards && offset < data.length; i++, offset += size) {
+            System.arraycopy(shards[i], 0, data, offset, Math.min(size, data.length - offset));
+        }
+        return data;
+    }
+
+    // sum over j of coefficients[j] * inputs[j], byte by byte
+    private static byte[] combine(int[] coefficients, byte[][] inputs, int size) {
+        byte[] out = new byte[size];
+        for (int j = 0; j < coefficients.length; j++) {
+            int c = coefficients[j];
+            if (c == 0) continue;
+            byte[] row = MUL[c];
+            byte[] in = inputs[j];
+            if (c == 1) {
+                for (int b = 0; b < size; b++) out[b] ^= in[b];
+            } else {
+                for (int b = 0; b < size; b++) out[b] ^= row[in[b] & 0xff];
+            }
+        }
+        return out;
+    }
+
+    // Gauss-Jordan elimination; addition in GF(256) is XOR
+    private static int[][] invert(int[][] m) {
+        int n = m.length;
+        int[][] a = new int[n][2 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(m[i], 0, a[i], 0, n);
+            a[i][n + i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (a[pivot][col] == 0) {
+                if (++pivot == n) throw new IllegalStateException("singular matrix");
+            }
+            int[] swap = a[col];
+            a[col] = a[pivot];
+            a[pivot] = swap;
+            int scale = inverse(a[col][col]);
+            for (int j = 0; j < 2 * n; j++) a[col][j] = multiply(a[col][j], scale);
+            for (int r = 0; r < n; r++) {
+                int factor = a[r][col];
+                if (r == col || factor == 0) continue;
+                for (int j = 0; j < 2 * n; j++) a[r][j] ^= multiply(factor, a[col][j]);
+            }
+        }
+        int[][] inverse = new int[n][n];
+        for (int i = 0; i < n; i++) System.arraycopy(a[i], n, inverse[i], 0, n);
+        return inverse;
+    }
+
+    private static int multiply(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+}
@@ -0,0 +1,53 @@
+package server.utility;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+// One erasure-coded piece of a file. Self-describing, so a node's shards are enough to rebuild the
+// file without any metadata on the coordinator. `version` comes from the coordinator's version
+// clock, so shards of different writes never get mixed and readers can tell which write is newest.
+public class Shard implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int MAGIC = 0x45435348; // "ECSH"
+
+    public final long version;
+    public final int dataShards;
+    public final int parityShards;
+    public final int index;
+    public final long fileLength;
+    public final byte[] data;
+
+    public Shard(long version, int dataShards, int parityShards, int index, long fileLength, byte[] data) {
+        this.version = version;
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.index = index;
+        this.fileLength = fileLength;
+        this.data = data;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeLong(version);
+        out.writeInt(dataShards);
+        out.writeInt(parityShards);
+        out.writeInt(index);
+        out.writeLong(fileLength);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    public static Shard readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("not a shard");
+        long version = in.readLong();
+        int dataShards = in.readInt();
+        int parityShards = in.readInt();
+        int index = in.readInt();
+        long fileLength = in.readLong();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new Shard(version, dataShards, parityShards, index, fileLength, data);
+    }
+}
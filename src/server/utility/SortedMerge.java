@@ -0,0 +1,57 @@
+package server.utility;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// K-way merge of lists that are each sorted in natural order, dropping duplicates.
+public class SortedMerge {
+
+    private static final class Cursor<T> {
+        final Iterator<T> source;
+        T head;
+
+        Cursor(Iterator<T> source) {
+            this.source = source;
+            this.head = source.next();
+        }
+
+        boolean advance() {
+            if (!source.hasNext()) return false;
+            head = source.next();
+            return true;
+        }
+    }
+
+    public static <T extends Comparable<? super T>> List<T> mergeDistinct(List<? extends List<T>> sortedLists) {
+        return mergeDistinct(sortedLists, Integer.MAX_VALUE);
+    }
+
+    // Stops after `limit` distinct elements, so callers paging through large lists don't merge everything.
+    public static <T extends Comparable<? super T>> List<T> mergeDistinct(List<? extends List<T>> sortedLists, int limit) {
+        PriorityQueue<Cursor<T>> heap = new PriorityQueue<>(Math.max(1, sortedLists.size()),
+                (a, b) -> a.head.compareTo(b.head));
+        int expected = 0;
+        for (List<T> list : sortedLists) {
+            if (!list.isEmpty()) {
+                heap.add(new Cursor<>(list.iterator()));
+                expected = Math.max(expected, list.size());
+            }
+        }
+
+        List<T> result = new ArrayList<>(Math.min(expected, limit));
+        T last = null;
+        while (!heap.isEmpty() && result.size() < limit) {
+            Cursor<T> cursor = heap.poll();
+            if (last == null || cursor.head.compareTo(last) != 0) {
+                last = cursor.head;
+                result.add(last);
+            }
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+        }
+        return result;
+    }
+}
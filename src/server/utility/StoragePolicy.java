@@ -0,0 +1,23 @@
+package server.utility;
+
+// How a department's files are stored: full replicas (the default) or Reed-Solomon shards.
+// With k data + m parity shards and at most m shards per node, any one node can be lost, at
+// m/k extra storage instead of the 100% of a second replica.
+public record StoragePolicy(int dataShards, int parityShards) {
+    public static final StoragePolicy REPLICATED = new StoragePolicy(0, 0);
+
+    public static StoragePolicy forDepartment(String department) {
+        return Config.ERASURE_CODED_DEPARTMENTS.contains(department)
+                ? new StoragePolicy(Config.EC_DATA_SHARDS, Config.EC_PARITY_SHARDS)
+                : REPLICATED;
+    }
+
+    public boolean erasureCoded() {
+        return dataShards > 0;
+    }
+
+    // Fewest nodes that keep every node at or below m shards
+    public int minNodes() {
+        return (dataShards + parityShards + parityShards - 1) / parityShards;
+    }
+}
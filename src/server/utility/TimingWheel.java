@@ -0,0 +1,117 @@
+package server.utility;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Hashed timing wheel for large numbers of cheap timeouts (leases, idle sessions).
+// schedule() only appends to a lock-free queue; a single worker thread moves new timeouts into
+// the slot for their deadline once per tick and runs the ones that are due. A timeout further
+// away than one revolution waits out the extra rounds in its slot. Expiry is accurate to a tick.
+public class TimingWheel {
+
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<Timeout>[] slots;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running;
+    private long tick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(String name, long tickMillis, int slotCount) {
+        this.tickMillis = tickMillis;
+        this.slots = new List[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.startTime = System.currentTimeMillis();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delayMillis));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long sleep = startTime + (tick + 1) * tickMillis - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferPending();
+            expire(slots[(int) (tick % slots.length)], System.currentTimeMillis());
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long dueTick = (timeout.deadline - startTime) / tickMillis;
+            timeout.remainingRounds = Math.max(0, (dueTick - tick) / slots.length);
+            // Already overdue timeouts go in the current slot and fire on this tick
+            slots[(int) (Math.max(dueTick, tick) % slots.length)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> slot, long now) {
+        Iterator<Timeout> it = slot.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else if (timeout.deadline <= now) {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    System.err.println("[TIMER] Timeout task failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
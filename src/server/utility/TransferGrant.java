@@ -0,0 +1,22 @@
+package server.utility;
+
+import java.io.Serializable;
+import java.util.List;
+
+// Where a client should send (or fetch) a file's bytes, with one ticket per node.
+// For downloads the targets are in preference order; for uploads every target should get the file.
+public class TransferGrant implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public record Target(int nodeId, String host, int port, String ticket) implements Serializable {}
+
+    public final String department;
+    public final String filename;
+    public final List<Target> targets;
+
+    public TransferGrant(String department, String filename, List<Target> targets) {
+        this.department = department;
+        this.filename = filename;
+        this.targets = targets;
+    }
+}
@@ -0,0 +1,91 @@
+package server.utility;
+
+import java.io.*;
+
+// Short-lived permission, signed by the coordinator, for a client to move one file's bytes
+// directly to or from one node. The node checks it with the shared key and its own port, so it
+// needs no call back to the coordinator. After an upload the node hands the client a signed
+// receipt naming the version it stored, which the coordinator verifies before recording the new
+// location.
+public final class TransferTicket {
+    public static final String UPLOAD = "upload";
+    public static final String DOWNLOAD = "download";
+    private static final String RECEIPT = "stored";
+
+    public record Receipt(int nodeId, String department, String filename, long version, long bytes) {}
+
+    public final String operation;
+    public final int nodeId;
+    public final int port;
+    public final String department;
+    public final String filename;
+    public final long version; // uploads: the version the stored file gets
+    public final long expiresAt;
+
+    private TransferTicket(String operation, int nodeId, int port, String department, String filename, long version, long expiresAt) {
+        this.operation = operation;
+        this.nodeId = nodeId;
+        this.port = port;
+        this.department = department;
+        this.filename = filename;
+        this.version = version;
+        this.expiresAt = expiresAt;
+    }
+
+    public static String issue(String operation, int nodeId, int port, String department, String filename,
+                               long version, long ttlMillis) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(operation);
+            out.writeInt(nodeId);
+            out.writeInt(port);
+            out.writeUTF(department);
+            out.writeUTF(filename);
+            out.writeLong(version);
+            out.writeLong(System.currentTimeMillis() + ttlMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Hmac.cluster().seal(bytes.toByteArray());
+    }
+
+    // The ticket if it is authentic, unexpired, for `operation` and addressed to `port`; otherwise null
+    public static TransferTicket verify(String ticket, String operation, int port) {
+        byte[] payload = Hmac.cluster().open(ticket);
+        if (payload == null) return null;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            TransferTicket parsed = new TransferTicket(in.readUTF(), in.readInt(), in.readInt(), in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+            if (!parsed.operation.equals(operation) || parsed.port != port) return null;
+            if (System.currentTimeMillis() > parsed.expiresAt) return null;
+            return parsed;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public String receipt(long bytesStored) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(RECEIPT);
+            out.writeInt(nodeId);
+            out.writeUTF(department);
+            out.writeUTF(filename);
+            out.writeLong(version);
+            out.writeLong(bytesStored);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Hmac.cluster().seal(bytes.toByteArray());
+    }
+
+    public static Receipt verifyReceipt(String receipt) {
+        byte[] payload = Hmac.cluster().open(receipt);
+        if (payload == null) return null;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (!RECEIPT.equals(in.readUTF())) return null;
+            return new Receipt(in.readInt(), in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
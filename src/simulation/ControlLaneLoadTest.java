@@ -0,0 +1,148 @@
+package simulation;
+
+import server.utility.Config;
+import server.utility.NodeReply;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Load test against a running node: health-check latency on the data port and on the control lane,
+// first idle, then while writer threads keep every data worker busy with large adds.
+// Usage: ControlLaneLoadTest [host] [port] [writers] [seconds per phase]
+// The written files go to QA/loadtest-*.bin and are deleted at the end.
+public class ControlLaneLoadTest {
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+    private static final int PROBE_INTERVAL_MS = 100;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+
+    record Probes(double[] latencies, int failed) {}
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5001;
+        int writers = args.length > 2 ? Integer.parseInt(args[2]) : 120;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int controlPort = port + Config.CONTROL_PORT_OFFSET;
+        System.out.println("Control lane load test: node " + host + ":" + port + " (control " + controlPort + "), " +
+                writers + " writers of " + FILE_SIZE / (1024 * 1024) + " MB files, " + seconds + " s per phase");
+        System.out.printf("%-28s %8s %8s %8s %8s %8s%n", "phase / lane", "probes", "failed", "p50 ms", "p99 ms", "max ms");
+
+        report("idle / data port", probe(host, port, seconds));
+        report("idle / control lane", probe(host, controlPort, seconds));
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong written = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        byte[] content = new byte[FILE_SIZE];
+        for (int i = 0; i < writers; i++) {
+            String filename = "loadtest-" + i + ".bin";
+            Thread t = new Thread(() -> {
+                while (running.get()) {
+                    try {
+                        if (send(host, port, "add", filename, content)) written.addAndGet(FILE_SIZE);
+                    } catch (Exception e) {
+                        sleep(50); // BUSY or timed out; keep the pressure on
+                    }
+                }
+            }, "Writer-" + i);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        sleep(2000); // let the writers fill the pool and the queue
+        long start = System.currentTimeMillis();
+        long before = written.get();
+
+        // Probed one after the other so both see the same saturation
+        Probes data = probe(host, port, seconds);
+        Probes control = probe(host, controlPort, seconds);
+        double mbPerSecond = (written.get() - before) / 1048576.0 / ((System.currentTimeMillis() - start) / 1000.0);
+        report("saturated / data port", data);
+        report("saturated / control lane", control);
+        System.out.printf("data path throughput while saturated: %.1f MB/s%n", mbPerSecond);
+
+        running.set(false);
+        for (Thread t : threads) t.join(PROBE_TIMEOUT_MS);
+        for (int i = 0; i < writers; i++) {
+            try {
+                send(host, port, "delete", "loadtest-" + i + ".bin", null);
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    // A fresh connection and one ping every PROBE_INTERVAL_MS, like a health checker would do
+    static Probes probe(String host, int port, int seconds) {
+        List<Double> latencies = new ArrayList<>();
+        int failed = 0;
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            long started = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), PROBE_TIMEOUT_MS);
+                socket.setSoTimeout(PROBE_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                out.flush();
+                ObjectInputStream in = NodeReply.open(socket);
+                out.writeUTF("ping");
+                out.flush();
+                if ("pong".equals(in.readUTF())) {
+                    latencies.add((System.nanoTime() - started) / 1_000_000.0);
+                } else {
+                    failed++;
+                }
+                out.writeUTF("bye");
+                out.flush();
+            } catch (Exception e) {
+                failed++; // BUSY, refused or timed out
+            }
+            sleep(PROBE_INTERVAL_MS);
+        }
+        double[] sorted = latencies.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+        return new Probes(sorted, failed);
+    }
+
+    static boolean send(String host, int port, String action, String filename, byte[] content) throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), PROBE_TIMEOUT_MS);
+            socket.setSoTimeout(Config.REPLICATE_TIMEOUT);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF(action);
+            out.writeUTF("QA");
+            out.writeUTF(filename);
+            if (content != null) {
+                out.writeObject(content);
+                out.writeLong(System.currentTimeMillis()); // version
+            }
+            out.flush();
+            return in.readBoolean();
+        }
+    }
+
+    static void report(String name, Probes probes) {
+        double[] l = probes.latencies();
+        if (l.length == 0) {
+            System.out.printf("%-28s %8d %8d %8s %8s %8s%n", name, 0, probes.failed(), "-", "-", "-");
+            return;
+        }
+        System.out.printf("%-28s %8d %8d %8.1f %8.1f %8.1f%n", name, l.length + probes.failed(), probes.failed(),
+                RoutingSimulation.percentile(l, 0.50), RoutingSimulation.percentile(l, 0.99), l[l.length - 1]);
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package simulation;
+
+import server.utility.NodeLoadReport;
+import server.utility.PlacementScorer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Simulation of replica placement on nodes with different disk sizes.
+// Replays a workload of adds and deletes (generated, or read from a trace file with lines
+// "add <bytes>" / "delete") and places each add on REPLICATION nodes. Nodes report their disk
+// space only every REPORT_EVERY operations, like the heartbeat, so policies work on stale data.
+// A node joins empty halfway through. Compares load-blind placement (what the coordinator did
+// before) with the PlacementScorer; prints how full and how uneven the disks end up.
+public class PlacementSimulation {
+    private static final long GB = 1024L * 1024 * 1024;
+    private static final long[] CAPACITY = {300 * GB, 300 * GB, 600 * GB, 150 * GB};
+    private static final long JOINING_CAPACITY = 300 * GB;
+    private static final int OPERATIONS = 300_000;
+    private static final double DELETE_FRACTION = 0.25;
+    private static final double MEDIAN_FILE_BYTES = 1024 * 1024;
+    private static final double FILE_SIZE_SIGMA = 1.5;
+    private static final int REPLICATION = 2;
+    private static final int REPORT_EVERY = 200;
+
+    interface Policy {
+        String name();
+
+        List<Integer> choose(List<Integer> candidates, NodeLoadReport[] reports, int count);
+    }
+
+    static final class Node {
+        final long capacity;
+        long used;
+
+        Node(long capacity) {
+            this.capacity = capacity;
+        }
+
+        double usedFraction() {
+            return (double) used / capacity;
+        }
+
+        NodeLoadReport report() {
+            return new NodeLoadReport(0, capacity - used, capacity, 0, 0, 0, 0);
+        }
+    }
+
+    record Op(boolean add, long bytes) {}
+
+    record Stored(long bytes, List<Integer> nodes) {}
+
+    record Result(double maxUsed, double minUsed, long failedWrites, int firstFullAt) {}
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42L;
+        List<Op> workload = args.length > 1 ? readTrace(args[1]) : generate(new Random(seed));
+        System.out.println("Placement simulation: " + workload.size() + " operations, " + CAPACITY.length +
+                " nodes of " + Arrays.toString(Arrays.stream(CAPACITY).map(c -> c / GB).toArray()) +
+                " GB (+" + JOINING_CAPACITY / GB + " GB halfway), replication " + REPLICATION +
+                ", reports every " + REPORT_EVERY + " ops");
+        System.out.printf("%-30s %9s %9s %9s %14s%n", "policy", "max used", "min used", "failed", "first at 95%");
+
+        for (Policy policy : List.of(loadBlind(), scored())) {
+            Result result = run(policy, workload, new Random(seed));
+            System.out.printf("%-30s %8.1f%% %8.1f%% %9d %14s%n", policy.name(), result.maxUsed() * 100,
+                    result.minUsed() * 100, result.failedWrites(),
+                    result.firstFullAt() < 0 ? "never" : "op " + result.firstFullAt());
+        }
+    }
+
+    static Result run(Policy policy, List<Op> workload, Random random) {
+        List<Node> nodes = new ArrayList<>();
+        for (long capacity : CAPACITY) nodes.add(new Node(capacity));
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) candidates.add(i);
+        NodeLoadReport[] reports = new NodeLoadReport[CAPACITY.length + 1];
+        Arrays.fill(reports, NodeLoadReport.UNKNOWN);
+
+        List<Stored> files = new ArrayList<>();
+        long failedWrites = 0;
+        int firstFullAt = -1;
+        for (int op = 0; op < workload.size(); op++) {
+            if (op == workload.size() / 2) {
+                nodes.add(new Node(JOINING_CAPACITY));
+                candidates.add(nodes.size() - 1);
+            }
+            if (op % REPORT_EVERY == 0) {
+                for (int i = 0; i < nodes.size(); i++) reports[i] = nodes.get(i).report();
+            }
+
+            Op next = workload.get(op);
+            if (next.add()) {
+                List<Integer> targets = policy.choose(candidates, reports, REPLICATION);
+                List<Integer> stored = new ArrayList<>(targets.size());
+                for (int nodeId : targets) {
+                    Node node = nodes.get(nodeId);
+                    if (node.capacity - node.used < next.bytes()) {
+                        failedWrites++;
+                        continue;
+                    }
+                    node.used += next.bytes();
+                    stored.add(nodeId);
+                    if (firstFullAt < 0 && node.usedFraction() >= 0.95) firstFullAt = op;
+                }
+                if (!stored.isEmpty()) files.add(new Stored(next.bytes(), stored));
+            } else if (!files.isEmpty()) {
+                // Swap-remove a random file
+                int victim = random.nextInt(files.size());
+                Stored removed = files.get(victim);
+                files.set(victim, files.get(files.size() - 1));
+                files.remove(files.size() - 1);
+                for (int nodeId : removed.nodes()) nodes.get(nodeId).used -= removed.bytes();
+            }
+        }
+
+        double max = 0, min = 1;
+        for (Node node : nodes) {
+            max = Math.max(max, node.usedFraction());
+            min = Math.min(min, node.usedFraction());
+        }
+        return new Result(max, min, failedWrites, firstFullAt);
+    }
+
+    // The previous placement: p2c over request latency and in-flight counts, which carry no
+    // information about disk space, so for placement it amounts to a uniform random pick
+    static Policy loadBlind() {
+        return new Policy() {
+            public String name() {
+                return "load-blind (previous)";
+            }
+
+            public List<Integer> choose(List<Integer> candidates, NodeLoadReport[] reports, int count) {
+                List<Integer> shuffled = new ArrayList<>(candidates);
+                Collections.shuffle(shuffled);
+                return shuffled.subList(0, Math.min(count, shuffled.size()));
+            }
+        };
+    }
+
+    static Policy scored() {
+        return new Policy() {
+            public String name() {
+                return "p2c over load report score";
+            }
+
+            public List<Integer> choose(List<Integer> candidates, NodeLoadReport[] reports, int count) {
+                return PlacementScorer.DEFAULT.chooseDistinct(candidates, nodeId -> reports[nodeId], count);
+            }
+        };
+    }
+
+    static List<Op> generate(Random random) {
+        List<Op> ops = new ArrayList<>(OPERATIONS);
+        double mu = Math.log(MEDIAN_FILE_BYTES);
+        for (int i = 0; i < OPERATIONS; i++) {
+            if (random.nextDouble() < DELETE_FRACTION) {
+                ops.add(new Op(false, 0));
+            } else {
+                ops.add(new Op(true, (long) Math.exp(mu + FILE_SIZE_SIGMA * random.nextGaussian())));
+            }
+        }
+        return ops;
+    }
+
+    static List<Op> readTrace(String path) throws IOException {
+        List<Op> ops = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(path))) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts[0].equals("add") && parts.length == 2) {
+                ops.add(new Op(true, Long.parseLong(parts[1])));
+            } else if (parts[0].equals("delete")) {
+                ops.add(new Op(false, 0));
+            }
+        }
+        return ops;
+    }
+}
@@ -0,0 +1,169 @@
+package simulation;
+
+import server.utility.LoadBalancer;
+
+import java.util.*;
+
+// Discrete-event simulation of request routing across file nodes.
+// Compares the old policy (least connections from a load poll taken every 2s) with the
+// LoadBalancer's power-of-two-choices over EWMA latency and in-flight counts, on a cluster
+// where one node is degraded. Prints latency percentiles per policy.
+public class RoutingSimulation {
+    private static final int REQUESTS = 200_000;
+    private static final int WORKERS_PER_NODE = 4;
+    private static final double[] MEAN_SERVICE_MS = {10, 10, 10, 10, 40}; // last node is degraded
+    private static final double LOAD_FACTOR = 0.7;
+    private static final long POLL_INTERVAL_MS = 2000;
+
+    interface Policy {
+        String name();
+
+        int choose(double now, Node[] nodes);
+
+        default void onStart(int nodeId) {
+        }
+
+        default void onComplete(int nodeId, double latencyMs) {
+        }
+    }
+
+    static final class Node {
+        final int id;
+        final double meanServiceMs;
+        final ArrayDeque<double[]> queue = new ArrayDeque<>(); // {arrivalTime}
+        int busy;
+
+        Node(int id, double meanServiceMs) {
+            this.id = id;
+            this.meanServiceMs = meanServiceMs;
+        }
+
+        int outstanding() {
+            return busy + queue.size();
+        }
+    }
+
+    record Event(double time, int node, double arrival) {}
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42L;
+        System.out.println("Routing simulation: " + REQUESTS + " requests, " + MEAN_SERVICE_MS.length +
+                " nodes x " + WORKERS_PER_NODE + " workers, service means " + Arrays.toString(MEAN_SERVICE_MS) +
+                " ms, load " + (int) (LOAD_FACTOR * 100) + "%");
+        System.out.printf("%-34s %8s %8s %8s %8s %8s%n", "policy", "mean", "p50", "p99", "p99.9", "max");
+
+        for (Policy policy : List.of(polledLeastLoaded(), powerOfTwoChoices())) {
+            double[] latencies = run(policy, new Random(seed));
+            Arrays.sort(latencies);
+            double mean = Arrays.stream(latencies).average().orElse(0);
+            System.out.printf("%-34s %8.1f %8.1f %8.1f %8.1f %8.1f%n", policy.name(), mean,
+                    percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                    latencies[latencies.length - 1]);
+        }
+    }
+
+    static double[] run(Policy policy, Random random) {
+        Node[] nodes = new Node[MEAN_SERVICE_MS.length];
+        double capacity = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(i, MEAN_SERVICE_MS[i]);
+            capacity += WORKERS_PER_NODE / MEAN_SERVICE_MS[i];
+        }
+        double arrivalRate = capacity * LOAD_FACTOR; // requests per ms
+
+        PriorityQueue<Event> completions = new PriorityQueue<>(Comparator.comparingDouble(Event::time));
+        double[] latencies = new double[REQUESTS];
+        int done = 0;
+        double now = 0;
+        double nextArrival = exponential(random, 1 / arrivalRate);
+        int arrived = 0;
+
+        while (done < REQUESTS) {
+            if (arrived < REQUESTS && (completions.isEmpty() || nextArrival <= completions.peek().time())) {
+                now = nextArrival;
+                int target = policy.choose(now, nodes);
+                policy.onStart(target);
+                Node node = nodes[target];
+                if (node.busy < WORKERS_PER_NODE) {
+                    node.busy++;
+                    completions.add(new Event(now + exponential(random, node.meanServiceMs), target, now));
+                } else {
+                    node.queue.add(new double[]{now});
+                }
+                arrived++;
+                nextArrival = now + exponential(random, 1 / arrivalRate);
+            } else {
+                Event event = completions.poll();
+                now = event.time();
+                Node node = nodes[event.node()];
+                double latency = now - event.arrival();
+                latencies[done++] = latency;
+                policy.onComplete(node.id, latency);
+                double[] waiting = node.queue.poll();
+                if (waiting != null) {
+                    completions.add(new Event(now + exponential(random, node.meanServiceMs), node.id, waiting[0]));
+                } else {
+                    node.busy--;
+                }
+            }
+        }
+        return latencies;
+    }
+
+    static Policy polledLeastLoaded() {
+        return new Policy() {
+            final int[] polled = new int[MEAN_SERVICE_MS.length];
+            double lastPoll = -POLL_INTERVAL_MS;
+
+            public String name() {
+                return "least-loaded (polled every 2s)";
+            }
+
+            public int choose(double now, Node[] nodes) {
+                if (now - lastPoll >= POLL_INTERVAL_MS) {
+                    for (Node n : nodes) polled[n.id] = n.outstanding();
+                    lastPoll = now;
+                }
+                int best = 0;
+                for (int i = 1; i < polled.length; i++) {
+                    if (polled[i] < polled[best]) best = i;
+                }
+                return best;
+            }
+        };
+    }
+
+    static Policy powerOfTwoChoices() {
+        LoadBalancer balancer = new LoadBalancer();
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < MEAN_SERVICE_MS.length; i++) {
+            balancer.addNode(i);
+            candidates.add(i);
+        }
+        return new Policy() {
+            public String name() {
+                return "p2c over EWMA x in-flight";
+            }
+
+            public int choose(double now, Node[] nodes) {
+                return balancer.choose(candidates);
+            }
+
+            public void onStart(int nodeId) {
+                balancer.onStart(nodeId);
+            }
+
+            public void onComplete(int nodeId, double latencyMs) {
+                balancer.onComplete(nodeId, latencyMs, true);
+            }
+        };
+    }
+
+    static double exponential(Random random, double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+
+    static double percentile(double[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
@@ -1,42 +1,44 @@
 package synchronizer;
 
+import server.utility.MerkleTree;
+import server.utility.NodeBusyException;
+import server.utility.NodeReply;
+
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.file.*;
 import java.time.LocalTime;
 import java.util.*;
 import java.util.concurrent.*;
 
+// Makes every node hold the newest copy of every file. With the nodes running, it compares their
+// Merkle trees top-down and copies only the files in leaves that differ, so a sync costs about as
+// much as what changed. Nodes that can't be reached are presumably stopped; then it falls back to
+// walking the node directories.
 public class NodeSynchronizer {
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int READ_TIMEOUT = 60000; // a replicate covers a whole node-to-node copy
+    // Node-private directories: in-progress writes and erasure-coded shards are never mirrored.
+    // Version sidecars aren't synced on their own either: each travels with the file it describes.
+    private static final String VERSIONS_DIR = ".versions";
+    private static final Set<String> SKIPPED_DIRS = Set.of(".tmp", ".ec", VERSIONS_DIR);
+
     private final List<String> nodePaths;
+    private final List<InetSocketAddress> nodeAddresses;
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
     private volatile boolean running = true;
 
     public NodeSynchronizer(List<String> nodePaths) {
-        this.nodePaths = new ArrayList<>(nodePaths);
-        createMissingDirectories();
+        this(nodePaths, List.of());
     }
 
-    private void createMissingDirectories() {
+    // nodeAddresses[i] is the node serving nodePaths[i]
+    public NodeSynchronizer(List<String> nodePaths, List<InetSocketAddress> nodeAddresses) {
+        this.nodePaths = new ArrayList<>(nodePaths);
+        this.nodeAddresses = new ArrayList<>(nodeAddresses);
         for (String nodePath : nodePaths) {
             new File(nodePath).mkdirs();
-            for (String otherNode : nodePaths) {
-                if (!otherNode.equals(nodePath)) {
-                    Path otherPath = Paths.get(otherNode);
-                    try {
-                        Files.walk(otherPath)
-                                .filter(Files::isDirectory)
-                                .forEach(dir -> {
-                                    Path relative = otherPath.relativize(dir);
-                                    Path target = Paths.get(nodePath, relative.toString());
-                                    if (!Files.exists(target)) {
-                                        target.toFile().mkdirs();
-                                    }
-                                });
-                    } catch (IOException e) {
-                        System.err.println("Error creating directories: " + e.getMessage());
-                    }
-                }
-            }
         }
     }
 
@@ -61,71 +63,294 @@ public class NodeSynchronizer {
     }
 
     private void performSync() {
+        if (!nodeAddresses.isEmpty() && syncOverNetwork()) return;
         System.out.println("Starting file synchronization...");
+        long started = System.currentTimeMillis();
 
-        // Build file index across all nodes
-        Map<String, FileRecord> fileIndex = new HashMap<>();
+        // Each node's saved index, brought up to date by looking only at what changed since the last run
+        List<SyncIndex> indexes = new ArrayList<>(nodePaths.size());
+        int listed = 0, hashed = 0;
         for (String nodePath : nodePaths) {
-            indexFiles(nodePath, fileIndex);
+            SyncIndex index = SyncIndex.load(Paths.get(nodePath));
+            try {
+                index.refresh(NodeSynchronizer::isSkipped);
+            } catch (IOException e) {
+                // An incomplete index would make files look deleted; better not to sync at all
+                System.err.println("Error indexing files in " + nodePath + ": " + e.getMessage());
+                return;
+            }
+            indexes.add(index);
+            listed += index.directoriesListed();
+            hashed += index.filesHashed();
+        }
+
+        // Same directory structure everywhere, empty directories included
+        Set<String> directories = new HashSet<>();
+        for (SyncIndex index : indexes) directories.addAll(index.directories());
+        for (SyncIndex index : indexes) {
+            for (String dir : directories) {
+                if (!index.directories().contains(dir)) index.resolve(dir).toFile().mkdirs();
+            }
         }
 
-        // Synchronize files
-        for (Map.Entry<String, FileRecord> entry : fileIndex.entrySet()) {
-            FileRecord latest = entry.getValue();
-            for (String nodePath : nodePaths) {
-                if (!latest.nodePath.equals(nodePath)) {
-                    syncFileToNode(latest, nodePath);
+        // The newest copy of every file goes, with its version, to the nodes whose copy is older and
+        // differs. Newest is the highest node version, then the latest mtime (files without a version,
+        // or written by hand). Versions are only read for files that differ somewhere.
+        Set<String> paths = new HashSet<>();
+        for (SyncIndex index : indexes) paths.addAll(index.files().keySet());
+        int copied = 0;
+        for (String path : paths) {
+            if (identicalEverywhere(indexes, path)) continue;
+            long[] versions = new long[indexes.size()];
+            int newest = -1;
+            for (int i = 0; i < indexes.size(); i++) {
+                SyncIndex.FileState state = indexes.get(i).files().get(path);
+                if (state == null) continue;
+                versions[i] = version(indexes.get(i), path);
+                if (newest < 0 || versions[i] > versions[newest] || (versions[i] == versions[newest] &&
+                        state.lastModified() > indexes.get(newest).files().get(path).lastModified())) {
+                    newest = i;
+                }
+            }
+            SyncIndex source = indexes.get(newest);
+            SyncIndex.FileState state = source.files().get(path);
+            for (int i = 0; i < indexes.size(); i++) {
+                SyncIndex target = indexes.get(i);
+                if (target == source) continue;
+                SyncIndex.FileState held = target.files().get(path);
+                if (held != null && versions[i] == versions[newest] &&
+                        (held.lastModified() >= state.lastModified() || Arrays.equals(held.hash(), state.hash()))) {
+                    continue; // up to date
                 }
+                if (copyFile(source, target, path, state)) copied++;
             }
         }
 
-        System.out.println("File synchronization completed");
+        for (int i = 0; i < indexes.size(); i++) {
+            try {
+                indexes.get(i).save();
+            } catch (IOException e) {
+                System.err.println("Failed to save the sync index of " + nodePaths.get(i) + ": " + e.getMessage());
+            }
+        }
+        System.out.println("File synchronization completed in " + (System.currentTimeMillis() - started) + " ms: " +
+                paths.size() + " files known, " + listed + " directories listed, " + hashed + " files hashed, " +
+                copied + " files copied");
     }
 
-    private void indexFiles(String nodePath, Map<String, FileRecord> index) {
+    private static boolean identicalEverywhere(List<SyncIndex> indexes, String path) {
+        SyncIndex.FileState first = indexes.get(0).files().get(path);
+        if (first == null) return false;
+        for (SyncIndex index : indexes) {
+            SyncIndex.FileState state = index.files().get(path);
+            if (state == null || !Arrays.equals(state.hash(), first.hash())) return false;
+        }
+        return true;
+    }
+
+    // The node's version of the file (as FileNodeServer records it), 0 if it has none
+    private static long version(SyncIndex index, String path) {
+        Path sidecar = index.resolve(VERSIONS_DIR + "/" + path);
+        try {
+            return Files.isRegularFile(sidecar) ? Long.parseLong(Files.readString(sidecar).trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Copies the file, then its version sidecar (or drops the target's, if the source has none),
+    // in the order nodes write them: an interrupted copy leaves the file looking stale, not current
+    private static boolean copyFile(SyncIndex source, SyncIndex target, String path, SyncIndex.FileState state) {
+        Path from = source.resolve(path);
+        Path to = target.resolve(path);
         try {
-            Files.walk(Paths.get(nodePath))
-                    .filter(Files::isRegularFile)
-                    .forEach(file -> {
-                        String relativePath = Paths.get(nodePath).relativize(file).toString();
-                        long lastModified = file.toFile().lastModified();
-
-                        FileRecord existing = index.get(relativePath);
-                        if (existing == null || lastModified > existing.lastModified) {
-                            index.put(relativePath, new FileRecord(nodePath, file.toString(), lastModified));
-                        }
-                    });
+            Files.createDirectories(to.getParent());
+            Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            Path fromVersion = source.resolve(VERSIONS_DIR + "/" + path);
+            Path toVersion = target.resolve(VERSIONS_DIR + "/" + path);
+            if (Files.isRegularFile(fromVersion)) {
+                Files.createDirectories(toVersion.getParent());
+                Files.copy(fromVersion, toVersion, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(toVersion);
+            }
+            target.copied(path, state);
+            System.out.println("Synced " + from + " to " + to);
+            return true;
         } catch (IOException e) {
-            System.err.println("Error indexing files in " + nodePath + ": " + e.getMessage());
+            System.err.println("Failed to sync " + from + " to " + to + ": " + e.getMessage());
+            return false;
         }
     }
 
-    private void syncFileToNode(FileRecord source, String targetNodePath) {
-        Path targetPath = Paths.get(targetNodePath,
-                Paths.get(source.nodePath).relativize(Paths.get(source.filePath)).toString());
+    private static boolean isSkipped(Path relative) {
+        return relative.getNameCount() > 0 && SKIPPED_DIRS.contains(relative.getName(0).toString());
+    }
 
+    // Returns false if some node couldn't be reached, so the caller walks the directories instead
+    private boolean syncOverNetwork() {
+        List<TreeSession> sessions = new ArrayList<>();
         try {
-            // Check if target exists and is older
-            if (Files.exists(targetPath)) {
-                long targetLastModified = Files.getLastModifiedTime(targetPath).toMillis();
-                if (source.lastModified <= targetLastModified) {
-                    return; // Target is up-to-date
-                }
+            for (InetSocketAddress address : nodeAddresses) {
+                sessions.add(new TreeSession(address));
             }
+        } catch (NodeBusyException e) {
+            sessions.forEach(TreeSession::close);
+            System.out.println("Node busy, skipping this synchronization: " + e.getMessage());
+            return true;
+        } catch (IOException e) {
+            sessions.forEach(TreeSession::close);
+            System.out.println("Node unreachable (" + e.getMessage() + "), synchronizing the directories instead");
+            return false;
+        }
 
-            // Create parent directories if needed
-            Files.createDirectories(targetPath.getParent());
+        System.out.println("Starting file synchronization over " + sessions.size() + " nodes...");
+        long started = System.currentTimeMillis();
+        SyncStats stats = new SyncStats();
+        try {
+            walk(sessions, 0, 0, stats);
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Synchronization aborted: " + e.getMessage());
+        } finally {
+            sessions.forEach(TreeSession::close);
+        }
+        System.out.println("File synchronization completed in " + (System.currentTimeMillis() - started) + " ms: " +
+                stats.nodesCompared + " tree nodes compared, " + stats.leavesDiffering + " leaves differed, " +
+                stats.filesCopied + " files copied");
+        return true;
+    }
 
-            // Copy file
-            Files.copy(Paths.get(source.filePath), targetPath,
-                    StandardCopyOption.REPLACE_EXISTING,
-                    StandardCopyOption.COPY_ATTRIBUTES);
+    // Descends only into the children whose hashes are not the same on every node
+    private void walk(List<TreeSession> sessions, int level, int index, SyncStats stats) throws IOException, ClassNotFoundException {
+        List<byte[][]> children = new ArrayList<>(sessions.size());
+        for (TreeSession session : sessions) {
+            children.add(session.children(level, index));
+        }
+        stats.nodesCompared++;
+        for (int i = 0; i < MerkleTree.FANOUT; i++) {
+            boolean same = true;
+            for (byte[][] other : children) {
+                same &= Arrays.equals(children.get(0)[i], other[i]);
+            }
+            if (same) continue;
+            int child = index * MerkleTree.FANOUT + i;
+            if (level + 1 == MerkleTree.DEPTH) {
+                stats.leavesDiffering++;
+                reconcileLeaf(sessions, child, stats);
+            } else {
+                walk(sessions, level + 1, child, stats);
+            }
+        }
+    }
 
-            System.out.println("Synced " + source.filePath + " to " + targetPath);
+    // Copies the newest version of every file in the leaf to the nodes that lack it or hold an older one
+    private void reconcileLeaf(List<TreeSession> sessions, int leaf, SyncStats stats) throws IOException, ClassNotFoundException {
+        List<Map<String, Long>> entries = new ArrayList<>(sessions.size());
+        Set<String> keys = new TreeSet<>();
+        for (TreeSession session : sessions) {
+            Map<String, Long> leafEntries = session.leaf(leaf);
+            entries.add(leafEntries);
+            keys.addAll(leafEntries.keySet());
+        }
+        for (String key : keys) {
+            int newest = -1;
+            for (int i = 0; i < entries.size(); i++) {
+                Long version = entries.get(i).get(key);
+                if (version != null && (newest < 0 || version > entries.get(newest).get(key))) newest = i;
+            }
+            long version = entries.get(newest).get(key);
+            for (int i = 0; i < entries.size(); i++) {
+                Long held = entries.get(i).get(key);
+                if (held != null && held >= version) continue;
+                if (replicate(nodeAddresses.get(newest), nodeAddresses.get(i), key)) {
+                    stats.filesCopied++;
+                    System.out.println("Synced " + key + " (version " + version + ") from " + nodeAddresses.get(newest) +
+                            " to " + nodeAddresses.get(i));
+                } else {
+                    System.err.println("Failed to sync " + key + " from " + nodeAddresses.get(newest) + " to " + nodeAddresses.get(i));
+                }
+            }
+        }
+    }
+
+    // The source node pushes its copy (and version) straight to the target
+    private static boolean replicate(InetSocketAddress source, InetSocketAddress target, String key) {
+        int slash = key.indexOf('/');
+        try (Socket socket = new Socket()) {
+            socket.connect(source, CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = NodeReply.open(socket);
+            out.writeUTF("replicate");
+            out.writeUTF(key.substring(0, slash));
+            out.writeUTF(key.substring(slash + 1));
+            out.writeUTF(target.getHostString());
+            out.writeInt(target.getPort());
+            out.flush();
+            return in.readLong() >= 0;
         } catch (IOException e) {
-            System.err.println("Failed to sync " + source.filePath + " to " + targetPath +
-                    ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // One node's "merkle" connection, held open for the whole walk
+    private static final class TreeSession implements Closeable {
+        private final Socket socket = new Socket();
+        private final ObjectOutputStream out;
+        private final ObjectInputStream in;
+
+        TreeSession(InetSocketAddress address) throws IOException {
+            try {
+                socket.connect(address, CONNECT_TIMEOUT);
+                socket.setSoTimeout(READ_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                out = new ObjectOutputStream(socket.getOutputStream());
+                out.flush();
+                in = NodeReply.open(socket);
+                out.writeUTF("merkle");
+                out.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
         }
+
+        byte[][] children(int level, int index) throws IOException, ClassNotFoundException {
+            out.writeInt(level);
+            out.writeInt(index);
+            out.flush();
+            return (byte[][]) in.readObject();
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Long> leaf(int index) throws IOException, ClassNotFoundException {
+            out.writeInt(MerkleTree.DEPTH);
+            out.writeInt(index);
+            out.flush();
+            return (Map<String, Long>) in.readObject();
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (out != null) {
+                    out.writeInt(-1);
+                    out.flush();
+                }
+            } catch (IOException ignored) {
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static class SyncStats {
+        int nodesCompared;
+        int leavesDiffering;
+        int filesCopied;
     }
 
     public void shutdown() {
@@ -136,16 +361,4 @@ public class NodeSynchronizer {
     public boolean isRunning() {
         return running;
     }
-
-    private static class FileRecord {
-        final String nodePath;
-        final String filePath;
-        final long lastModified;
-
-        FileRecord(String nodePath, String filePath, long lastModified) {
-            this.nodePath = nodePath;
-            this.filePath = filePath;
-            this.lastModified = lastModified;
-        }
-    }
-}
\ No newline at end of file
+}
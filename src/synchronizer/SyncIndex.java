@@ -0,0 +1,207 @@
+package synchronizer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Predicate;
+
+// What the last directory sync saw under one node directory: size, mtime and SHA-256 of every file,
+// and the mtime of every directory. Kept in <node>.sync-index next to the node directory between
+// runs (not inside it, where saving would touch the directory it describes), so a run only lists
+// directories whose mtime moved (files were added, removed or renamed in) and only hashes files
+// whose size or mtime moved. Nodes write by renaming into place, which always moves the directory's
+// mtime; a file rewritten in place by some other tool is only noticed once its directory changes
+// (or the index file is deleted, which forces a full scan).
+class SyncIndex {
+    static final String SUFFIX = ".sync-index";
+    private static final int FORMAT = 1;
+    private static final long RACY_MILLIS = 2000; // mtimes this close to the scan may still change unseen
+
+    record FileState(long size, long lastModified, byte[] hash) {}
+
+    private final Path root;
+    private final Map<String, FileState> files = new HashMap<>();
+    private final Map<String, Long> directories = new HashMap<>();
+    private int filesHashed;
+    private int directoriesListed;
+
+    private SyncIndex(Path root) {
+        this.root = root;
+    }
+
+    // The saved index of `root`, or an empty one (meaning a full scan) if there is none or it is unreadable
+    static SyncIndex load(Path root) {
+        SyncIndex index = new SyncIndex(root);
+        Path file = indexFile(root);
+        if (!Files.isRegularFile(file)) return index;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT) return index;
+            for (int n = in.readInt(); n > 0; n--) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                index.files.put(path, new FileState(size, lastModified, hash));
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                index.directories.put(in.readUTF(), in.readLong());
+            }
+        } catch (IOException e) {
+            System.err.println("Unreadable sync index " + file + " (" + e.getMessage() + "), scanning everything");
+            index.files.clear();
+            index.directories.clear();
+        }
+        return index;
+    }
+
+    void save() throws IOException {
+        Path file = indexFile(root);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(FORMAT);
+            out.writeInt(files.size());
+            for (Map.Entry<String, FileState> entry : files.entrySet()) {
+                FileState state = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(state.size());
+                out.writeLong(state.lastModified());
+                out.writeByte(state.hash().length);
+                out.write(state.hash());
+            }
+            out.writeInt(directories.size());
+            for (Map.Entry<String, Long> entry : directories.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Brings the index up to date with the directory tree; `skipped` filters relative paths out
+    void refresh(Predicate<Path> skipped) throws IOException {
+        filesHashed = 0;
+        directoriesListed = 0;
+        long scanStarted = System.currentTimeMillis();
+        Map<String, List<String>> subdirectories = new HashMap<>();
+        for (String dir : directories.keySet()) {
+            if (!dir.isEmpty()) subdirectories.computeIfAbsent(parent(dir), k -> new ArrayList<>()).add(dir);
+        }
+        Map<String, List<String>> filesByDirectory = new HashMap<>();
+        for (String file : files.keySet()) {
+            filesByDirectory.computeIfAbsent(parent(file), k -> new ArrayList<>()).add(file);
+        }
+        refresh("", subdirectories, filesByDirectory, skipped, scanStarted);
+    }
+
+    private void refresh(String dir, Map<String, List<String>> subdirectories, Map<String, List<String>> filesByDirectory,
+                         Predicate<Path> skipped, long scanStarted) throws IOException {
+        Path path = resolve(dir);
+        long mtime = Files.getLastModifiedTime(path).toMillis();
+        Long recorded = directories.get(dir);
+        List<String> children;
+        if (recorded != null && recorded == mtime) {
+            // Same entries as last time; only the subdirectories can have changed inside
+            children = subdirectories.getOrDefault(dir, List.of());
+        } else {
+            directoriesListed++;
+            children = new ArrayList<>();
+            Set<String> present = new HashSet<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) {
+                    String relative = child(dir, entry.getFileName().toString());
+                    if (skipped.test(Paths.get(relative))) continue;
+                    if (Files.isDirectory(entry)) {
+                        children.add(relative);
+                    } else if (Files.isRegularFile(entry)) {
+                        present.add(relative);
+                        refreshFile(relative, entry);
+                    }
+                }
+            }
+            for (String old : filesByDirectory.getOrDefault(dir, List.of())) {
+                if (!present.contains(old)) files.remove(old);
+            }
+            for (String old : subdirectories.getOrDefault(dir, List.of())) {
+                if (!children.contains(old)) forget(old);
+            }
+        }
+        for (String child : children) {
+            refresh(child, subdirectories, filesByDirectory, skipped, scanStarted);
+        }
+        // A directory changed within the mtime granularity of this scan is listed again next time
+        directories.put(dir, mtime > scanStarted - RACY_MILLIS ? Long.MIN_VALUE : mtime);
+    }
+
+    private void refreshFile(String relative, Path file) throws IOException {
+        long size = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        FileState known = files.get(relative);
+        if (known != null && known.size() == size && known.lastModified() == lastModified) return;
+        files.put(relative, new FileState(size, lastModified, sha256(file)));
+        filesHashed++;
+    }
+
+    private void forget(String dir) {
+        String prefix = dir + "/";
+        files.keySet().removeIf(file -> file.startsWith(prefix));
+        directories.keySet().removeIf(d -> d.equals(dir) || d.startsWith(prefix));
+    }
+
+    Map<String, FileState> files() {
+        return files;
+    }
+
+    Set<String> directories() {
+        return directories.keySet();
+    }
+
+    // Records a file the synchronizer itself copied in (with the source's attributes)
+    void copied(String relative, FileState state) {
+        files.put(relative, state);
+    }
+
+    Path resolve(String relative) {
+        return relative.isEmpty() ? root : root.resolve(relative);
+    }
+
+    int filesHashed() {
+        return filesHashed;
+    }
+
+    int directoriesListed() {
+        return directoriesListed;
+    }
+
+    private static Path indexFile(Path root) {
+        Path absolute = root.toAbsolutePath().normalize();
+        return absolute.resolveSibling(absolute.getFileName() + SUFFIX);
+    }
+
+    private static String child(String dir, String name) {
+        return dir.isEmpty() ? name : dir + "/" + name;
+    }
+
+    private static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static byte[] sha256(Path file) throws IOException {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = Files.newInputStream(file)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    sha.update(buffer, 0, n);
+                }
+            }
+            return sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
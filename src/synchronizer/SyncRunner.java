@@ -1,5 +1,6 @@
 package synchronizer;
 
+import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.Scanner;
 
@@ -10,6 +11,12 @@ public class SyncRunner {
                 "node2",
                 "node3"
         );
+        // The nodes serving those directories, compared by Merkle tree while they are running
+        List<InetSocketAddress> nodeAddresses = List.of(
+                new InetSocketAddress("localhost", 5001),
+                new InetSocketAddress("localhost", 5002),
+                new InetSocketAddress("localhost", 5003)
+        );
 
         try (Scanner scanner = new Scanner(System.in)) {
             System.out.println("File Synchronization Options:");
@@ -20,7 +27,7 @@ public class SyncRunner {
             int choice = scanner.nextInt();
             boolean immediate = (choice == 1);
 
-            NodeSynchronizer syncManager = new NodeSynchronizer(nodePaths);
+            NodeSynchronizer syncManager = new NodeSynchronizer(nodePaths, nodeAddresses);
             syncManager.sync(immediate);
 
             if (!immediate) {